@@ -38,19 +38,17 @@ import com.example.sqlbrite.todo.db.TodoList;
 import com.jakewharton.rxbinding2.widget.AdapterViewItemClickEvent;
 import com.jakewharton.rxbinding2.widget.RxAdapterView;
 import com.squareup.sqlbrite3.BriteDatabase;
-import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
-import io.reactivex.functions.BiFunction;
 import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
 import io.reactivex.schedulers.Schedulers;
+import java.util.Arrays;
 import javax.inject.Inject;
 
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
 import static android.support.v4.view.MenuItemCompat.SHOW_AS_ACTION_IF_ROOM;
 import static android.support.v4.view.MenuItemCompat.SHOW_AS_ACTION_WITH_TEXT;
-import static com.squareup.sqlbrite3.SqlBrite.Query;
 
 public final class ItemsFragment extends Fragment {
   private static final String KEY_LIST_ID = "list_id";
@@ -151,43 +149,34 @@ public final class ItemsFragment extends Fragment {
 
   @Override public void onResume() {
     super.onResume();
-    String listId = String.valueOf(getListId());
+    final String listId = String.valueOf(getListId());
 
     disposables = new CompositeDisposable();
 
-    Observable<Integer> itemCount = db.createQuery(TodoItem.TABLE, COUNT_QUERY, listId) //
-        .map(new Function<Query, Integer>() {
-          @Override public Integer apply(Query query) {
-            Cursor cursor = query.run();
+    // Read the name and the count from one snapshot so the title never mixes two states.
+    disposables.add(db.createQueries(Arrays.asList(TodoList.TABLE, TodoItem.TABLE),
+        new Function<BriteDatabase.Snapshot, String>() {
+          @Override public String apply(BriteDatabase.Snapshot snapshot) {
+            String listName;
+            Cursor cursor = snapshot.query(TITLE_QUERY, listId);
             try {
               if (!cursor.moveToNext()) {
                 throw new AssertionError("No rows");
               }
-              return cursor.getInt(0);
+              listName = cursor.getString(0);
             } finally {
               cursor.close();
             }
-          }
-        });
-    Observable<String> listName =
-        db.createQuery(TodoList.TABLE, TITLE_QUERY, listId).map(new Function<Query, String>() {
-          @Override public String apply(Query query) {
-            Cursor cursor = query.run();
+            cursor = snapshot.query(COUNT_QUERY, listId);
             try {
               if (!cursor.moveToNext()) {
                 throw new AssertionError("No rows");
               }
-              return cursor.getString(0);
+              return listName + " (" + cursor.getInt(0) + ")";
             } finally {
               cursor.close();
             }
           }
-        });
-    disposables.add(
-        Observable.combineLatest(listName, itemCount, new BiFunction<String, Integer, String>() {
-          @Override public String apply(String listName, Integer itemCount) {
-            return listName + " (" + itemCount + ")";
-          }
         })
             .observeOn(AndroidSchedulers.mainThread())
             .subscribe(new Consumer<String>() {
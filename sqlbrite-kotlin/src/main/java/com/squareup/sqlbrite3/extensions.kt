@@ -84,6 +84,21 @@ inline fun <T> Observable<Query>.mapToOptional(noinline mapper: Mapper<T>): Obse
 inline fun <T> Observable<Query>.mapToList(noinline mapper: Mapper<T>): Observable<List<T>>
     = lift(Query.mapToList(mapper))
 
+/**
+ * Transforms an observable of [Query] to `List<T>` using `mapper` for each row, skipping result
+ * sets which are unchanged from the previous one.
+ *
+ * Result sets are compared by a hash of their values computed before any rows are mapped, so an
+ * unchanged result set neither creates objects nor emits a new list.
+ *
+ * This operator ignores null cursors returned from [Query.run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+inline fun <T> Observable<Query>.mapToListDistinctUntilChanged(
+    noinline mapper: Mapper<T>
+): Observable<List<T>> = lift(Query.mapToListDistinctUntilChanged(mapper))
+
 /**
  * Run the database interactions in `body` inside of a transaction.
  *
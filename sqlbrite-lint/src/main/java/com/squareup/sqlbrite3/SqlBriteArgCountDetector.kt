@@ -31,6 +31,9 @@ import java.util.EnumSet
 private const val BRITE_DATABASE = "com.squareup.sqlbrite3.BriteDatabase"
 private const val QUERY_METHOD_NAME = "query"
 private const val CREATE_QUERY_METHOD_NAME = "createQuery"
+private const val CREATE_LONG_QUERY_METHOD_NAME = "createLongQuery"
+private const val CREATE_STRING_QUERY_METHOD_NAME = "createStringQuery"
+private const val CREATE_EXISTS_QUERY_METHOD_NAME = "createExistsQuery"
 
 class SqlBriteArgCountDetector : Detector(), Detector.UastScanner {
 
@@ -48,7 +51,9 @@ class SqlBriteArgCountDetector : Detector(), Detector.UastScanner {
         Implementation(SqlBriteArgCountDetector::class.java, EnumSet.of(JAVA_FILE, TEST_SOURCES)))
   }
 
-  override fun getApplicableMethodNames() = listOf(CREATE_QUERY_METHOD_NAME, QUERY_METHOD_NAME)
+  override fun getApplicableMethodNames() = listOf(CREATE_QUERY_METHOD_NAME,
+      CREATE_LONG_QUERY_METHOD_NAME, CREATE_STRING_QUERY_METHOD_NAME,
+      CREATE_EXISTS_QUERY_METHOD_NAME, QUERY_METHOD_NAME)
 
   override fun visitMethod(context: JavaContext, call: UCallExpression, method: PsiMethod) {
     val evaluator = context.evaluator
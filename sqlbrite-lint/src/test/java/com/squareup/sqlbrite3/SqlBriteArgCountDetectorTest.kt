@@ -37,6 +37,9 @@ class SqlBriteArgCountDetectorTest {
         // simulate createQuery with SupportSQLiteQuery query parameter
         public void createQuery(String table, int something) {
         }
+
+        public void createLongQuery(String table, String sql, Object... args) {
+        }
       }
       """.trimIndent()
     )
@@ -204,4 +207,34 @@ class SqlBriteArgCountDetectorTest {
             "      ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n" +
             "1 errors, 0 warnings")
   }
-}
\ No newline at end of file
+
+  @Test
+  fun createLongQueryMethodWithWrongNumberOfArguments() {
+    lint().files(
+        BRITE_DATABASE_STUB,
+        java(
+            """
+              package test.pkg;
+
+              import com.squareup.sqlbrite3.BriteDatabase;
+
+              public class Test {
+                  private static final String QUERY = "SELECT COUNT(*) FROM table WHERE id = ?";
+
+                  public void test() {
+                    BriteDatabase db = new BriteDatabase();
+                    db.createLongQuery("table", QUERY);
+                  }
+
+              }
+            """.trimIndent()))
+        .issues(SqlBriteArgCountDetector.ISSUE)
+        .run()
+        .expect("src/test/pkg/Test.java:10: " +
+            "Error: Wrong argument count, query SELECT COUNT(*) FROM table WHERE id = ?" +
+            " requires 1 argument, but was provided 0 arguments [SqlBriteArgCount]\n" +
+            "      db.createLongQuery(\"table\", QUERY);\n" +
+            "      ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n" +
+            "1 errors, 0 warnings")
+  }
+}
@@ -20,6 +20,10 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentProvider;
 import com.squareup.sqlbrite3.SqlBrite.Query;
@@ -31,8 +35,11 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public final class BriteContentResolverTest
     extends ProviderTestCase2<BriteContentResolverTest.TestContentProvider> {
@@ -47,6 +54,8 @@ public final class BriteContentResolverTest
   private final PublishSubject<Object> killSwitch = PublishSubject.create();
 
   private ContentResolver contentResolver;
+  private SqlBrite.Logger logger;
+  private ObservableTransformer<Query, Query> queryTransformer;
   private BriteContentResolver db;
 
   public BriteContentResolverTest() {
@@ -57,17 +66,16 @@ public final class BriteContentResolverTest
     super.setUp();
     contentResolver = getMockContentResolver();
 
-    SqlBrite.Logger logger = new SqlBrite.Logger() {
+    logger = new SqlBrite.Logger() {
       @Override public void log(String message) {
         logs.add(message);
       }
     };
-    ObservableTransformer<Query, Query> queryTransformer =
-        new ObservableTransformer<Query, Query>() {
-          @Override public ObservableSource<Query> apply(Observable<Query> upstream) {
-            return upstream.takeUntil(killSwitch);
-          }
-        };
+    queryTransformer = new ObservableTransformer<Query, Query>() {
+      @Override public ObservableSource<Query> apply(Observable<Query> upstream) {
+        return upstream.takeUntil(killSwitch);
+      }
+    };
     db = new BriteContentResolver(contentResolver, logger, scheduler, queryTransformer);
 
     getProvider().init(getContext().getContentResolver());
@@ -132,6 +140,43 @@ public final class BriteContentResolverTest
     assertThat(logs).isEmpty();
   }
 
+  public void testSubscriptionsShareContentObserver() {
+    RecordingObserver o2 = new BlockingRecordingObserver();
+    db.createQuery(TABLE, null, null, null, null, false).subscribe(o);
+    db.createQuery(TABLE, null, null, null, null, false).subscribe(o2);
+    o.assertCursor().isExhausted();
+    o2.assertCursor().isExhausted();
+    assertThat(db.observers.observerCount()).isEqualTo(1);
+
+    contentResolver.insert(TABLE, values("key1", "val1"));
+    o.assertCursor().hasRow("key1", "val1").isExhausted();
+    o2.assertCursor().hasRow("key1", "val1").isExhausted();
+
+    o2.dispose();
+    assertThat(db.observers.observerCount()).isEqualTo(1);
+    o.dispose();
+    assertThat(db.observers.observerCount()).isEqualTo(0);
+    o2.assertNoMoreEvents();
+  }
+
+  public void testObserverThreadOnlyRunsWhileSubscribed() {
+    assertThat(db.observers.isThreadRunning()).isFalse();
+
+    db.createQuery(TABLE, null, null, null, null, false).subscribe(o);
+    o.assertCursor().isExhausted();
+    assertThat(db.observers.isThreadRunning()).isTrue();
+
+    o.dispose();
+    assertThat(db.observers.isThreadRunning()).isFalse();
+
+    RecordingObserver o2 = new BlockingRecordingObserver();
+    db.createQuery(TABLE, null, null, null, null, false).subscribe(o2);
+    o2.assertCursor().isExhausted();
+    contentResolver.insert(TABLE, values("key1", "val1"));
+    o2.assertCursor().hasRow("key1", "val1").isExhausted();
+    o2.dispose();
+  }
+
   public void testQueryNotNotifiedWhenQueryTransformerDisposed() {
     db.createQuery(TABLE, null, null, null, null, false).subscribe(o);
     o.assertCursor().isExhausted();
@@ -157,6 +202,76 @@ public final class BriteContentResolverTest
     o.assertCursor().hasRow("key1", "val1").isExhausted();
   }
 
+  public void testCoalescedQueryFoldsPendingNotifications() throws InterruptedException {
+    // Count the changes dispatched to the shared observer to know when all of them arrived.
+    final Semaphore dispatched = new Semaphore(0);
+    Handler handler = new Handler(Looper.getMainLooper()) {
+      @Override public void dispatchMessage(Message message) {
+        super.dispatchMessage(message);
+        dispatched.release();
+      }
+    };
+    BriteContentResolver resolver =
+        new BriteContentResolver(contentResolver, logger, scheduler, queryTransformer, handler);
+    RecordingObserver observer = new RecordingObserver();
+    scheduler.runTasksImmediately(false);
+
+    resolver.createQuery(TABLE, null, null, null, null, false, 0, MILLISECONDS).subscribe(observer);
+    observer.assertNoMoreEvents();
+    scheduler.triggerActions();
+    observer.assertCursor().isExhausted();
+
+    contentResolver.insert(TABLE, values("key1", "val1"));
+    contentResolver.insert(TABLE, values("key2", "val2"));
+    contentResolver.insert(TABLE, values("key3", "val3"));
+    assertThat(dispatched.tryAcquire(3, 5, SECONDS)).isTrue();
+    observer.assertNoMoreEvents();
+    scheduler.triggerActions();
+    observer.assertCursor()
+        .hasRow("key1", "val1")
+        .hasRow("key2", "val2")
+        .hasRow("key3", "val3")
+        .isExhausted();
+    observer.assertNoMoreEvents();
+    observer.dispose();
+  }
+
+  public void testDescendantChangeIgnoredWhenNotObservingDescendants() {
+    if (Build.VERSION.SDK_INT < 16) {
+      return; // Changed uri is not reported.
+    }
+    RecordingObserver o2 = new BlockingRecordingObserver();
+    db.createQuery(AUTHORITY, null, null, null, null, true).subscribe(o);
+    db.createQuery(AUTHORITY, null, null, null, null, false).subscribe(o2);
+    o.assertCursor().isExhausted();
+    o2.assertCursor().isExhausted();
+    assertThat(db.observers.observerCount()).isEqualTo(1);
+
+    contentResolver.insert(TABLE, values("key1", "val1"));
+    o.assertCursor().hasRow("key1", "val1").isExhausted();
+    o2.assertNoMoreEvents();
+    o2.dispose();
+  }
+
+  public void testRegistrationNarrowsWhenLastDescendantListenerLeaves() {
+    if (Build.VERSION.SDK_INT < 16) {
+      return; // Changed uri is not reported.
+    }
+    RecordingObserver descendants = new BlockingRecordingObserver();
+    db.createQuery(AUTHORITY, null, null, null, null, true).subscribe(descendants);
+    db.createQuery(AUTHORITY, null, null, null, null, false).subscribe(o);
+    descendants.assertCursor().isExhausted();
+    o.assertCursor().isExhausted();
+
+    descendants.dispose();
+    assertThat(db.observers.observerCount()).isEqualTo(1);
+
+    contentResolver.insert(TABLE, values("key1", "val1"));
+    o.assertNoMoreEvents();
+    contentResolver.notifyChange(AUTHORITY, null);
+    o.assertCursor().hasRow("key1", "val1").isExhausted();
+  }
+
   private ContentValues values(String key, String value) {
     ContentValues result = new ContentValues();
     result.put(KEY, key);
@@ -28,17 +28,24 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteException;
 import android.os.Build;
+import android.os.OperationCanceledException;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SdkSuppress;
 import android.support.test.runner.AndroidJUnit4;
 import com.squareup.sqlbrite3.BriteDatabase.Transaction;
 import com.squareup.sqlbrite3.RecordingObserver.CursorAssert;
 import com.squareup.sqlbrite3.TestDb.Employee;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.ObservableSource;
 import io.reactivex.ObservableTransformer;
+import io.reactivex.disposables.Disposable;
 import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.observers.TestObserver;
 import io.reactivex.subjects.PublishSubject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -48,6 +55,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -57,9 +66,11 @@ import org.junit.runner.RunWith;
 
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE;
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_REPLACE;
 import static com.google.common.truth.Truth.assertThat;
 import static com.squareup.sqlbrite3.SqlBrite.Query;
 import static com.squareup.sqlbrite3.TestDb.BOTH_TABLES;
+import static com.squareup.sqlbrite3.TestDb.EmployeeTable.ID;
 import static com.squareup.sqlbrite3.TestDb.EmployeeTable.NAME;
 import static com.squareup.sqlbrite3.TestDb.EmployeeTable.USERNAME;
 import static com.squareup.sqlbrite3.TestDb.SELECT_EMPLOYEES;
@@ -74,6 +85,12 @@ import static org.junit.Assert.fail;
 
 @RunWith(AndroidJUnit4.class) //
 public final class BriteDatabaseTest {
+  private static final Function<Cursor, Long> ID_MAPPER = new Function<Cursor, Long>() {
+    @Override public Long apply(Cursor cursor) {
+      return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+    }
+  };
+
   private final TestDb testDb = new TestDb();
   private final List<String> logs = new ArrayList<>();
   private final RecordingObserver o = new RecordingObserver();
@@ -82,6 +99,7 @@ public final class BriteDatabaseTest {
 
   @Rule public final TemporaryFolder dbFolder = new TemporaryFolder();
 
+  private SupportSQLiteOpenHelper helper;
   private SupportSQLiteDatabase real;
   private BriteDatabase db;
 
@@ -92,7 +110,7 @@ public final class BriteDatabaseTest {
         .build();
 
     Factory factory = new FrameworkSQLiteOpenHelperFactory();
-    SupportSQLiteOpenHelper helper = factory.create(configuration);
+    helper = factory.create(configuration);
     real = helper.getWritableDatabase();
 
     SqlBrite.Logger logger = new SqlBrite.Logger() {
@@ -181,25 +199,825 @@ public final class BriteDatabaseTest {
         .hasRow("bob", "Bob Bobberson")
         .hasRow("eve", "Eve Evenson")
         .isExhausted();
-  }
+  }
+
+  @Test public void queryWithQueryObject() {
+    db.createQuery(TABLE_EMPLOYEE, new SimpleSQLiteQuery(SELECT_EMPLOYEES)).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void queryMapToList() {
+    List<Employee> employees = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .mapToList(Employee.MAPPER)
+        .blockingFirst();
+    assertThat(employees).containsExactly( //
+        new Employee("alice", "Alice Allison"), //
+        new Employee("bob", "Bob Bobberson"), //
+        new Employee("eve", "Eve Evenson"));
+  }
+
+  @Test public void queryMapToListWithIdentityMapReusesUnchangedRows() {
+    Function<Cursor, Employee> mapper =
+        IdentityMap.<Employee>create(ID).mapper(Employee.MAPPER);
+    String sql = "SELECT " + ID + ", " + USERNAME + ", " + NAME + " FROM " + TABLE_EMPLOYEE;
+    List<Employee> first = db.createQuery(TABLE_EMPLOYEE, sql)
+        .mapToList(mapper)
+        .blockingFirst();
+    Employee bob = db.createQuery(TABLE_EMPLOYEE, sql + " WHERE " + USERNAME + " = 'bob'")
+        .mapToOne(mapper)
+        .blockingFirst();
+    assertThat(bob).isSameAs(first.get(1));
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Alice Smith");
+    db.update(TABLE_EMPLOYEE, CONFLICT_NONE, values, USERNAME + " = 'alice'");
+    List<Employee> second = db.createQuery(TABLE_EMPLOYEE, sql)
+        .mapToList(mapper)
+        .blockingFirst();
+    assertThat(second.get(0)).isEqualTo(new Employee("alice", "Alice Smith"));
+    assertThat(second.get(1)).isSameAs(bob);
+    assertThat(second.get(2)).isSameAs(first.get(2));
+  }
+
+  @Test public void identityMapKeepsRowsOfDifferentProjectionsApart() {
+    Function<Cursor, Employee> mapper =
+        IdentityMap.<Employee>create(ID).mapper(Employee.MAPPER);
+    String sql = "SELECT " + ID + ", " + USERNAME + ", " + NAME + " FROM " + TABLE_EMPLOYEE;
+    String wide = "SELECT " + ID + ", " + USERNAME + ", " + NAME + ", 1 AS extra FROM "
+        + TABLE_EMPLOYEE;
+    List<Employee> first = db.createQuery(TABLE_EMPLOYEE, sql).mapToList(mapper).blockingFirst();
+    // Hashes differently but must not evict the rows of the other projection.
+    db.createQuery(TABLE_EMPLOYEE, wide).mapToList(mapper).blockingFirst();
+
+    List<Employee> second = db.createQuery(TABLE_EMPLOYEE, sql).mapToList(mapper).blockingFirst();
+    assertThat(second.get(0)).isSameAs(first.get(0));
+  }
+
+  @Test public void identityMapWithVersionColumn() {
+    Function<Cursor, Employee> mapper =
+        IdentityMap.<Employee>create(ID, "version").mapper(Employee.MAPPER);
+    String sql = "SELECT " + ID + ", " + USERNAME + ", " + NAME + ", 1 AS version FROM "
+        + TABLE_EMPLOYEE;
+    List<Employee> first = db.createQuery(TABLE_EMPLOYEE, sql).mapToList(mapper).blockingFirst();
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Alice Smith");
+    db.update(TABLE_EMPLOYEE, CONFLICT_NONE, values, USERNAME + " = 'alice'");
+    List<Employee> second = db.createQuery(TABLE_EMPLOYEE, sql).mapToList(mapper).blockingFirst();
+    // The version did not change so neither did the instance.
+    assertThat(second.get(0)).isSameAs(first.get(0));
+  }
+
+  @Test public void queryMapToListDistinctUntilChangedSkipsUnchangedResults() {
+    TestObserver<List<Employee>> employees = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .mapToListDistinctUntilChanged(Employee.MAPPER)
+        .test();
+    employees.assertValueCount(1);
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Bob Bobberson");
+    db.update(TABLE_EMPLOYEE, CONFLICT_NONE, values, USERNAME + " = 'bob'");
+    employees.assertValueCount(1);
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    employees.assertValueCount(2);
+    assertThat(employees.values().get(1)).containsExactly( //
+        new Employee("alice", "Alice Allison"), //
+        new Employee("bob", "Bob Bobberson"), //
+        new Employee("eve", "Eve Evenson"), //
+        new Employee("john", "John Johnson"));
+    employees.dispose();
+  }
+
+  @Test public void createQueriesReadsTablesFromOneSnapshot() {
+    TestObserver<String> counts = db.createQueries(BOTH_TABLES,
+        new Function<BriteDatabase.Snapshot, String>() {
+          @Override public String apply(BriteDatabase.Snapshot snapshot) {
+            return count(snapshot, TABLE_EMPLOYEE) + "/" + count(snapshot, TABLE_MANAGER);
+          }
+        }).test();
+    counts.assertValues("3/1");
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    counts.assertValues("3/1", "4/1");
+
+    db.delete(TABLE_MANAGER, null);
+    counts.assertValues("3/1", "4/1", "4/0");
+    counts.dispose();
+  }
+
+  @Test public void createQueriesRereadsWhenWriteCommitsWhileReading() {
+    final AtomicInteger reads = new AtomicInteger();
+    TestObserver<String> counts = db.createQueries(BOTH_TABLES,
+        new Function<BriteDatabase.Snapshot, String>() {
+          @Override public String apply(BriteDatabase.Snapshot snapshot) {
+            int employees = count(snapshot, TABLE_EMPLOYEE);
+            if (reads.getAndIncrement() == 0) {
+              // Does not notify queries, but commits between the two reads.
+              db.execute("INSERT INTO " + TABLE_EMPLOYEE + " (username, name) "
+                  + "VALUES ('john', 'John Johnson')");
+            }
+            return employees + "/" + count(snapshot, TABLE_MANAGER);
+          }
+        }).test();
+    counts.assertValues("4/1");
+    assertThat(reads.get()).isEqualTo(2);
+    counts.dispose();
+  }
+
+  @Test public void createQueriesFallsBackToTransactionUnderContention() {
+    db.setLoggingEnabled(true);
+    final AtomicInteger reads = new AtomicInteger();
+    TestObserver<Integer> counts = db.createQueries(BOTH_TABLES,
+        new Function<BriteDatabase.Snapshot, Integer>() {
+          @Override public Integer apply(BriteDatabase.Snapshot snapshot) {
+            reads.incrementAndGet();
+            db.execute("UPDATE " + TABLE_EMPLOYEE + " SET name = name");
+            return count(snapshot, TABLE_EMPLOYEE);
+          }
+        }).test();
+    counts.assertValues(3);
+    assertThat(reads.get()).isEqualTo(BriteDatabase.SNAPSHOT_ATTEMPTS + 1);
+    assertThat(logs).contains("SNAPSHOT BEGIN (transaction)\n  tables: " + BOTH_TABLES);
+    counts.dispose();
+  }
+
+  private static int count(BriteDatabase.Snapshot snapshot, String table) {
+    Cursor cursor = snapshot.query("SELECT COUNT(*) FROM " + table);
+    try {
+      assertThat(cursor.moveToNext()).isTrue();
+      return cursor.getInt(0);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test public void queryBatchingRunsAffectedQueriesTogether() {
+    db.setQueryBatchingEnabled(true);
+    RecordingObserver o2 = new RecordingObserver();
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    db.createQuery(BOTH_TABLES, SELECT_MANAGER_LIST).subscribe(o2);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    o2.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .isExhausted();
+
+    db.setLoggingEnabled(true);
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    assertThat(logs).contains("BATCH BEGIN 2 queries\n  tables: [employee]");
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+    o2.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .isExhausted();
+
+    o2.dispose();
+    o2.assertNoMoreEvents();
+  }
+
+  @Test public void queryBatchingSkipsQueriesWhichDoNotReadTheCursor() {
+    db.setQueryBatchingEnabled(true);
+    TestObserver<Long> count = db.createLongQuery(TABLE_EMPLOYEE, "SELECT COUNT(*) FROM "
+        + TABLE_EMPLOYEE).test();
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.setLoggingEnabled(true);
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    for (String log : logs) {
+      assertThat(log).doesNotContain("BATCH");
+    }
+    count.assertValues(3L, 4L);
+    count.dispose();
+  }
+
+  @Test public void queryBatchingSkipsPausedQueries() {
+    db.setQueryBatchingEnabled(true);
+    PublishSubject<Boolean> paused = PublishSubject.create();
+    TestObserver<List<Employee>> employees = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .mapToList(Employee.MAPPER)
+        .test();
+    TestObserver<List<Employee>> others = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .mapToList(Employee.MAPPER)
+        .test();
+    TestObserver<List<Employee>> pausedEmployees = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .pauseWhen(paused)
+        .mapToList(Employee.MAPPER)
+        .test();
+    paused.onNext(true);
+    // The first notification held back by the pause shows that the query is not being run.
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+
+    db.setLoggingEnabled(true);
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    assertThat(logs).contains("BATCH BEGIN 2 queries\n  tables: [employee]");
+    assertThat(employees.values()).hasSize(3);
+    assertThat(employees.values().get(2)).hasSize(5);
+    assertThat(others.values()).hasSize(3);
+    pausedEmployees.assertValueCount(1);
+
+    // Only a single query is left to run, which does not need a batch.
+    others.dispose();
+    logs.clear();
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("mike", "Mike Mikerson"));
+    for (String log : logs) {
+      assertThat(log).doesNotContain("BATCH");
+    }
+    assertThat(employees.values().get(3)).hasSize(6);
+
+    paused.onNext(false);
+    assertThat(pausedEmployees.values()).hasSize(2);
+    assertThat(pausedEmployees.values().get(1)).hasSize(6);
+    employees.dispose();
+    pausedEmployees.dispose();
+  }
+
+  @Test public void queryScheduledAfterChangeAlreadyReadIsSkipped() {
+    scheduler.runTasksImmediately(false);
+
+    TestObserver<List<Employee>> employees = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .mapToList(Employee.MAPPER)
+        .test();
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    employees.assertNoValues();
+
+    // The initial run already sees the insert so the run for its trigger is redundant.
+    scheduler.triggerActions();
+    employees.assertValueCount(1);
+    assertThat(employees.values().get(0)).contains(new Employee("john", "John Johnson"));
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    scheduler.triggerActions();
+    employees.assertValueCount(2);
+    employees.dispose();
+  }
+
+  @Test public void triggersBeforeARunAreCoalesced() {
+    scheduler.runTasksImmediately(false);
+
+    // The queries are never run so every trigger leaves them stale.
+    TestObserver<Query> queries = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).test();
+    scheduler.triggerActions();
+    queries.assertValueCount(1);
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "john");
+    queries.assertValueCount(1);
+    scheduler.triggerActions();
+    queries.assertValueCount(2);
+    queries.dispose();
+  }
+
+  @Test public void eachSubscriberGetsItsOwnQuery() {
+    QueryObservable query = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
+    TestObserver<Query> first = query.test();
+    TestObserver<List<Employee>> second = query.mapToList(Employee.MAPPER).test();
+    first.assertValueCount(1);
+    second.assertValueCount(1);
+
+    // Running the second subscriber's query must not make the first one look up to date.
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    first.assertValueCount(2);
+    second.assertValueCount(2);
+    assertThat(first.values().get(0)).isSameAs(first.values().get(1));
+    TestObserver<Query> third = query.test();
+    assertThat(third.values().get(0)).isNotSameAs(first.values().get(0));
+    first.dispose();
+    second.dispose();
+    third.dispose();
+  }
+
+  @Test public void queryDisposedBeforeItsRunIsNotEmitted() {
+    scheduler.runTasksImmediately(false);
+
+    TestObserver<Query> queries = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).test();
+    queries.dispose();
+    scheduler.triggerActions();
+    queries.assertNoValues();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    scheduler.triggerActions();
+    queries.assertNoValues();
+  }
+
+  @Test public void queryDisposedDuringItsRunStopsObserving() {
+    scheduler.runTasksImmediately(false);
+
+    final AtomicInteger runs = new AtomicInteger();
+    final AtomicReference<Disposable> disposable = new AtomicReference<>();
+    disposable.set(db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .subscribe(new Consumer<Query>() {
+          @Override public void accept(Query query) {
+            Cursor cursor = query.run();
+            assertThat(cursor).isNotNull();
+            cursor.close();
+            runs.incrementAndGet();
+            disposable.get().dispose();
+          }
+        }));
+    scheduler.triggerActions();
+    assertThat(runs.get()).isEqualTo(1);
+    assertThat(disposable.get().isDisposed()).isTrue();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    scheduler.triggerActions();
+    assertThat(runs.get()).isEqualTo(1);
+  }
+
+  @Test public void queryTransformerErrorStopsObserving() {
+    final AtomicInteger emitted = new AtomicInteger();
+    ObservableTransformer<Query, Query> queryTransformer =
+        new ObservableTransformer<Query, Query>() {
+          @Override public ObservableSource<Query> apply(Observable<Query> upstream) {
+            return upstream
+                .doOnNext(new Consumer<Query>() {
+                  @Override public void accept(Query query) {
+                    emitted.incrementAndGet();
+                  }
+                })
+                .map(new Function<Query, Query>() {
+                  @Override public Query apply(Query query) {
+                    if (emitted.get() > 1) {
+                      throw new IllegalStateException("Broken transformer");
+                    }
+                    return query;
+                  }
+                });
+          }
+        };
+    BriteDatabase db = new BriteDatabase(helper, new SqlBrite.Logger() {
+      @Override public void log(String message) {
+      }
+    }, scheduler, queryTransformer);
+
+    TestObserver<Query> queries = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).test();
+    queries.assertValueCount(1);
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    queries.assertError(IllegalStateException.class);
+    assertThat(emitted.get()).isEqualTo(2);
+
+    // The error disposed the subscription so later triggers no longer reach the transformer.
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    assertThat(emitted.get()).isEqualTo(2);
+  }
+
+  @Test public void tableVersionAdvancesOncePerTrigger() {
+    assertThat(db.tableVersion(TABLE_EMPLOYEE)).isEqualTo(0);
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    assertThat(db.tableVersion(TABLE_EMPLOYEE)).isEqualTo(1);
+    assertThat(db.tableVersion(TABLE_MANAGER)).isEqualTo(0);
+
+    Transaction transaction = db.newTransaction();
+    try {
+      db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+      db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nancy", "Nancy Nancers"));
+      assertThat(db.tableVersion(TABLE_EMPLOYEE)).isEqualTo(1);
+      transaction.markSuccessful();
+    } finally {
+      transaction.end();
+    }
+    assertThat(db.tableVersion(TABLE_EMPLOYEE)).isEqualTo(2);
+  }
+
+  @Test public void triggerWindowMergesTriggers() {
+    BriteDatabase db = new BriteDatabase(helper, SqlBrite.DEFAULT_LOGGER, scheduler,
+        SqlBrite.DEFAULT_TRANSFORMER, MILLISECONDS.toNanos(16), scheduler,
+        Collections.<String, Long>emptyMap());
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    o.assertNoMoreEvents();
+
+    scheduler.advanceTimeBy(16, MILLISECONDS);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .hasRow("nick", "Nick Nickers")
+        .isExhausted();
+  }
+
+  @Test public void throttledTableNotifiesOnLeadingAndTrailingEdge() {
+    BriteDatabase db = new BriteDatabase(helper, SqlBrite.DEFAULT_LOGGER, scheduler,
+        SqlBrite.DEFAULT_TRANSFORMER, 0, null,
+        Collections.singletonMap(TABLE_EMPLOYEE, MILLISECONDS.toNanos(100)));
+    db.createQuery(TABLE_EMPLOYEE, "SELECT COUNT(*) FROM " + TABLE_EMPLOYEE).subscribe(o);
+    o.assertCursor().hasRow("3").isExhausted();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    o.assertCursor().hasRow("4").isExhausted();
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nancy", "Nancy Nancers"));
+    o.assertNoMoreEvents();
+
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+    o.assertCursor().hasRow("6").isExhausted();
+
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+    o.assertNoMoreEvents();
+
+    // The interval ended without changes so the next one notifies immediately.
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "john");
+    o.assertCursor().hasRow("5").isExhausted();
+  }
+
+  @Test public void longQueryEmitsValueOnTrigger() {
+    TestObserver<Long> count =
+        db.createLongQuery(TABLE_EMPLOYEE, "SELECT COUNT(*) FROM " + TABLE_EMPLOYEE).test();
+    count.assertValues(3L);
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    count.assertValues(3L, 4L);
+    count.dispose();
+  }
+
+  @Test public void stringQueryEmitsValueOnTrigger() {
+    TestObserver<String> name = db.createStringQuery(TABLE_EMPLOYEE,
+        "SELECT " + NAME + " FROM " + TABLE_EMPLOYEE + " WHERE " + USERNAME + " = ?", "bob")
+        .test();
+    name.assertValues("Bob Bobberson");
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Robert Bobberson");
+    db.update(TABLE_EMPLOYEE, CONFLICT_NONE, values, USERNAME + " = 'bob'");
+    name.assertValues("Bob Bobberson", "Robert Bobberson");
+    name.dispose();
+  }
+
+  @Test public void existsQueryEmitsValueOnTrigger() {
+    TestObserver<Boolean> exists = db.createExistsQuery(TABLE_EMPLOYEE,
+        "SELECT * FROM " + TABLE_EMPLOYEE + " WHERE " + USERNAME + " = ?", "john").test();
+    exists.assertValues(false);
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    exists.assertValues(false, true);
+    exists.dispose();
+  }
+
+  @Test public void countAggregateAppliesInsertsAndDeletesWithoutRecomputing() {
+    TestObserver<Long> count = db.createCountAggregate(TABLE_EMPLOYEE, null, null).test();
+    count.assertValues(3L);
+
+    db.setLoggingEnabled(true);
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    count.assertValues(3L, 4L);
+    for (String log : logs) {
+      assertThat(log).doesNotContain("COUNT(*)");
+    }
+
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "john");
+    count.assertValues(3L, 4L, 3L);
+    for (String log : logs) {
+      assertThat(log).doesNotContain("COUNT(*)");
+    }
+
+    // No delta is known for arbitrary SQL.
+    db.executeAndTrigger(TABLE_EMPLOYEE,
+        "DELETE FROM " + TABLE_EMPLOYEE + " WHERE " + USERNAME + " = 'bob'");
+    count.assertValues(3L, 4L, 3L, 2L);
+    assertThat(logs.get(logs.size() - 1)).contains("COUNT(*)");
+    count.dispose();
+  }
+
+  @Test public void countAggregateWithPredicate() {
+    TestObserver<Long> count = db.createCountAggregate(TABLE_EMPLOYEE, USERNAME, "john").test();
+    count.assertValues(0L);
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    count.assertValues(0L, 0L);
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    count.assertValues(0L, 0L, 1L);
+    db.delete(TABLE_EMPLOYEE, USERNAME + " IN (?, ?)", "nick", "john");
+    count.assertValues(0L, 0L, 1L, 0L);
+    count.dispose();
+  }
+
+  @Test public void countAggregateLetsSqliteMatchTextByAffinity() {
+    db.execute("CREATE TABLE codes (code INTEGER)");
+    TestObserver<Long> count = db.createCountAggregate("codes", "code", "1").test();
+    count.assertValues(0L);
+
+    ContentValues values = new ContentValues();
+    values.put("code", "01"); // Stored as the integer 1.
+    db.insert("codes", CONFLICT_NONE, values);
+    count.assertValues(0L, 1L);
+    count.dispose();
+  }
+
+  @Test public void countAggregateLetsSqliteMatchTextByCollation() {
+    db.execute("CREATE TABLE labels (label TEXT COLLATE NOCASE)");
+    TestObserver<Long> count = db.createCountAggregate("labels", "label", "foo").test();
+    count.assertValues(0L);
+
+    ContentValues values = new ContentValues();
+    values.put("label", "Foo");
+    db.insert("labels", CONFLICT_NONE, values);
+    count.assertValues(0L, 1L);
+    count.dispose();
+  }
+
+  @Test public void countAggregateAppliesInsertsOnlyOnCommit() {
+    TestObserver<Long> count = db.createCountAggregate(TABLE_EMPLOYEE, null, null).test();
+    count.assertValues(3L);
+
+    Transaction transaction = db.newTransaction();
+    try {
+      db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    } finally {
+      transaction.end();
+    }
+    count.assertValues(3L);
+
+    transaction = db.newTransaction();
+    try {
+      db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+      db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+      transaction.markSuccessful();
+    } finally {
+      transaction.end();
+    }
+    count.assertValues(3L, 5L);
+    count.dispose();
+  }
+
+  @Test public void mirrorQueryReadsFromMemoryUntilChanged() {
+    db.mirrorTable(TABLE_EMPLOYEE);
+    db.createMirrorQuery(TABLE_EMPLOYEE).subscribe(o);
+    o.assertCursor()
+        .hasRow("1", "alice", "Alice Allison")
+        .hasRow("2", "bob", "Bob Bobberson")
+        .hasRow("3", "eve", "Eve Evenson")
+        .isExhausted();
+
+    db.setLoggingEnabled(true);
+    Cursor cursor = db.queryMirror(TABLE_EMPLOYEE);
+    assertThat(cursor.getCount()).isEqualTo(3);
+    cursor.close();
+    assertThat(logs).isEmpty();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    o.assertCursor()
+        .hasRow("1", "alice", "Alice Allison")
+        .hasRow("2", "bob", "Bob Bobberson")
+        .hasRow("3", "eve", "Eve Evenson")
+        .hasRow("4", "john", "John Johnson")
+        .isExhausted();
+  }
+
+  @Test public void mirrorCursorConvertsTextLikeSqlite() {
+    db.mirrorTable(TABLE_EMPLOYEE);
+    Cursor cursor = db.queryMirror(TABLE_EMPLOYEE);
+    assertThat(cursor.moveToFirst()).isTrue();
+    assertThat(cursor.getLong(1)).isEqualTo(0);
+    assertThat(cursor.getDouble(1)).isEqualTo(0.0);
+    cursor.close();
+
+    assertThat(MirroredTable.parseLong(" 42 apples")).isEqualTo(42);
+    assertThat(MirroredTable.parseLong("-7")).isEqualTo(-7);
+    assertThat(MirroredTable.parseLong("99999999999999999999")).isEqualTo(Long.MAX_VALUE);
+    assertThat(MirroredTable.parseDouble("1.5e3x")).isEqualTo(1500.0);
+    assertThat(MirroredTable.parseDouble("2e")).isEqualTo(2.0);
+    assertThat(MirroredTable.parseDouble(".")).isEqualTo(0.0);
+  }
+
+  @Test public void mirrorCursorConvertsRealsAndBlobsLikeSqlite() {
+    real.execSQL("CREATE TABLE samples (_id INTEGER PRIMARY KEY, r REAL, b BLOB)");
+    double[] reals = { 1.0, 0.1, 1e20, 1.5e-5, 1.0 / 3, 123456789012345.0, -2.5 };
+    for (double r : reals) {
+      real.execSQL("INSERT INTO samples (r, b) VALUES (?, x'00ff')", new Object[] { r });
+    }
+    db.mirrorTable("samples");
+    Cursor mirror = db.queryMirror("samples");
+    Cursor text = real.query("SELECT CAST(r AS TEXT) FROM samples ORDER BY _id");
+    try {
+      while (mirror.moveToNext()) {
+        assertThat(text.moveToNext()).isTrue();
+        assertThat(mirror.getString(1)).isEqualTo(text.getString(0));
+        try {
+          mirror.getString(2);
+          fail();
+        } catch (SQLiteException e) {
+          assertThat(e).hasMessage("Unable to convert BLOB to string");
+        }
+      }
+      assertThat(text.moveToNext()).isFalse();
+    } finally {
+      mirror.close();
+      text.close();
+    }
+    assertThat(MirroredTable.formatDouble(1e15)).isEqualTo("1.0e+15");
+    assertThat(MirroredTable.formatDouble(100000000000000.0)).isEqualTo("100000000000000.0");
+  }
+
+  @Test public void mirrorQueryRequiresMirroredTable() {
+    try {
+      db.queryMirror(TABLE_EMPLOYEE);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Table is not mirrored: employee");
+    }
+  }
+
+  @Test public void changeJournalRecordsCommittedChanges() {
+    ChangeJournal journal = db.enableChangeJournal(TABLE_EMPLOYEE);
+    long john = db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    db.update(TABLE_EMPLOYEE, CONFLICT_NONE, employee("alice", "Alice Smith"), USERNAME + " = ?",
+        "alice");
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "bob");
+    db.insert(TABLE_MANAGER, CONFLICT_NONE, manager(4, 3));
+    Transaction transaction = db.newTransaction();
+    try {
+      db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    } finally {
+      transaction.end();
+    }
+
+    List<ChangeJournal.Change> changes = journal.pendingChanges("sync", 10);
+    assertThat(changes).hasSize(3);
+    assertThat(changes.get(0).table()).isEqualTo(TABLE_EMPLOYEE);
+    assertThat(changes.get(0).operation()).isEqualTo(ChangeJournal.Change.INSERT);
+    assertThat(changes.get(0).rowId()).isEqualTo(john);
+    assertThat(changes.get(0).columns()).containsExactly(USERNAME, NAME);
+    assertThat(changes.get(1).operation()).isEqualTo(ChangeJournal.Change.UPDATE);
+    assertThat(changes.get(1).rowId()).isEqualTo(1);
+    assertThat(changes.get(2).operation()).isEqualTo(ChangeJournal.Change.DELETE);
+    assertThat(changes.get(2).rowId()).isEqualTo(2);
+    assertThat(changes.get(2).columns()).isNull();
+  }
+
+  @Test public void changeJournalAcknowledgePrunesChanges() {
+    ChangeJournal journal = db.enableChangeJournal(TABLE_EMPLOYEE);
+    journal.register("sync", 0);
+    journal.register("backup", 0);
+    db.delete(TABLE_EMPLOYEE, null);
+    List<ChangeJournal.Change> changes = journal.pendingChanges("sync", 2);
+    assertThat(changes).hasSize(2);
+
+    journal.acknowledge("sync", changes.get(1).sequence());
+    assertThat(journal.pendingChanges("sync", 10)).hasSize(1);
+    assertThat(journal.pendingChanges("backup", 10)).hasSize(3);
+
+    journal.acknowledge("backup", changes.get(1).sequence());
+    Cursor cursor = db.query("SELECT COUNT(*) FROM " + ChangeJournal.TABLE);
+    try {
+      assertThat(cursor.moveToNext()).isTrue();
+      assertThat(cursor.getLong(0)).isEqualTo(1);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test public void changeJournalAcknowledgeRequiresRegistration() {
+    ChangeJournal journal = db.enableChangeJournal(TABLE_EMPLOYEE);
+    try {
+      journal.acknowledge("sync", 1);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Consumer is not registered: sync");
+    }
+  }
+
+  @Test public void changeJournalRegisteredConsumerHoldsBackPruning() {
+    ChangeJournal journal = db.enableChangeJournal(TABLE_EMPLOYEE);
+    journal.register("sync", 0);
+    journal.register("backup", journal.latestSequence());
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "bob");
+    long latest = journal.latestSequence();
+
+    journal.acknowledge("sync", latest);
+    assertThat(journal.pendingChanges("backup", 10)).hasSize(1);
+
+    journal.unregister("backup");
+    assertThat(journal.pendingChanges("backup", 10)).isEmpty();
+  }
+
+  @Test public void changeJournalRecordsRowsReplacedByInsert() {
+    ChangeJournal journal = db.enableChangeJournal(TABLE_EMPLOYEE);
+    long alice = db.insert(TABLE_EMPLOYEE, CONFLICT_REPLACE, employee("alice", "Alice Smith"));
+
+    List<ChangeJournal.Change> changes = journal.pendingChanges("sync", 10);
+    assertThat(changes).hasSize(2);
+    assertThat(changes.get(0).operation()).isEqualTo(ChangeJournal.Change.DELETE);
+    assertThat(changes.get(0).rowId()).isEqualTo(1);
+    assertThat(changes.get(1).operation()).isEqualTo(ChangeJournal.Change.INSERT);
+    assertThat(changes.get(1).rowId()).isEqualTo(alice);
+  }
+
+  @Test public void changeJournalObservableEmitsOnCommit() {
+    ChangeJournal journal = db.enableChangeJournal(TABLE_EMPLOYEE);
+    TestObserver<List<ChangeJournal.Change>> observer =
+        journal.observePendingChanges("sync", 10).test();
+    observer.assertValueCount(1);
+
+    Transaction transaction = db.newTransaction();
+    try {
+      db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+      observer.assertValueCount(1);
+      transaction.markSuccessful();
+    } finally {
+      transaction.end();
+    }
+    observer.assertValueCount(2);
+    assertThat(observer.values().get(1)).hasSize(1);
+    observer.dispose();
+  }
+
+  @Test public void queryWithCollectionArgument() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES + " WHERE " + USERNAME + " IN (?)",
+        Arrays.asList("alice", "eve")).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void queryWithCollectionArgumentDescribesUnexpandedSql() {
+    String sql = SELECT_EMPLOYEES + " WHERE " + USERNAME + " IN (?)";
+    TestObserver<Query> queries =
+        db.createQuery(TABLE_EMPLOYEE, sql, Arrays.asList("alice", "eve")).test();
+    assertThat(queries.values().get(0).toString()).isEqualTo(sql);
+    queries.dispose();
+  }
+
+  @Test public void scalarQueriesWithCollectionArgument() {
+    TestObserver<Long> count = db.createLongQuery(TABLE_EMPLOYEE, "SELECT COUNT(*) FROM "
+        + TABLE_EMPLOYEE + " WHERE " + USERNAME + " IN (?)", Arrays.asList("alice", "eve"))
+        .test();
+    TestObserver<String> name = db.createStringQuery(TABLE_EMPLOYEE, "SELECT " + NAME + " FROM "
+        + TABLE_EMPLOYEE + " WHERE " + USERNAME + " IN (?)", Collections.singletonList("eve"))
+        .test();
+    TestObserver<Boolean> exists = db.createExistsQuery(TABLE_EMPLOYEE, "SELECT 1 FROM "
+        + TABLE_EMPLOYEE + " WHERE " + USERNAME + " IN (?)", Collections.emptyList()).test();
+    count.assertValues(2L);
+    name.assertValues("Eve Evenson");
+    exists.assertValues(false);
+    count.dispose();
+    name.dispose();
+    exists.dispose();
+  }
+
+  @Test public void queryWithEmptyCollectionArgument() {
+    Cursor cursor = db.query(SELECT_EMPLOYEES + " WHERE " + ID + " NOT IN (?) AND " + NAME
+        + " != ?", Collections.emptyList(), "Bob Bobberson");
+    assertCursor(cursor)
+        .hasRow("alice", "Alice Allison")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void deleteWithCollectionArgument() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
 
-  @Test public void queryWithQueryObject() {
-    db.createQuery(TABLE_EMPLOYEE, new SimpleSQLiteQuery(SELECT_EMPLOYEES)).subscribe(o);
+    assertThat(db.delete(TABLE_EMPLOYEE, ID + " IN (?)", Arrays.asList(1L, 3L))).isEqualTo(2);
     o.assertCursor()
-        .hasRow("alice", "Alice Allison")
         .hasRow("bob", "Bob Bobberson")
-        .hasRow("eve", "Eve Evenson")
         .isExhausted();
   }
 
-  @Test public void queryMapToList() {
-    List<Employee> employees = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
-        .mapToList(Employee.MAPPER)
-        .blockingFirst();
-    assertThat(employees).containsExactly( //
-        new Employee("alice", "Alice Allison"), //
-        new Employee("bob", "Bob Bobberson"), //
-        new Employee("eve", "Eve Evenson"));
+  @Test public void collectionArgumentsExpandWithoutJson() {
+    CollectionArgs.Expanded expanded = CollectionArgs.expand(
+        "SELECT * FROM t WHERE a = ? AND b IN (?) AND c = '?' AND d NOT IN (?)",
+        new Object[] { 1, Arrays.asList(2, 3), Collections.emptyList() }, false);
+    assertThat(expanded.sql).isEqualTo("SELECT * FROM t WHERE a = ? AND b IN (?, ?) "
+        + "AND c = '?' AND d NOT IN (SELECT NULL WHERE 0)");
+    assertThat(expanded.args).asList().containsExactly(1, 2, 3).inOrder();
+  }
+
+  @Test public void collectionArgumentsExpandToJsonArray() {
+    CollectionArgs.Expanded expanded = CollectionArgs.expand("SELECT * FROM t WHERE b IN (?)",
+        new Object[] { Arrays.asList(1L, "a\"b", null, true) }, true);
+    assertThat(expanded.sql)
+        .isEqualTo("SELECT * FROM t WHERE b IN (SELECT value FROM json_each(?))");
+    assertThat(expanded.args).asList().containsExactly("[1,\"a\\\"b\",null,1]");
   }
 
   @Test public void queryMapToOne() {
@@ -421,6 +1239,47 @@ public final class BriteDatabaseTest {
     o.assertNoMoreEvents();
   }
 
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  @SdkSuppress(minSdkVersion = Build.VERSION_CODES.JELLY_BEAN)
+  @Test public void queryRunCanceledByNewTrigger() {
+    final AtomicReference<Query> query = new AtomicReference<>();
+    Disposable disposable = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .subscribe(new Consumer<Query>() {
+          @Override public void accept(Query value) {
+            query.set(value);
+          }
+        });
+    Cursor cursor = query.get().runCancellable();
+    assertThat(query.get().isCanceled()).isFalse();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    assertThat(query.get().isCanceled()).isTrue();
+    try {
+      cursor.getCount();
+      fail();
+    } catch (OperationCanceledException expected) {
+    } finally {
+      cursor.close();
+    }
+    disposable.dispose();
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  @SdkSuppress(minSdkVersion = Build.VERSION_CODES.JELLY_BEAN)
+  @Test public void queryRunCanceledByDispose() {
+    final AtomicReference<Query> query = new AtomicReference<>();
+    Disposable disposable = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .subscribe(new Consumer<Query>() {
+          @Override public void accept(Query value) {
+            query.set(value);
+          }
+        });
+    Cursor cursor = query.get().runCancellable();
+    disposable.dispose();
+    assertThat(query.get().isCanceled()).isTrue();
+    cursor.close();
+  }
+
   @Test public void queryOnlyNotifiedAfterSubscribe() {
     Observable<Query> query = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
     o.assertNoMoreEvents();
@@ -616,6 +1475,703 @@ public final class BriteDatabaseTest {
         .isExhausted();
   }
 
+  @Test public void compiledInsertTriggersForEachRow() {
+    BriteStatement insert = db.compileInsert(TABLE_EMPLOYEE, CONFLICT_IGNORE, USERNAME, NAME);
+    assertThat(insert.toString())
+        .isEqualTo("INSERT OR IGNORE INTO employee (username, name) VALUES (?, ?)");
+
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    assertThat(insert.bindString(1, "chad").bindString(2, "Chad Chadson").executeInsert())
+        .isEqualTo(4);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("chad", "Chad Chadson")
+        .isExhausted();
+
+    // Ignored conflicts do not trigger.
+    assertThat(insert.bindString(1, "alice").bindString(2, "Alice Allison").executeInsert())
+        .isEqualTo(-1);
+    o.assertNoMoreEvents();
+    insert.close();
+  }
+
+  @Test public void compiledUpdateTriggers() {
+    BriteStatement update =
+        db.compileUpdate(TABLE_EMPLOYEE, CONFLICT_NONE, USERNAME + " = ?", NAME);
+    assertThat(update.toString()).isEqualTo("UPDATE employee SET name = ? WHERE username = ?");
+
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    assertThat(update.bindString(1, "Bob Smith").bindString(2, "bob").executeUpdateDelete())
+        .isEqualTo(1);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Smith")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    update.close();
+  }
+
+  @Test public void compiledStatementsReachTheHooksOfInsertAndUpdate() {
+    ChangeJournal journal = db.enableChangeJournal(TABLE_EMPLOYEE);
+    TestObserver<Long> count = db.createCountAggregate(TABLE_EMPLOYEE, null, null).test();
+    count.assertValues(3L);
+
+    db.setLoggingEnabled(true);
+    BriteStatement insert = db.compileInsert(TABLE_EMPLOYEE, CONFLICT_NONE, USERNAME, NAME);
+    long john = insert.bindString(1, "john").bindString(2, "John Johnson").executeInsert();
+    insert.close();
+    count.assertValues(3L, 4L);
+    for (String log : logs) {
+      assertThat(log).doesNotContain("COUNT(*)");
+    }
+
+    BriteStatement update =
+        db.compileUpdate(TABLE_EMPLOYEE, CONFLICT_NONE, USERNAME + " = ?", NAME);
+    assertThat(update.bindString(1, "Bob Smith").bindString(2, "bob").executeUpdateDelete())
+        .isEqualTo(1);
+    update.close();
+    count.dispose();
+
+    List<ChangeJournal.Change> changes = journal.pendingChanges("sync", 10);
+    assertThat(changes).hasSize(2);
+    assertThat(changes.get(0).operation()).isEqualTo(ChangeJournal.Change.INSERT);
+    assertThat(changes.get(0).rowId()).isEqualTo(john);
+    assertThat(changes.get(1).operation()).isEqualTo(ChangeJournal.Change.UPDATE);
+    assertThat(changes.get(1).rowId()).isEqualTo(2);
+  }
+
+  @Test public void insertReturningYieldsGeneratedColumns() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    long id = db.insertReturning(TABLE_EMPLOYEE, CONFLICT_NONE,
+        employee("john", "John Johnson"), ID_MAPPER);
+    assertThat(id).isEqualTo(4);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+
+    assertThat(db.insertReturning(TABLE_EMPLOYEE, CONFLICT_IGNORE,
+        employee("john", "John Johnson"), ID_MAPPER)).isNull();
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void upsertUpdatesOrInserts() {
+    upsertUpdatesOrInserts(db);
+  }
+
+  @Test public void upsertFallsBackForJournaledTables() {
+    db.enableChangeJournal(TABLE_EMPLOYEE);
+    upsertUpdatesOrInserts(db);
+  }
+
+  @Test public void upsertFallbackMatchesBlobAndBooleanKeys() {
+    db.execute("CREATE TABLE flags (owner BLOB NOT NULL, enabled INTEGER NOT NULL, label TEXT, "
+        + "UNIQUE (owner, enabled))");
+    db.enableChangeJournal("flags");
+    String[] conflictColumns = { "owner", "enabled" };
+    ContentValues values = new ContentValues();
+    values.put("owner", new byte[] { 1, 2 });
+    values.put("enabled", true);
+    values.put("label", "first");
+    db.upsert("flags", conflictColumns, values);
+    values.put("label", "second");
+    db.upsert("flags", conflictColumns, values);
+
+    Cursor cursor = db.query("SELECT label FROM flags");
+    try {
+      assertThat(cursor.getCount()).isEqualTo(1);
+      assertThat(cursor.moveToNext()).isTrue();
+      assertThat(cursor.getString(0)).isEqualTo("second");
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private void upsertUpdatesOrInserts(BriteDatabase db) {
+    String[] conflictColumns = { USERNAME };
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.upsert(TABLE_EMPLOYEE, conflictColumns, employee("alice", "Alice Smith"));
+    o.assertCursor()
+        .hasRow("alice", "Alice Smith")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    long id = db.upsertReturning(TABLE_EMPLOYEE, conflictColumns,
+        employee("john", "John Johnson"), ID_MAPPER);
+    assertThat(id).isEqualTo(4);
+    o.assertCursor()
+        .hasRow("alice", "Alice Smith")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+
+    id = db.upsertReturning(TABLE_EMPLOYEE, conflictColumns, employee("bob", "Bob Smith"),
+        ID_MAPPER);
+    assertThat(id).isEqualTo(2);
+    o.assertCursor()
+        .hasRow("alice", "Alice Smith")
+        .hasRow("bob", "Bob Smith")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+  }
+
+  @Test public void upsertRequiresConflictColumnValues() {
+    try {
+      db.upsert(TABLE_EMPLOYEE, new String[] { ID }, employee("john", "John Johnson"));
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("No value for conflict column: _id");
+    }
+  }
+
+  @Test public void parseSqliteVersion() {
+    assertThat(BriteDatabase.parseSqliteVersion("3.8.10.2")).isEqualTo(3008010);
+    assertThat(BriteDatabase.parseSqliteVersion("3.35")).isEqualTo(3035000);
+  }
+
+  @Test public void bulkInsertTriggersOncePerChunk() {
+    List<ContentValues> rows = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      rows.add(employee("user" + i, "User " + i));
+    }
+    rows.add(employee("alice", "Alice Allison")); // Ignored.
+    final List<Long> progress = new ArrayList<>();
+    TestObserver<Query> queries = db.createQuery(TABLE_EMPLOYEE, "SELECT 1").test();
+
+    long inserted = db.bulkInsert(TABLE_EMPLOYEE, CONFLICT_IGNORE, rows.iterator(),
+        new BriteDatabase.BulkInsertProgress() {
+          @Override public void onChunkInserted(long rowsInserted) {
+            progress.add(rowsInserted);
+          }
+        });
+    assertThat(inserted).isEqualTo(1000);
+    assertThat(progress.get(progress.size() - 1)).isEqualTo(1000);
+    queries.assertValueCount(1 + progress.size());
+    queries.dispose();
+
+    Cursor cursor = db.query("SELECT COUNT(*) FROM " + TABLE_EMPLOYEE);
+    try {
+      assertThat(cursor.moveToNext()).isTrue();
+      assertThat(cursor.getLong(0)).isEqualTo(1003);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test public void bulkInsertFromFlowable() {
+    long inserted = db.bulkInsert(TABLE_EMPLOYEE, CONFLICT_NONE,
+        Flowable.just(employee("john", "John Johnson"), employee("nick", "Nick Nickers")), null);
+    assertThat(inserted).isEqualTo(2);
+  }
+
+  @Test public void bulkInsertJournalsRowsReplacedByInsert() {
+    ChangeJournal journal = db.enableChangeJournal(TABLE_EMPLOYEE);
+    long inserted = db.bulkInsert(TABLE_EMPLOYEE, CONFLICT_REPLACE, Arrays.asList(
+        employee("alice", "Alice Smith"), employee("john", "John Johnson")).iterator(), null);
+    assertThat(inserted).isEqualTo(2);
+
+    List<ChangeJournal.Change> changes = journal.pendingChanges("sync", 10);
+    assertThat(changes).hasSize(3);
+    assertThat(changes.get(0).operation()).isEqualTo(ChangeJournal.Change.DELETE);
+    assertThat(changes.get(0).rowId()).isEqualTo(1);
+    assertThat(changes.get(1).operation()).isEqualTo(ChangeJournal.Change.INSERT);
+    assertThat(changes.get(2).operation()).isEqualTo(ChangeJournal.Change.INSERT);
+  }
+
+  @Test public void bulkInsertIsRecorded() throws IOException, java.sql.SQLException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    WorkloadRecorder recorder = db.startRecording(trace, false);
+    db.bulkInsert(TABLE_EMPLOYEE, CONFLICT_NONE, Arrays.asList(
+        employee("john", "John Johnson"), employee("nick", "Nick Nickers")).iterator(), null);
+    recorder.close();
+
+    // Return to the state the recording started from.
+    db.delete(TABLE_EMPLOYEE, USERNAME + " IN (?, ?)", "john", "nick");
+
+    WorkloadReplayer.Report report = WorkloadReplayer.replay(
+        new ByteArrayInputStream(trace.toByteArray()), replayTarget(real),
+        Double.POSITIVE_INFINITY);
+    assertThat(report.failures).isEqualTo(0);
+    assertThat(report.replayed.count).isEqualTo(2);
+    assertThat(report.statements).hasSize(1);
+    assertThat(report.statements.get(0).sql).startsWith("INSERT INTO employee");
+  }
+
+  @Test public void bulkInsertChunkSizeAdapts() {
+    long target = MILLISECONDS.toNanos(BriteDatabase.BULK_TARGET_MILLIS);
+    assertThat(BriteDatabase.nextChunkSize(256, target / 4, false)).isEqualTo(512);
+    assertThat(BriteDatabase.nextChunkSize(256, target * 2, false)).isEqualTo(128);
+    assertThat(BriteDatabase.nextChunkSize(256, target / 4, true)).isEqualTo(128);
+    assertThat(BriteDatabase.nextChunkSize(BriteDatabase.BULK_MIN_CHUNK, target, true))
+        .isEqualTo(BriteDatabase.BULK_MIN_CHUNK);
+    assertThat(BriteDatabase.nextChunkSize(BriteDatabase.BULK_MAX_CHUNK, 1, false))
+        .isEqualTo(BriteDatabase.BULK_MAX_CHUNK);
+  }
+
+  @Test public void exportCsv() throws IOException {
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "Johnson, \"John\""));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.export(ExportFormat.CSV, out, "SELECT " + ID + ", " + USERNAME + ", " + NAME + ", NULL "
+        + "AS nothing FROM " + TABLE_EMPLOYEE + " WHERE " + ID + " IN (?)", Arrays.asList(1, 4))
+        .test()
+        .assertValue(2L);
+    assertThat(out.toString("UTF-8")).isEqualTo(""
+        + "_id,username,name,nothing\r\n"
+        + "1,alice,Alice Allison,\r\n"
+        + "4,john,\"Johnson, \"\"John\"\"\",\r\n");
+  }
+
+  @Test public void exportJsonLines() throws IOException {
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("j\u00fcrgen", "J\u00fcrgen \"J\"\n"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.export(ExportFormat.JSON_LINES, out, "SELECT " + ID + ", " + NAME + ", X'0aff' AS data, "
+        + "0.5 AS half FROM " + TABLE_EMPLOYEE + " WHERE " + ID + " > ?", 3)
+        .test()
+        .assertValue(1L);
+    assertThat(out.toString("UTF-8")).isEqualTo(
+        "{\"_id\":4,\"name\":\"J\u00fcrgen \\\"J\\\"\\n\",\"data\":\"0aff\",\"half\":0.5}\n");
+  }
+
+  @Test public void exportBinary() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.export(ExportFormat.BINARY, out, "SELECT -1 AS a, '\u00e9' AS b")
+        .test()
+        .assertValue(1L);
+    assertThat(out.toByteArray()).isEqualTo(new byte[] {
+        'S', 'Q', 'L', 'B', 1, // Magic and version.
+        2, 1, 'a', 1, 'b', // Column names.
+        1, 1, 1, 3, 2, (byte) 0xc3, (byte) 0xa9, // Row: zigzag -1 and UTF-8 '\u00e9'.
+        0 // End of rows.
+    });
+  }
+
+  @Test public void exportDisposedBeforeRunningWritesNothing() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.export(ExportFormat.CSV, out, SELECT_EMPLOYEES).test(true).assertNoValues();
+    assertThat(out.size()).isEqualTo(0);
+  }
+
+  @Test public void maintenanceCheckpointsWhenIdleAfterWrites() {
+    io.reactivex.schedulers.TestScheduler clock = new io.reactivex.schedulers.TestScheduler();
+    final List<DatabaseMaintenance.Report> reports = new ArrayList<>();
+    DatabaseMaintenance maintenance = db.newMaintenance(clock)
+        .idleTime(1, SECONDS)
+        .checkpointAfter(2)
+        .listener(new DatabaseMaintenance.Listener() {
+          @Override public void onTaskRun(DatabaseMaintenance.Report report) {
+            reports.add(report);
+          }
+        })
+        .start();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    clock.advanceTimeBy(1, SECONDS);
+    assertThat(reports).isEmpty(); // Not enough writes.
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("nick", "Nick Nickers"));
+    clock.advanceTimeBy(500, MILLISECONDS);
+    db.query(SELECT_EMPLOYEES).close();
+    clock.advanceTimeBy(500, MILLISECONDS);
+    assertThat(reports).isEmpty(); // Not idle for long enough.
+
+    clock.advanceTimeBy(1, SECONDS);
+    assertThat(reports).hasSize(1);
+    DatabaseMaintenance.Report report = reports.get(0);
+    assertThat(report.task).isEqualTo(DatabaseMaintenance.Task.CHECKPOINT);
+    assertThat(report.error).isNull();
+    assertThat(report.interrupted).isFalse();
+
+    clock.advanceTimeBy(1, SECONDS);
+    assertThat(reports).hasSize(1); // Counting starts over.
+    maintenance.dispose();
+  }
+
+  @Test public void maintenanceWaitsForOpenTransactions() {
+    io.reactivex.schedulers.TestScheduler clock = new io.reactivex.schedulers.TestScheduler();
+    final List<DatabaseMaintenance.Report> reports = new ArrayList<>();
+    DatabaseMaintenance maintenance = db.newMaintenance(clock)
+        .idleTime(1, SECONDS)
+        .checkpointAfter(1)
+        .listener(new DatabaseMaintenance.Listener() {
+          @Override public void onTaskRun(DatabaseMaintenance.Report report) {
+            reports.add(report);
+          }
+        })
+        .start();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    Transaction transaction = db.newTransaction();
+    clock.advanceTimeBy(5, SECONDS);
+    assertThat(reports).isEmpty();
+
+    transaction.end();
+    clock.advanceTimeBy(1, SECONDS);
+    assertThat(reports).hasSize(1);
+    maintenance.dispose();
+  }
+
+  @Test public void maintenanceDisposedStopsRunning() {
+    io.reactivex.schedulers.TestScheduler clock = new io.reactivex.schedulers.TestScheduler();
+    final List<DatabaseMaintenance.Report> reports = new ArrayList<>();
+    DatabaseMaintenance maintenance = db.newMaintenance(clock)
+        .idleTime(1, SECONDS)
+        .checkpointAfter(1)
+        .listener(new DatabaseMaintenance.Listener() {
+          @Override public void onTaskRun(DatabaseMaintenance.Report report) {
+            reports.add(report);
+          }
+        })
+        .start();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    maintenance.dispose();
+    clock.advanceTimeBy(5, SECONDS);
+    assertThat(reports).isEmpty();
+    assertThat(maintenance.isDisposed()).isTrue();
+  }
+
+  @SdkSuppress(minSdkVersion = 31) // PRAGMA analysis_limit needs SQLite 3.32.
+  @Test public void maintenanceOptimizeRestoresAnalysisLimit() {
+    real.query("PRAGMA analysis_limit=123").close();
+    io.reactivex.schedulers.TestScheduler clock = new io.reactivex.schedulers.TestScheduler();
+    final List<DatabaseMaintenance.Report> reports = new ArrayList<>();
+    DatabaseMaintenance maintenance = db.newMaintenance(clock)
+        .idleTime(1, SECONDS)
+        .optimizeAfter(1)
+        .analysisLimit(400)
+        .listener(new DatabaseMaintenance.Listener() {
+          @Override public void onTaskRun(DatabaseMaintenance.Report report) {
+            reports.add(report);
+          }
+        })
+        .start();
+
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    clock.advanceTimeBy(1, SECONDS);
+    boolean optimized = false;
+    for (DatabaseMaintenance.Report report : reports) {
+      if (report.task == DatabaseMaintenance.Task.OPTIMIZE) {
+        assertThat(report.error).isNull();
+        assertThat(report.result).isEqualTo("analysis_limit=400");
+        optimized = true;
+      }
+    }
+    assertThat(optimized).isTrue();
+
+    Cursor cursor = real.query("PRAGMA analysis_limit");
+    try {
+      assertThat(cursor.moveToFirst()).isTrue();
+      assertThat(cursor.getLong(0)).isEqualTo(123);
+    } finally {
+      cursor.close();
+    }
+    maintenance.dispose();
+  }
+
+  @Test public void maintenanceCanOnlyStartOnce() {
+    io.reactivex.schedulers.TestScheduler clock = new io.reactivex.schedulers.TestScheduler();
+    DatabaseMaintenance maintenance = db.newMaintenance(clock).start();
+    try {
+      db.newMaintenance(clock).start();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Maintenance is already running.");
+    }
+    maintenance.dispose();
+    db.newMaintenance(clock).start().dispose();
+  }
+
+  @Test public void indexAdvisorRecordsStatementShapes() {
+    IndexAdvisor advisor = db.enableIndexAdvisor();
+    assertThat(db.enableIndexAdvisor()).isSameAs(advisor);
+
+    db.query("SELECT * FROM employee WHERE name = 'Alice Allison'").close();
+    db.query("SELECT * FROM employee WHERE name = ?", "Bob Bobberson").close();
+    db.query("SELECT  *  FROM employee -- Comment\nWHERE name = :name", "Eve Evenson").close();
+    db.query("SELECT * FROM employee WHERE username IN (?, ?)", "alice", "bob").close();
+    db.query("SELECT * FROM employee WHERE username IN (?, ?, ?)", "alice", "bob", "eve").close();
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "bob");
+
+    List<IndexAdvisor.Statement> statements = advisor.statements();
+    List<String> sql = new ArrayList<>();
+    long count = 0;
+    for (IndexAdvisor.Statement statement : statements) {
+      sql.add(statement.sql);
+      count += statement.count;
+      assertThat(statement.maxNanos).isAtMost(statement.totalNanos);
+    }
+    assertThat(sql).containsExactly(
+        "SELECT * FROM employee WHERE name = ?",
+        "SELECT * FROM employee WHERE username IN (?)",
+        "DELETE FROM employee WHERE username = ?");
+    assertThat(count).isEqualTo(6);
+  }
+
+  @Test public void indexAdvisorRecordsScalarAndSnapshotReads() {
+    IndexAdvisor advisor = db.enableIndexAdvisor();
+    db.createLongQuery(TABLE_EMPLOYEE, "SELECT _id FROM employee WHERE name = ?", "Eve Evenson")
+        .blockingFirst();
+    db.createQueries(Collections.singletonList(TABLE_EMPLOYEE),
+        new Function<BriteDatabase.Snapshot, Integer>() {
+          @Override public Integer apply(BriteDatabase.Snapshot snapshot) {
+            Cursor cursor = snapshot.query("SELECT * FROM employee WHERE username = ?", "bob");
+            try {
+              return cursor.getCount();
+            } finally {
+              cursor.close();
+            }
+          }
+        }).blockingFirst();
+
+    List<String> sql = new ArrayList<>();
+    for (IndexAdvisor.Statement statement : advisor.statements()) {
+      sql.add(statement.sql);
+    }
+    assertThat(sql).containsExactly(
+        "SELECT _id FROM employee WHERE name = ?",
+        "SELECT * FROM employee WHERE username = ?");
+  }
+
+  @Test public void indexAdvisorSuggestsIndexForScannedPredicate() {
+    IndexAdvisor advisor = db.enableIndexAdvisor();
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    for (int i = 0; i < 5; i++) {
+      Cursor cursor = db.query("SELECT * FROM employee WHERE name = ?", "Alice Allison");
+      assertThat(cursor.getCount()).isEqualTo(1);
+      cursor.close();
+    }
+    // Served by the unique index on username.
+    db.query("SELECT * FROM employee WHERE username = ?", "alice").close();
+
+    List<IndexAdvisor.Suggestion> suggestions = advisor.suggest(10);
+    assertThat(suggestions).hasSize(1);
+    IndexAdvisor.Suggestion suggestion = suggestions.get(0);
+    assertThat(suggestion.table).isEqualTo(TABLE_EMPLOYEE);
+    assertThat(suggestion.columns).containsExactly(NAME);
+    assertThat(suggestion.reasons).containsExactly(IndexAdvisor.Reason.SCAN);
+    assertThat(suggestion.statements).containsExactly("SELECT * FROM employee WHERE name = ?");
+    assertThat(suggestion.readNanos).isGreaterThan(0L);
+    assertThat(suggestion.writeNanos).isGreaterThan(0L);
+    assertThat(suggestion.createSql())
+        .isEqualTo("CREATE INDEX index_employee_name ON employee (name)");
+
+    db.execute(suggestion.createSql());
+    assertThat(advisor.suggest(10)).isEmpty();
+  }
+
+  @SdkSuppress(minSdkVersion = Build.VERSION_CODES.N) // Expression indexes need SQLite 3.9.
+  @Test public void indexAdvisorStopsIndexColumnsAtAnExpression() {
+    db.execute("CREATE INDEX manager_abs_manager_id ON manager (abs(manager_id))");
+    IndexAdvisor advisor = db.enableIndexAdvisor();
+    db.query("SELECT * FROM manager WHERE manager_id = ?", 1).close();
+
+    List<IndexAdvisor.Suggestion> suggestions = advisor.suggest(10);
+    assertThat(suggestions).hasSize(1);
+    assertThat(suggestions.get(0).columns).containsExactly("manager_id");
+
+    db.execute("CREATE INDEX manager_manager_id_abs_employee_id "
+        + "ON manager (manager_id, abs(employee_id))");
+    assertThat(advisor.suggest(10)).isEmpty();
+  }
+
+  @Test public void indexAdvisorSuggestsIndexForOrderBy() {
+    IndexAdvisor advisor = db.enableIndexAdvisor();
+    db.query("SELECT * FROM employee ORDER BY name").close();
+
+    List<IndexAdvisor.Suggestion> suggestions = advisor.suggest(10);
+    assertThat(suggestions).hasSize(1);
+    assertThat(suggestions.get(0).columns).containsExactly(NAME);
+    assertThat(suggestions.get(0).reasons).containsExactly(IndexAdvisor.Reason.ORDER_BY);
+  }
+
+  @Test public void indexAdvisorDisabledStopsRecording() {
+    IndexAdvisor advisor = db.enableIndexAdvisor();
+    db.query(SELECT_EMPLOYEES).close();
+    db.disableIndexAdvisor();
+    db.query("SELECT * FROM employee WHERE name = ?", "Alice Allison").close();
+    assertThat(advisor.statements()).hasSize(1);
+
+    advisor.reset();
+    assertThat(advisor.statements()).isEmpty();
+  }
+
+  @Test public void recordedWorkloadReplays() throws IOException, java.sql.SQLException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    WorkloadRecorder recorder = db.startRecording(trace, false);
+    db.query(SELECT_EMPLOYEES).close();
+    db.query(SELECT_EMPLOYEES).close();
+    Transaction transaction = db.newTransaction();
+    try {
+      db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+      transaction.markSuccessful();
+    } finally {
+      transaction.end();
+    }
+    recorder.close();
+
+    // Return to the state the recording started from.
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "john");
+
+    WorkloadReplayer.Report report = WorkloadReplayer.replay(
+        new ByteArrayInputStream(trace.toByteArray()), replayTarget(real),
+        Double.POSITIVE_INFINITY);
+    assertThat(report.failures).isEqualTo(0);
+    assertThat(report.replayed.count).isEqualTo(3);
+    assertThat(report.recorded.count).isEqualTo(3);
+    assertThat(report.statements).hasSize(2);
+    for (WorkloadReplayer.StatementReport statement : report.statements) {
+      if (statement.sql.equals(SELECT_EMPLOYEES)) {
+        assertThat(statement.replayed.count).isEqualTo(2);
+      } else {
+        assertThat(statement.sql).startsWith("INSERT INTO employee");
+        assertThat(statement.replayed.count).isEqualTo(1);
+      }
+    }
+
+    Cursor cursor = db.query("SELECT name FROM employee WHERE username = ?", "john");
+    assertThat(cursor.getCount()).isEqualTo(1);
+    cursor.close();
+  }
+
+  @Test public void redactedWorkloadOmitsText() throws IOException, java.sql.SQLException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    WorkloadRecorder recorder = db.startRecording(trace, true);
+    db.query("SELECT * FROM employee WHERE name = ?", "Alice Allison").close();
+    recorder.close();
+
+    byte[] bytes = trace.toByteArray();
+    assertThat(new String(bytes, "UTF-8")).doesNotContain("Alice");
+
+    WorkloadReplayer.Report report = WorkloadReplayer.replay(
+        new ByteArrayInputStream(bytes), replayTarget(real), Double.POSITIVE_INFINITY);
+    assertThat(report.failures).isEqualTo(0);
+    assertThat(report.replayed.count).isEqualTo(1);
+  }
+
+  @Test public void recordedQueriesKeepTheirOrderEvenWhenUnread()
+      throws IOException, java.sql.SQLException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    WorkloadRecorder recorder = db.startRecording(trace, false);
+    Cursor unread = db.query(SELECT_EMPLOYEES);
+    Cursor read = db.query(SELECT_MANAGER_LIST);
+    read.moveToNext();
+    read.close();
+    unread.close();
+    recorder.close();
+
+    final List<String> replayed = new ArrayList<>();
+    WorkloadReplayer.replay(new ByteArrayInputStream(trace.toByteArray()),
+        new WorkloadReplayer.Target() {
+          @Override public void query(String sql, Object[] args) {
+            replayed.add(sql);
+          }
+
+          @Override public void execute(String sql, Object[] args) {
+            throw new AssertionError();
+          }
+
+          @Override public void beginTransaction() {
+            throw new AssertionError();
+          }
+
+          @Override public void endTransaction(boolean commit) {
+            throw new AssertionError();
+          }
+        }, Double.POSITIVE_INFINITY);
+    assertThat(replayed).containsExactly(SELECT_EMPLOYEES, SELECT_MANAGER_LIST).inOrder();
+  }
+
+  @Test public void recordingIncludesCompiledStatementsAndOpenCursors()
+      throws IOException, java.sql.SQLException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    WorkloadRecorder recorder = db.startRecording(trace, false);
+    Cursor open = db.query(SELECT_EMPLOYEES);
+    SupportSQLiteStatement statement = db.compileStatement("INSERT INTO "
+        + TABLE_EMPLOYEE + " (" + NAME + ", " + USERNAME + ") VALUES (?, ?)");
+    statement.bindString(1, "John Johnson");
+    statement.bindString(2, "john");
+    assertThat(db.executeInsert(TABLE_EMPLOYEE, statement)).isNotEqualTo(-1L);
+    recorder.close();
+    open.close();
+
+    final List<String> replayed = new ArrayList<>();
+    final List<Object[]> args = new ArrayList<>();
+    WorkloadReplayer.replay(new ByteArrayInputStream(trace.toByteArray()),
+        new WorkloadReplayer.Target() {
+          @Override public void query(String sql, Object[] queryArgs) {
+            replayed.add(sql);
+          }
+
+          @Override public void execute(String sql, Object[] executeArgs) {
+            replayed.add(sql);
+            args.add(executeArgs);
+          }
+
+          @Override public void beginTransaction() {
+          }
+
+          @Override public void endTransaction(boolean commit) {
+          }
+        }, Double.POSITIVE_INFINITY);
+    assertThat(replayed).containsExactly(SELECT_EMPLOYEES,
+        "INSERT INTO employee (name, username) VALUES (?, ?)").inOrder();
+    assertThat(args.get(0)).asList().containsExactly("John Johnson", "john").inOrder();
+  }
+
+  @Test public void recordingCanOnlyStartOnce() throws IOException {
+    WorkloadRecorder recorder = db.startRecording(new ByteArrayOutputStream(), false);
+    try {
+      db.startRecording(new ByteArrayOutputStream(), false);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Recording is already running.");
+    }
+    recorder.close();
+    db.startRecording(new ByteArrayOutputStream(), false).close();
+  }
+
+  @Test public void compiledStatementCannotBeUsedAfterClose() {
+    BriteStatement insert = db.compileInsert(TABLE_EMPLOYEE, CONFLICT_NONE, USERNAME, NAME);
+    insert.close();
+    try {
+      insert.bindString(1, "chad");
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Statement is closed.");
+    }
+  }
+
   @Test public void executeInsertAndDontTrigger() {
     SupportSQLiteStatement statement = real.compileStatement("INSERT OR IGNORE INTO "
         + TABLE_EMPLOYEE + " (" + NAME + ", " + USERNAME + ") "
@@ -1012,6 +2568,31 @@ public final class BriteDatabaseTest {
     o.assertErrorContains("Cannot subscribe to observable query in a transaction.");
   }
 
+  @Test public void queryCreatedBeforeTransactionCanBeSubscribedToAfterIt() {
+    Observable<Query> query = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
+
+    Transaction transaction = db.newTransaction();
+    TestObserver<Query> during = query.test();
+    during.assertError(IllegalStateException.class);
+    transaction.end();
+
+    // The check happens per subscription, and the failed one is not notified.
+    query.subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    db.insert(TABLE_EMPLOYEE, CONFLICT_NONE, employee("john", "John Johnson"));
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+    during.assertValueCount(0);
+  }
+
   @Test public void callingEndMultipleTimesThrows() {
     Transaction transaction = db.newTransaction();
     transaction.end();
@@ -1328,6 +2909,39 @@ public final class BriteDatabaseTest {
     }
   }
 
+  private static WorkloadReplayer.Target replayTarget(final SupportSQLiteDatabase db) {
+    return new WorkloadReplayer.Target() {
+      @Override public void query(String sql, Object[] args) throws java.sql.SQLException {
+        try {
+          Cursor cursor = db.query(sql, args);
+          cursor.getCount();
+          cursor.close();
+        } catch (SQLException e) {
+          throw new java.sql.SQLException(e);
+        }
+      }
+
+      @Override public void execute(String sql, Object[] args) throws java.sql.SQLException {
+        try {
+          db.execSQL(sql, args);
+        } catch (SQLException e) {
+          throw new java.sql.SQLException(e);
+        }
+      }
+
+      @Override public void beginTransaction() {
+        db.beginTransaction();
+      }
+
+      @Override public void endTransaction(boolean commit) {
+        if (commit) {
+          db.setTransactionSuccessful();
+        }
+        db.endTransaction();
+      }
+    };
+  }
+
   private static CursorAssert assertCursor(Cursor cursor) {
     return new CursorAssert(cursor);
   }
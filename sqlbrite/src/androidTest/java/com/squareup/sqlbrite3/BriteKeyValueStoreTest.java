@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SupportSQLiteOpenHelper;
+import android.arch.persistence.db.SupportSQLiteOpenHelper.Configuration;
+import android.arch.persistence.db.SupportSQLiteOpenHelper.Factory;
+import android.arch.persistence.db.framework.FrameworkSQLiteOpenHelperFactory;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import com.squareup.sqlbrite3.BriteDatabase.Transaction;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class) //
+public final class BriteKeyValueStoreTest {
+  @Rule public final TemporaryFolder dbFolder = new TemporaryFolder();
+
+  private BriteDatabase db;
+  private BriteKeyValueStore store;
+
+  @Before public void setUp() throws IOException {
+    Configuration configuration = Configuration.builder(InstrumentationRegistry.getContext())
+        .callback(new TestDb())
+        .name(dbFolder.newFile().getPath())
+        .build();
+
+    Factory factory = new FrameworkSQLiteOpenHelperFactory();
+    SupportSQLiteOpenHelper helper = factory.create(configuration);
+
+    db = new SqlBrite.Builder().build().wrapDatabaseHelper(helper, Schedulers.trampoline());
+    store = db.newKeyValueStore("settings", 2);
+  }
+
+  @Test public void typedValues() {
+    assertThat(store.getString("name")).isNull();
+    assertThat(store.getLong("count", -1)).isEqualTo(-1);
+    assertThat(store.getBoolean("enabled", false)).isFalse();
+
+    store.putString("name", "Alice");
+    store.putLong("count", 42);
+    store.putBoolean("enabled", true);
+    assertThat(store.getString("name")).isEqualTo("Alice");
+    assertThat(store.getLong("count", -1)).isEqualTo(42);
+    assertThat(store.getBoolean("enabled", false)).isTrue();
+
+    store.remove("name");
+    assertThat(store.getString("name")).isNull();
+  }
+
+  @Test public void valuesOutliveCacheEviction() {
+    store.putLong("a", 1);
+    store.putLong("b", 2);
+    store.putLong("c", 3); // Evicts "a".
+    assertThat(store.getLong("a", -1)).isEqualTo(1);
+    assertThat(store.getLong("b", -1)).isEqualTo(2);
+    assertThat(store.getLong("c", -1)).isEqualTo(3);
+  }
+
+  @Test public void putAllIsOneTransaction() {
+    TestObserver<Long> a = store.observeLong("a", 0).test();
+    TestObserver<Long> b = store.observeLong("b", 0).test();
+
+    Map<String, Object> values = new LinkedHashMap<>();
+    values.put("a", 1);
+    values.put("b", 2L);
+    store.putAll(values);
+
+    a.assertValues(0L, 1L);
+    b.assertValues(0L, 2L);
+    a.dispose();
+    b.dispose();
+  }
+
+  @Test public void putAllRejectsUnsupportedValues() {
+    Map<String, Object> values = new LinkedHashMap<>();
+    values.put("a", 1);
+    values.put("b", new Object());
+    try {
+      store.putAll(values);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).startsWith("Unsupported value type: ");
+    }
+    assertThat(store.getLong("a", -1)).isEqualTo(-1); // Rolled back.
+  }
+
+  @Test public void observeOnlyNotifiesForItsKey() {
+    TestObserver<String> name = store.observeString("name", "").test();
+    TestObserver<Boolean> enabled = store.observeBoolean("enabled", false).test();
+    name.assertValues("");
+    enabled.assertValues(false);
+
+    store.putString("name", "Alice");
+    name.assertValues("", "Alice");
+    enabled.assertValues(false);
+
+    store.putBoolean("enabled", true);
+    name.assertValues("", "Alice");
+    enabled.assertValues(false, true);
+
+    name.dispose();
+    enabled.dispose();
+  }
+
+  @Test public void observeSkipsWritesWhichLeaveItsValueUnchanged() {
+    TestObserver<Long> count = store.observeLong("count", 0).test();
+    store.putLong("count", 1);
+    store.putLong("count", 1);
+    store.remove("other");
+    count.assertValues(0L, 1L);
+    count.dispose();
+  }
+
+  @Test public void rolledBackPutIsNotCached() {
+    store.putString("name", "Alice");
+
+    Transaction transaction = db.newTransaction();
+    try {
+      store.putString("name", "Bob");
+      assertThat(store.getString("name")).isEqualTo("Bob");
+    } finally {
+      transaction.end();
+    }
+    assertThat(store.getString("name")).isEqualTo("Alice");
+  }
+}
@@ -20,7 +20,10 @@ import android.database.MatrixCursor;
 import com.squareup.sqlbrite3.QueryObservable;
 import com.squareup.sqlbrite3.SqlBrite.Query;
 import io.reactivex.Observable;
+import io.reactivex.Scheduler;
 import io.reactivex.functions.Function;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.subjects.PublishSubject;
 import org.junit.Test;
 
 public final class QueryObservableTest {
@@ -62,4 +65,86 @@ public final class QueryObservableTest {
         .assertNoValues() //
         .assertError(error);
   }
+
+  @Test public void pauseWhenHoldsQueriesAndEmitsLatestOnceOnResume() {
+    PublishSubject<Query> queries = PublishSubject.create();
+    PublishSubject<Boolean> paused = PublishSubject.create();
+    TestObserver<Query> o = new QueryObservable(queries).pauseWhen(paused).test();
+
+    Query first = new StubQuery();
+    queries.onNext(first);
+    o.assertValues(first);
+
+    paused.onNext(true);
+    Query second = new StubQuery();
+    Query third = new StubQuery();
+    queries.onNext(second);
+    queries.onNext(third);
+    o.assertValues(first);
+
+    paused.onNext(false);
+    o.assertValues(first, third);
+
+    paused.onNext(true);
+    paused.onNext(false);
+    o.assertValues(first, third);
+  }
+
+  @Test public void pauseWhenCompletingResumes() {
+    PublishSubject<Query> queries = PublishSubject.create();
+    PublishSubject<Boolean> paused = PublishSubject.create();
+    TestObserver<Query> o = new QueryObservable(queries).pauseWhen(paused).test();
+
+    paused.onNext(true);
+    Query query = new StubQuery();
+    queries.onNext(query);
+    o.assertNoValues();
+
+    paused.onComplete();
+    o.assertValues(query);
+    Query next = new StubQuery();
+    queries.onNext(next);
+    o.assertValues(query, next);
+  }
+
+  @Test public void pauseWhenResumesOnQueryScheduler() {
+    TestScheduler scheduler = new TestScheduler();
+    scheduler.runTasksImmediately(false);
+    PublishSubject<Query> queries = PublishSubject.create();
+    PublishSubject<Boolean> paused = PublishSubject.create();
+    TestObserver<Query> o = new QueryObservable(queries).pauseWhen(paused).test();
+
+    paused.onNext(true);
+    Query stale = new StubQuery(scheduler);
+    queries.onNext(stale);
+    paused.onNext(false);
+    o.assertNoValues();
+
+    // A newer query which arrives before the resume runs replaces the pending one.
+    Query latest = new StubQuery(scheduler);
+    queries.onNext(latest);
+    o.assertValues(latest);
+    scheduler.triggerActions();
+    o.assertValues(latest);
+  }
+
+  static final class StubQuery extends Query {
+    private final Scheduler scheduler;
+
+    StubQuery() {
+      this(null);
+    }
+
+    StubQuery(Scheduler scheduler) {
+      this.scheduler = scheduler;
+    }
+
+    @Override public Cursor run() {
+      throw new AssertionError("Must not be called");
+    }
+
+    @Override Scheduler scheduler() {
+      return scheduler;
+    }
+  }
 }
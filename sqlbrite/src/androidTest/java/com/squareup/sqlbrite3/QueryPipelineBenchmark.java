@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SupportSQLiteOpenHelper;
+import android.arch.persistence.db.SupportSQLiteOpenHelper.Configuration;
+import android.arch.persistence.db.SupportSQLiteOpenHelper.Factory;
+import android.arch.persistence.db.framework.FrameworkSQLiteOpenHelperFactory;
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+import com.squareup.sqlbrite3.SqlBrite.Query;
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.sqlbrite3.TestDb.SELECT_EMPLOYEES;
+import static com.squareup.sqlbrite3.TestDb.TABLE_EMPLOYEE;
+import static com.squareup.sqlbrite3.TestDb.TABLE_MANAGER;
+
+/**
+ * Measures the cost of delivering triggers through {@link BriteDatabase#createQuery} without
+ * running the queries themselves, compared to the {@code filter}, {@code map}, {@code startWith}
+ * and {@code observeOn} chain it replaced. Results are written to logcat.
+ */
+@LargeTest
+public final class QueryPipelineBenchmark {
+  private static final String TAG = "QueryPipelineBenchmark";
+  private static final int AFFECTED_SUBSCRIBERS = 30;
+  private static final int UNAFFECTED_SUBSCRIBERS = 30;
+  private static final int WARMUP_TRIGGERS = 1000;
+  private static final int TRIGGERS = 10000;
+
+  private final CompositeDisposable disposables = new CompositeDisposable();
+  private final AtomicInteger notifications = new AtomicInteger();
+  private final Consumer<Query> counter = new Consumer<Query>() {
+    @Override public void accept(Query query) {
+      notifications.incrementAndGet();
+    }
+  };
+  private BriteDatabase db;
+
+  @Before public void setUp() {
+    Configuration configuration = Configuration.builder(InstrumentationRegistry.getContext())
+        .callback(new TestDb())
+        .build();
+
+    Factory factory = new FrameworkSQLiteOpenHelperFactory();
+    SupportSQLiteOpenHelper helper = factory.create(configuration);
+
+    SqlBrite sqlBrite = new SqlBrite.Builder().build();
+    db = sqlBrite.wrapDatabaseHelper(helper, Schedulers.trampoline());
+  }
+
+  @After public void tearDown() {
+    disposables.dispose();
+  }
+
+  @Test public void triggerDelivery() {
+    for (int i = 0; i < AFFECTED_SUBSCRIBERS; i++) {
+      disposables.add(db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(counter));
+    }
+    for (int i = 0; i < UNAFFECTED_SUBSCRIBERS; i++) {
+      disposables.add(db.createQuery(TABLE_MANAGER, "SELECT 1").subscribe(counter));
+    }
+    long fused = measure(null);
+    disposables.clear();
+
+    // The same subscribers on the chain which createQuery used before it was fused.
+    PublishSubject<Set<String>> triggers = PublishSubject.create();
+    for (int i = 0; i < AFFECTED_SUBSCRIBERS; i++) {
+      disposables.add(operatorChain(triggers, TABLE_EMPLOYEE).subscribe(counter));
+    }
+    for (int i = 0; i < UNAFFECTED_SUBSCRIBERS; i++) {
+      disposables.add(operatorChain(triggers, TABLE_MANAGER).subscribe(counter));
+    }
+    long chain = measure(triggers);
+
+    Log.i(TAG, String.format(
+        "%d subscribers: fused %d ns, operator chain %d ns per trigger (%.2fx)",
+        AFFECTED_SUBSCRIBERS + UNAFFECTED_SUBSCRIBERS, fused / TRIGGERS, chain / TRIGGERS,
+        (double) chain / fused));
+  }
+
+  /**
+   * Returns the nanoseconds taken to deliver {@link #TRIGGERS} triggers of the employee table.
+   * Each is also sent to {@code triggers} so that both pipelines pay for the database's own
+   * bookkeeping.
+   */
+  private long measure(@Nullable PublishSubject<Set<String>> triggers) {
+    Set<String> tables = Collections.singleton(TABLE_EMPLOYEE);
+    for (int i = 0; i < WARMUP_TRIGGERS; i++) {
+      send(tables, triggers);
+    }
+
+    notifications.set(0);
+    long start = System.nanoTime();
+    for (int i = 0; i < TRIGGERS; i++) {
+      send(tables, triggers);
+    }
+    long took = System.nanoTime() - start;
+
+    assertThat(notifications.get()).isEqualTo(TRIGGERS * AFFECTED_SUBSCRIBERS);
+    return took;
+  }
+
+  private void send(Set<String> tables, @Nullable PublishSubject<Set<String>> triggers) {
+    db.sendTableTrigger(tables);
+    if (triggers != null) {
+      triggers.onNext(tables);
+    }
+  }
+
+  private static Observable<Query> operatorChain(Observable<Set<String>> triggers,
+      final String table) {
+    final Query query = new Query() {
+      @Override public Cursor run() {
+        throw new AssertionError();
+      }
+    };
+    return triggers //
+        .filter(new Predicate<Set<String>>() {
+          @Override public boolean test(Set<String> triggered) {
+            return triggered.contains(table);
+          }
+        }) //
+        .map(new Function<Set<String>, Query>() {
+          @Override public Query apply(Set<String> ignored) {
+            return query;
+          }
+        }) //
+        .startWith(query) //
+        .observeOn(Schedulers.trampoline()) //
+        .compose(new ObservableTransformer<Query, Query>() {
+          @Override public Observable<Query> apply(Observable<Query> upstream) {
+            return upstream;
+          }
+        });
+  }
+}
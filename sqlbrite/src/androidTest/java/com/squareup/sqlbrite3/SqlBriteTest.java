@@ -6,12 +6,14 @@ import android.support.annotation.Nullable;
 import android.support.test.runner.AndroidJUnit4;
 import com.squareup.sqlbrite3.SqlBrite.Query;
 import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.junit.Assert.fail;
 
 @RunWith(AndroidJUnit4.class)
@@ -35,6 +37,36 @@ public final class SqlBriteTest {
     } catch (NullPointerException e) {
       assertThat(e).hasMessage("queryTransformer == null");
     }
+    try {
+      builder.triggerWindow(16, null, Schedulers.trampoline());
+      fail();
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("unit == null");
+    }
+    try {
+      builder.triggerWindow(16, MILLISECONDS, null);
+      fail();
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("clock == null");
+    }
+    try {
+      builder.triggerWindow(-1, MILLISECONDS, Schedulers.trampoline());
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("window < 0");
+    }
+    try {
+      builder.throttleTable(null, 100, MILLISECONDS);
+      fail();
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("table == null");
+    }
+    try {
+      builder.throttleTable("table", 0, MILLISECONDS);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("interval <= 0");
+    }
   }
 
   @Test public void asRowsEmpty() {
@@ -34,6 +34,10 @@ final class TestScheduler extends Scheduler {
     delegate.triggerActions();
   }
 
+  public void advanceTimeBy(long delayTime, TimeUnit unit) {
+    delegate.advanceTimeBy(delayTime, unit);
+  }
+
   @Override public Worker createWorker() {
     return new TestWorker();
   }
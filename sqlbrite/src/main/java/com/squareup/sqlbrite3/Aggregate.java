@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SimpleSQLiteQuery;
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import com.squareup.sqlbrite3.BriteDatabase.ScalarStatement;
+import java.util.Locale;
+
+/**
+ * An in-memory {@code COUNT(*)} or {@code SUM(column)} over the rows of a table which optionally
+ * match {@code whereColumn = whereValue}. Inserted and deleted rows are applied as deltas and
+ * anything else invalidates the value so that it is recomputed with SQL on the next read. So does
+ * an insert whose text can only be matched against {@code whereValue} by SQLite, because the
+ * column's affinity or collation is not plain text. The delta of a delete is the
+ * {@linkplain #contribution contribution} of the rows it matches, read in the same transaction
+ * right before they are deleted.
+ * <p>
+ * A recompute races with writes, so every change increments {@code modCount} and inserts and
+ * deletes are registered as in flight for the time between their write and their delta. A
+ * recomputed value is only kept if neither happened while it ran, since it may or may not include
+ * such a change.
+ */
+final class Aggregate {
+  final String table;
+  final ScalarStatement statement;
+  @Nullable private final String sumColumn;
+  @Nullable private final String whereColumn;
+  @Nullable private final Object whereValue;
+
+  /** Whether {@link #whereColumn} compares text like {@link String#equals}. Read before valid. */
+  private boolean exactText; // Guarded by this.
+  private boolean columnRead; // Guarded by this.
+  private boolean valid; // Guarded by this.
+  private long value; // Guarded by this.
+  private long modCount; // Guarded by this.
+  private int inFlight; // Guarded by this.
+
+  Aggregate(String table, @Nullable String sumColumn, @Nullable String whereColumn,
+      @Nullable Object whereValue, ScalarStatement statement) {
+    this.table = table;
+    this.sumColumn = sumColumn;
+    this.whereColumn = whereColumn;
+    this.whereValue = whereValue;
+    this.statement = statement;
+  }
+
+  static String sql(String table, @Nullable String sumColumn, @Nullable String whereColumn) {
+    String select = sumColumn == null ? "COUNT(*)" : "COALESCE(SUM(" + sumColumn + "), 0)";
+    String sql = "SELECT " + select + " FROM " + table;
+    return whereColumn == null ? sql : sql + " WHERE " + whereColumn + " = ?";
+  }
+
+  static Object[] args(@Nullable String whereColumn, @Nullable Object whereValue) {
+    return whereColumn == null ? new Object[0] : new Object[] { whereValue };
+  }
+
+  /** The current value, recomputed with SQL if no delta could be applied to it. */
+  long value(SupportSQLiteDatabase db) {
+    long expectedModCount;
+    boolean columnRead;
+    synchronized (this) {
+      if (valid) {
+        return value;
+      }
+      expectedModCount = modCount;
+      columnRead = this.columnRead;
+    }
+    boolean exactText = false;
+    if (!columnRead && whereColumn != null) {
+      exactText = comparesTextExactly(db, table, whereColumn);
+    }
+    long computed = statement.simpleQueryForLong();
+    synchronized (this) {
+      if (!this.columnRead) {
+        this.exactText = exactText;
+        this.columnRead = true;
+      }
+      if (modCount == expectedModCount && inFlight == 0) {
+        valid = true;
+        value = computed;
+      }
+    }
+    return computed;
+  }
+
+  /**
+   * Called before an insert or delete is written. Must be balanced by a call to
+   * {@link #endInsert} or {@link #endDelete}.
+   */
+  synchronized void beginChange() {
+    inFlight++;
+    modCount++;
+  }
+
+  /**
+   * Called once an insert began with {@link #beginChange} is committed, with its
+   * {@code values}, or abandoned, with null.
+   */
+  synchronized void endInsert(@Nullable ContentValues values, boolean replace) {
+    inFlight--;
+    modCount++;
+    if (values == null || !valid) {
+      return;
+    }
+    if (replace) {
+      valid = false; // The insert may have deleted a row.
+      return;
+    }
+    if (whereColumn != null) {
+      if (!values.containsKey(whereColumn)) {
+        valid = false; // Column default is not known.
+        return;
+      }
+      Boolean matches = sqlEquals(values.get(whereColumn), whereValue, exactText);
+      if (matches == null) {
+        valid = false;
+        return;
+      }
+      if (!matches) {
+        return;
+      }
+    }
+    if (sumColumn == null) {
+      value += 1;
+      return;
+    }
+    if (!values.containsKey(sumColumn)) {
+      valid = false;
+      return;
+    }
+    Object summand = values.get(sumColumn);
+    if (summand == null) {
+      return; // SUM ignores NULL.
+    }
+    if (isIntegral(summand)) {
+      value += ((Number) summand).longValue();
+    } else {
+      valid = false; // Affinity and rounding are up to SQLite.
+    }
+  }
+
+  /**
+   * Called once a delete began with {@link #beginChange} is committed, with the
+   * {@linkplain #contribution contribution} of the deleted rows, or abandoned or of unknown
+   * contribution, with null.
+   */
+  synchronized void endDelete(@Nullable Long removed) {
+    inFlight--;
+    modCount++;
+    if (!valid) {
+      return;
+    }
+    if (removed == null) {
+      valid = false;
+      return;
+    }
+    value -= removed;
+  }
+
+  /**
+   * Returns the amount which the rows of {@link #table} matching {@code whereClause} add to the
+   * value, or null if that is not an integer. Run inside the delete's transaction, before it.
+   */
+  @Nullable Long contribution(SupportSQLiteDatabase db, @Nullable String whereClause,
+      @Nullable Object[] whereArgs) {
+    String sql = sql(table, sumColumn, whereColumn);
+    if (whereClause != null && !whereClause.isEmpty()) {
+      sql += (whereColumn == null ? " WHERE (" : " AND (") + whereClause + ")";
+    }
+    Object[] args = args(whereColumn, whereValue);
+    if (whereArgs != null && whereArgs.length > 0) {
+      Object[] combined = new Object[args.length + whereArgs.length];
+      System.arraycopy(args, 0, combined, 0, args.length);
+      System.arraycopy(whereArgs, 0, combined, args.length, whereArgs.length);
+      args = combined;
+    }
+    Cursor cursor = db.query(new SimpleSQLiteQuery(sql, args));
+    try {
+      if (!cursor.moveToFirst() || cursor.getType(0) != Cursor.FIELD_TYPE_INTEGER) {
+        return null; // Affinity and rounding are up to SQLite.
+      }
+      return cursor.getLong(0);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  synchronized void invalidate() {
+    modCount++;
+    valid = false;
+  }
+
+  /**
+   * Whether {@code a = b} holds in SQL or null if that cannot be decided without knowing the
+   * column's affinity. Text is only compared if {@code exactText}.
+   */
+  @Nullable static Boolean sqlEquals(@Nullable Object a, @Nullable Object b, boolean exactText) {
+    if (a == null || b == null) {
+      return false;
+    }
+    if (a instanceof Number && b instanceof Number) {
+      if (isIntegral(a) && isIntegral(b)) {
+        return ((Number) a).longValue() == ((Number) b).longValue();
+      }
+      return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+    }
+    if (a instanceof String && b instanceof String) {
+      return exactText ? a.equals(b) : null;
+    }
+    if (a instanceof Boolean && b instanceof Boolean) {
+      return a.equals(b);
+    }
+    return null;
+  }
+
+  /**
+   * Whether {@code column} stores text as written and compares it with the {@code BINARY}
+   * collation. Other affinities may convert text like {@code '01'} to a number, and other
+   * collations may find different text equal. Any {@code COLLATE} in the table's declaration is
+   * assumed to apply to the column.
+   */
+  static boolean comparesTextExactly(SupportSQLiteDatabase db, String table, String column) {
+    String type = null;
+    Cursor cursor = db.query("PRAGMA table_info(" + table + ")");
+    try {
+      int name = cursor.getColumnIndexOrThrow("name");
+      int declared = cursor.getColumnIndexOrThrow("type");
+      while (cursor.moveToNext()) {
+        if (column.equalsIgnoreCase(cursor.getString(name))) {
+          type = cursor.getString(declared).toUpperCase(Locale.US);
+          break;
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    // The affinity rules of https://www.sqlite.org/datatype3.html#determination_of_column_affinity.
+    if (type == null || type.contains("INT")) {
+      return false;
+    }
+    if (!type.contains("CHAR") && !type.contains("CLOB") && !type.contains("TEXT")
+        && !type.contains("BLOB") && !type.isEmpty()) {
+      return false; // REAL or NUMERIC.
+    }
+
+    cursor = db.query("SELECT sql FROM sqlite_master WHERE type = 'table' AND name = ?",
+        new Object[] { table });
+    try {
+      return cursor.moveToFirst()
+          && !cursor.getString(0).toUpperCase(Locale.US).contains("COLLATE");
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static boolean isIntegral(Object number) {
+    return number instanceof Long || number instanceof Integer || number instanceof Short
+        || number instanceof Byte;
+  }
+}
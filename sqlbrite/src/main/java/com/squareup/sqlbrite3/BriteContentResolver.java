@@ -20,7 +20,6 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.Looper;
 import android.support.annotation.CheckResult;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -33,6 +32,8 @@ import io.reactivex.ObservableTransformer;
 import io.reactivex.Scheduler;
 import io.reactivex.functions.Cancellable;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.squareup.sqlbrite3.QueryObservable.QUERY_OBSERVABLE;
 import static java.lang.System.nanoTime;
@@ -43,9 +44,8 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
  * the result of a query. Create using a {@link SqlBrite} instance.
  */
 public final class BriteContentResolver {
-  final Handler contentObserverHandler = new Handler(Looper.getMainLooper());
-
   final ContentResolver contentResolver;
+  final ContentObserverRegistry observers;
   private final Logger logger;
   private final Scheduler scheduler;
   private final ObservableTransformer<Query, Query> queryTransformer;
@@ -54,7 +54,13 @@ public final class BriteContentResolver {
 
   BriteContentResolver(ContentResolver contentResolver, Logger logger, Scheduler scheduler,
       ObservableTransformer<Query, Query> queryTransformer) {
+    this(contentResolver, logger, scheduler, queryTransformer, null);
+  }
+
+  BriteContentResolver(ContentResolver contentResolver, Logger logger, Scheduler scheduler,
+      ObservableTransformer<Query, Query> queryTransformer, @Nullable Handler observerHandler) {
     this.contentResolver = contentResolver;
+    this.observers = new ContentObserverRegistry(contentResolver, observerHandler);
     this.logger = logger;
     this.scheduler = scheduler;
     this.queryTransformer = queryTransformer;
@@ -82,6 +88,10 @@ public final class BriteContentResolver {
    * Note: To skip the immediate notification and only receive subsequent notifications when data
    * has changed call {@code skip(1)} on the returned observable.
    * <p>
+   * Subscriptions to the same {@code uri} share a single {@link ContentObserver} which is
+   * dispatched on a background thread owned by this instance. The thread only runs while there
+   * are subscriptions.
+   * <p>
    * <b>Warning:</b> this method does not perform the query! Only by subscribing to the returned
    * {@link Observable} will the operation occur.
    *
@@ -92,35 +102,21 @@ public final class BriteContentResolver {
   public QueryObservable createQuery(@NonNull final Uri uri, @Nullable final String[] projection,
       @Nullable final String selection, @Nullable final String[] selectionArgs, @Nullable
       final String sortOrder, final boolean notifyForDescendents) {
-    final Query query = new Query() {
-      @Override public Cursor run() {
-        long startNanos = nanoTime();
-        Cursor cursor = contentResolver.query(uri, projection, selection, selectionArgs, sortOrder);
-
-        if (logging) {
-          long tookMillis = NANOSECONDS.toMillis(nanoTime() - startNanos);
-          log("QUERY (%sms)\n  uri: %s\n  projection: %s\n  selection: %s\n  selectionArgs: %s\n  "
-                  + "sortOrder: %s\n  notifyForDescendents: %s", tookMillis, uri,
-              Arrays.toString(projection), selection, Arrays.toString(selectionArgs), sortOrder,
-              notifyForDescendents);
-        }
-
-        return cursor;
-      }
-    };
+    final Query query =
+        newQuery(uri, projection, selection, selectionArgs, sortOrder, notifyForDescendents);
     Observable<Query> queries = Observable.create(new ObservableOnSubscribe<Query>() {
       @Override public void subscribe(final ObservableEmitter<Query> e) throws Exception {
-        final ContentObserver observer = new ContentObserver(contentObserverHandler) {
-          @Override public void onChange(boolean selfChange) {
+        final ContentObserverRegistry.Listener listener = new ContentObserverRegistry.Listener() {
+          @Override public void onChange() {
             if (!e.isDisposed()) {
               e.onNext(query);
             }
           }
         };
-        contentResolver.registerContentObserver(uri, notifyForDescendents, observer);
+        observers.register(uri, notifyForDescendents, listener);
         e.setCancellable(new Cancellable() {
           @Override public void cancel() throws Exception {
-            contentResolver.unregisterContentObserver(observer);
+            observers.unregister(uri, notifyForDescendents, listener);
           }
         });
 
@@ -135,6 +131,92 @@ public final class BriteContentResolver {
         .to(QUERY_OBSERVABLE);
   }
 
+  /**
+   * See {@link #createQuery(Uri, String[], String, String[], String, boolean)} for usage. This
+   * overload coalesces bursts of change notifications, such as those sent by a provider applying
+   * a large batch of operations.
+   * <p>
+   * At most one notification is pending for each subscriber at any time. The first change
+   * notification schedules a query on the {@link Scheduler} supplied to
+   * {@link SqlBrite#wrapContentProvider} after {@code coalesceWindow} has elapsed and every
+   * notification which arrives before that query is emitted is folded into it. A
+   * {@code coalesceWindow} of zero only folds notifications which arrive while a previous one is
+   * still waiting for the scheduler.
+   * <p>
+   * On API 16 and newer, changes reported for a descendant of {@code uri} are ignored unless
+   * {@code notifyForDescendents} is true.
+   */
+  @CheckResult @NonNull
+  public QueryObservable createQuery(@NonNull final Uri uri, @Nullable final String[] projection,
+      @Nullable final String selection, @Nullable final String[] selectionArgs, @Nullable
+      final String sortOrder, final boolean notifyForDescendents, final long coalesceWindow,
+      @NonNull final TimeUnit unit) {
+    if (coalesceWindow < 0) throw new IllegalArgumentException("coalesceWindow < 0");
+    if (unit == null) throw new NullPointerException("unit == null");
+
+    final Query query =
+        newQuery(uri, projection, selection, selectionArgs, sortOrder, notifyForDescendents);
+    Observable<Query> queries = Observable.create(new ObservableOnSubscribe<Query>() {
+      @Override public void subscribe(final ObservableEmitter<Query> e) throws Exception {
+        final Scheduler.Worker worker = scheduler.createWorker();
+        final AtomicBoolean pending = new AtomicBoolean(true);
+        final Runnable emit = new Runnable() {
+          @Override public void run() {
+            // Clear before emitting so that changes made while the query runs are not lost.
+            pending.set(false);
+            if (!e.isDisposed()) {
+              e.onNext(query);
+            }
+          }
+        };
+        final ContentObserverRegistry.Listener listener = new ContentObserverRegistry.Listener() {
+          @Override public void onChange() {
+            if (pending.compareAndSet(false, true)) {
+              worker.schedule(emit, coalesceWindow, unit);
+            }
+          }
+        };
+        observers.register(uri, notifyForDescendents, listener);
+        e.setCancellable(new Cancellable() {
+          @Override public void cancel() throws Exception {
+            observers.unregister(uri, notifyForDescendents, listener);
+            worker.dispose();
+          }
+        });
+
+        worker.schedule(emit); // Trigger initial query.
+      }
+    });
+    return queries //
+        .compose(queryTransformer) // Apply the user's query transformer.
+        .to(QUERY_OBSERVABLE);
+  }
+
+  private Query newQuery(final Uri uri, @Nullable final String[] projection,
+      @Nullable final String selection, @Nullable final String[] selectionArgs,
+      @Nullable final String sortOrder, final boolean notifyForDescendents) {
+    return new Query() {
+      @Override public Cursor run() {
+        long startNanos = nanoTime();
+        Cursor cursor = contentResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+
+        if (logging) {
+          long tookMillis = NANOSECONDS.toMillis(nanoTime() - startNanos);
+          log("QUERY (%sms)\n  uri: %s\n  projection: %s\n  selection: %s\n  selectionArgs: %s\n  "
+                  + "sortOrder: %s\n  notifyForDescendents: %s", tookMillis, uri,
+              Arrays.toString(projection), selection, Arrays.toString(selectionArgs), sortOrder,
+              notifyForDescendents);
+        }
+
+        return cursor;
+      }
+
+      @Override Scheduler scheduler() {
+        return scheduler;
+      }
+    };
+  }
+
   void log(String message, Object... args) {
     if (args.length > 0) message = String.format(message, args);
     logger.log(message);
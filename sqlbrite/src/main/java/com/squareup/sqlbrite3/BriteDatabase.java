@@ -22,30 +22,60 @@ import android.arch.persistence.db.SupportSQLiteOpenHelper.Callback;
 import android.arch.persistence.db.SupportSQLiteQuery;
 import android.arch.persistence.db.SupportSQLiteStatement;
 import android.content.ContentValues;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteTransactionListener;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.support.annotation.CheckResult;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
 import android.support.annotation.WorkerThread;
 import com.squareup.sqlbrite3.SqlBrite.Logger;
 import com.squareup.sqlbrite3.SqlBrite.Query;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
 import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
 import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.SingleOnSubscribe;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.Disposables;
+import io.reactivex.exceptions.Exceptions;
 import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
-import io.reactivex.functions.Predicate;
 import io.reactivex.subjects.PublishSubject;
 import io.reactivex.subjects.Subject;
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.annotation.Retention;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_ABORT;
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_FAIL;
@@ -56,12 +86,26 @@ import static android.database.sqlite.SQLiteDatabase.CONFLICT_ROLLBACK;
 import static com.squareup.sqlbrite3.QueryObservable.QUERY_OBSERVABLE;
 import static java.lang.annotation.RetentionPolicy.SOURCE;
 import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * A lightweight wrapper around {@link SupportSQLiteOpenHelper} which allows for continuously
  * observing the result of a query. Create using a {@link SqlBrite} instance.
  */
 public final class BriteDatabase implements Closeable {
+  /** The first SQLite version with {@code INSERT ... ON CONFLICT DO UPDATE}. */
+  private static final int SQLITE_UPSERT = 3024000;
+  /** The first SQLite version with {@code RETURNING}. */
+  private static final int SQLITE_RETURNING = 3035000;
+
+  static final int BULK_MIN_CHUNK = 16;
+  static final int BULK_INITIAL_CHUNK = 256;
+  static final int BULK_MAX_CHUNK = 8192;
+  static final long BULK_TARGET_MILLIS = 50;
+  /** Attempts to read a snapshot without a transaction before falling back to one. */
+  static final int SNAPSHOT_ATTEMPTS = 3;
+
   private final SupportSQLiteOpenHelper helper;
   private final Logger logger;
   private final ObservableTransformer<Query, Query> queryTransformer;
@@ -93,9 +137,29 @@ public final class BriteDatabase implements Closeable {
       transactions.set(newTransaction);
       if (logging) log("TXN END %s", transaction);
       getWritableDatabase().endTransaction();
+      WorkloadRecorder recorder = BriteDatabase.this.recorder;
+      if (recorder != null) recorder.recordEnd(transaction.commit);
+      if (newTransaction != null) {
+        // The outermost transaction decides whether these apply.
+        newTransaction.aggregateChanges.addAll(transaction.aggregateChanges);
+        newTransaction.endActions.addAll(transaction.endActions);
+        if (transaction.commit) {
+          newTransaction.addAll(transaction);
+        }
+        return;
+      }
+      openTransactions.decrementAndGet();
+      endWrite();
+      noteActivity();
+      for (AggregateChange change : transaction.aggregateChanges) {
+        applyAggregateChange(change, transaction.commit);
+      }
+      for (Runnable action : transaction.endActions) {
+        action.run();
+      }
       // Send the triggers after ending the transaction in the DB.
       if (transaction.commit) {
-        sendTableTrigger(transaction);
+        notifyTables(transaction);
       }
     }
 
@@ -103,25 +167,71 @@ public final class BriteDatabase implements Closeable {
       end();
     }
   };
-  private final Consumer<Object> ensureNotInTransaction = new Consumer<Object>() {
-    @Override public void accept(Object ignored) throws Exception {
-      if (transactions.get() != null) {
-        throw new IllegalStateException("Cannot subscribe to observable query in a transaction.");
-      }
-    }
-  };
 
   private final Scheduler scheduler;
 
   // Package-private to avoid synthetic accessor method for 'transaction' instance.
   volatile boolean logging;
+  private volatile boolean batching;
+  private final Set<DatabaseQuery> activeQueries =
+      Collections.newSetFromMap(new ConcurrentHashMap<DatabaseQuery, Boolean>());
+  private final ConcurrentHashMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+  final Set<Aggregate> aggregates =
+      Collections.newSetFromMap(new ConcurrentHashMap<Aggregate, Boolean>());
+  private final ConcurrentHashMap<String, MirroredTable> mirroredTables =
+      new ConcurrentHashMap<>();
+  private volatile ChangeJournal journal;
+  private volatile Boolean jsonSupported;
+  private volatile int sqliteVersion;
+  private volatile DatabaseMaintenance maintenance;
+  private volatile IndexAdvisor indexAdvisor;
+  // Package-private to avoid synthetic accessor method for 'transaction' instance.
+  volatile WorkloadRecorder recorder;
+  /** The number of threads with an open transaction. */
+  // Package-private to avoid synthetic accessor method for 'transaction' instance.
+  final AtomicInteger openTransactions = new AtomicInteger();
+  /** Writes and transactions which began and which ended. See {@link #beginConsistentRead}. */
+  private final AtomicLong writesStarted = new AtomicLong();
+  private final AtomicLong writesFinished = new AtomicLong();
+
+  private final long triggerWindowNanos;
+  private final Scheduler triggerClock;
+  private final Object pendingTriggersLock = new Object();
+  private Set<String> pendingTriggers; // Guarded by pendingTriggersLock.
+  private final Runnable flushPendingTriggers = new Runnable() {
+    @Override public void run() {
+      Set<String> tables;
+      synchronized (pendingTriggersLock) {
+        tables = pendingTriggers;
+        pendingTriggers = null;
+      }
+      dispatchTableTrigger(tables);
+    }
+  };
+
+  private final Map<String, TableThrottle> tableThrottles;
 
   BriteDatabase(SupportSQLiteOpenHelper helper, Logger logger, Scheduler scheduler,
       ObservableTransformer<Query, Query> queryTransformer) {
+    this(helper, logger, scheduler, queryTransformer, 0, null,
+        Collections.<String, Long>emptyMap());
+  }
+
+  BriteDatabase(SupportSQLiteOpenHelper helper, Logger logger, Scheduler scheduler,
+      ObservableTransformer<Query, Query> queryTransformer, long triggerWindowNanos,
+      @Nullable Scheduler triggerClock, Map<String, Long> tableThrottles) {
     this.helper = helper;
     this.logger = logger;
     this.scheduler = scheduler;
     this.queryTransformer = queryTransformer;
+    this.triggerWindowNanos = triggerWindowNanos;
+    this.triggerClock = triggerClock;
+
+    Map<String, TableThrottle> throttles = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> entry : tableThrottles.entrySet()) {
+      throttles.put(entry.getKey(), new TableThrottle(entry.getKey(), entry.getValue()));
+    }
+    this.tableThrottles = throttles;
   }
 
   /**
@@ -131,6 +241,28 @@ public final class BriteDatabase implements Closeable {
     logging = enabled;
   }
 
+  /**
+   * Control whether queries invalidated by the same trigger are re-run as one batch.
+   * <p>
+   * When enabled, every active query affected by a trigger is run back-to-back before
+   * subscribers are notified, and each subscriber then receives the cursor which was prepared for
+   * it. This amortizes scheduling overhead when a single write invalidates many queries, and the
+   * results all reflect the same state of the database.
+   * <p>
+   * The batch does not hold a transaction, so it never blocks writers. If a write through this
+   * instance may have committed while it ran, or if any query fails, the whole batch is discarded
+   * and each query runs on its own as usual. So is the result of a query which does not fit in a
+   * single cursor window, since reading past it would query the database again. Queries created
+   * by {@link #createLongQuery}, {@link #createCountAggregate} and the like do not read through a
+   * cursor and are never batched. Neither are queries whose subscriber has not run their previous
+   * notification, such as those paused by {@link QueryObservable#pauseWhen}. A prefetched cursor
+   * which a subscriber does not take while handling its notification is closed right after it. A
+   * trigger which affects fewer than two batchable queries is delivered as usual.
+   */
+  public void setQueryBatchingEnabled(boolean enabled) {
+    batching = enabled;
+  }
+
   /**
    * Create and/or open a database.  This will be the same object returned by
    * {@link SupportSQLiteOpenHelper#getWritableDatabase} unless some problem, such as a full disk,
@@ -178,14 +310,448 @@ public final class BriteDatabase implements Closeable {
     return helper.getWritableDatabase();
   }
 
+  /**
+   * The number of times a trigger has been sent for {@code table}. This increases monotonically
+   * every time a change to {@code table} is committed and observable queries are notified, so two
+   * equal values guarantee that no change was made through this instance in between.
+   */
+  public long tableVersion(@NonNull String table) {
+    AtomicLong version = tableVersions.get(table);
+    return version != null ? version.get() : 0;
+  }
+
+  AtomicLong tableVersionCounter(String table) {
+    AtomicLong version = tableVersions.get(table);
+    if (version == null) {
+      AtomicLong newVersion = new AtomicLong();
+      version = tableVersions.putIfAbsent(table, newVersion);
+      if (version == null) {
+        version = newVersion;
+      }
+    }
+    return version;
+  }
+
   void sendTableTrigger(Set<String> tables) {
+    if (!aggregates.isEmpty()) {
+      // No delta is known for this change.
+      recordAggregateChange(AggregateChange.unknown(tables));
+    }
+    sendTableTriggerOnly(tables);
+  }
+
+  private void sendTableTriggerOnly(Set<String> tables) {
     SqliteTransaction transaction = transactions.get();
     if (transaction != null) {
       transaction.addAll(tables);
+      return;
+    }
+    notifyTables(tables);
+  }
+
+  private void notifyTables(Set<String> tables) {
+    DatabaseMaintenance maintenance = this.maintenance;
+    if (maintenance != null) {
+      maintenance.onWrite(tables.size());
+    }
+    // Advance versions before notifying so that notified queries always see them as stale.
+    for (String table : tables) {
+      tableVersionCounter(table).incrementAndGet();
+      MirroredTable mirror = mirroredTables.get(table);
+      if (mirror != null) {
+        mirror.invalidate();
+      }
+    }
+    if (!tableThrottles.isEmpty()) {
+      tables = throttle(tables);
+      if (tables.isEmpty()) {
+        return;
+      }
+    }
+    deliverTableTrigger(tables);
+  }
+
+  /** Remove the tables whose throttle interval is running. They are notified when it ends. */
+  private Set<String> throttle(Set<String> tables) {
+    Set<String> passed = tables;
+    for (String table : tables) {
+      TableThrottle throttle = tableThrottles.get(table);
+      if (throttle != null && !throttle.tryPass()) {
+        if (passed == tables) {
+          passed = new LinkedHashSet<>(tables);
+        }
+        passed.remove(table);
+      }
+    }
+    return passed;
+  }
+
+  void deliverTableTrigger(Set<String> tables) {
+    if (triggerClock != null) {
+      synchronized (pendingTriggersLock) {
+        if (pendingTriggers != null) {
+          pendingTriggers.addAll(tables); // Joins the window which is already open.
+          return;
+        }
+        pendingTriggers = new LinkedHashSet<>(tables);
+      }
+      triggerClock.scheduleDirect(flushPendingTriggers, triggerWindowNanos, NANOSECONDS);
+    } else {
+      dispatchTableTrigger(tables);
+    }
+  }
+
+  void dispatchTableTrigger(final Set<String> tables) {
+    if (batching) {
+      final List<DatabaseQuery> batch = batchFor(tables);
+      if (batch.size() >= 2) { // Otherwise there is nothing to amortize.
+        scheduler.scheduleDirect(new Runnable() {
+          @Override public void run() {
+            runBatch(tables, batch);
+            if (logging) log("TRIGGER %s", tables);
+            triggers.onNext(tables);
+          }
+        });
+        return;
+      }
+    }
+    if (logging) log("TRIGGER %s", tables);
+    triggers.onNext(tables);
+  }
+
+  /**
+   * The active queries affected by {@code tables} whose subscribers read their previous result.
+   * A query which is paused by {@link QueryObservable#pauseWhen}, or whose subscriber never runs
+   * it, would only hold a prefetched cursor open.
+   */
+  private List<DatabaseQuery> batchFor(Set<String> tables) {
+    List<DatabaseQuery> batch = new ArrayList<>();
+    for (DatabaseQuery query : activeQueries) {
+      if (query.isAffectedBy(tables) && !query.isAwaitingRun()) {
+        batch.add(query);
+      }
+    }
+    return batch;
+  }
+
+  /** Prefetch the cursors of {@code batch}, which {@code tables} affect, back-to-back. */
+  void runBatch(Set<String> tables, List<DatabaseQuery> batch) {
+    long finished = beginConsistentRead();
+    if (finished == -1) {
+      return; // A write is in flight. Its own trigger follows.
+    }
+
+    SupportSQLiteDatabase db = getReadableDatabase();
+    if (logging) log("BATCH BEGIN %s queries\n  tables: %s", batch.size(), tables);
+    try {
+      for (DatabaseQuery query : batch) {
+        query.prefetch(db);
+      }
+    } catch (RuntimeException e) {
+      // Each query runs on its own instead and reports the failure to its subscribers.
+      discardPrefetched(batch);
+      if (logging) log("BATCH FAILED %s", e);
+      return;
+    }
+    if (!isUnchangedSince(finished)) {
+      discardPrefetched(batch);
+      if (logging) log("BATCH CONCURRENT WRITE");
+      return;
+    }
+    if (logging) log("BATCH END");
+  }
+
+  private static void discardPrefetched(List<DatabaseQuery> batch) {
+    for (DatabaseQuery query : batch) {
+      query.discardPrefetched();
+    }
+  }
+
+  private List<Aggregate> beginAggregateChange(String table) {
+    if (aggregates.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Aggregate> inFlight = new ArrayList<>();
+    for (Aggregate aggregate : aggregates) {
+      if (aggregate.table.equals(table)) {
+        aggregate.beginChange();
+        inFlight.add(aggregate);
+      }
+    }
+    return inFlight;
+  }
+
+  private void recordAggregateChange(AggregateChange change) {
+    SqliteTransaction transaction = transactions.get();
+    if (transaction != null) {
+      transaction.aggregateChanges.add(change);
+    } else {
+      applyAggregateChange(change, true);
+    }
+  }
+
+  void applyAggregateChange(AggregateChange change, boolean committed) {
+    for (int i = 0, size = change.inFlight.size(); i < size; i++) {
+      Aggregate aggregate = change.inFlight.get(i);
+      if (change.removed != null) {
+        aggregate.endDelete(committed ? change.removed[i] : null);
+      } else {
+        aggregate.endInsert(committed ? change.inserted : null, change.replace);
+      }
+    }
+    if (!committed) {
+      return;
+    }
+    for (Aggregate aggregate : aggregates) {
+      if (!change.tables.contains(aggregate.table)) {
+        continue;
+      }
+      // Aggregates created after a change began cannot tell whether their value includes it.
+      if (change.unknown || ((change.inserted != null || change.removed != null)
+          && !change.inFlight.contains(aggregate))) {
+        aggregate.invalidate();
+      }
+    }
+  }
+
+  /** Whether any aggregate is kept over {@code table}. */
+  private boolean hasAggregate(String table) {
+    for (Aggregate aggregate : aggregates) {
+      if (aggregate.table.equals(table)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private SupportSQLiteQuery sqliteQuery(String sql, Object[] args) {
+    return CollectionArgs.hasCollection(args)
+        ? new CollectionArgs.LazyQuery(this, sql, args)
+        : new SimpleSQLiteQuery(sql, args);
+  }
+
+  /** Whether SQLite has the JSON1 extension. Checked once, on the calling thread. */
+  boolean isJsonSupported() {
+    Boolean jsonSupported = this.jsonSupported;
+    if (jsonSupported == null) {
+      try {
+        getReadableDatabase().query("SELECT json('[]')").close();
+        jsonSupported = true;
+      } catch (SQLiteException e) {
+        jsonSupported = false;
+      }
+      this.jsonSupported = jsonSupported;
+    }
+    return jsonSupported;
+  }
+
+  /**
+   * Run {@code action} once the outermost transaction of this thread ends, whether it committed
+   * or not, or immediately if this thread is not in a transaction.
+   */
+  void runAfterTransaction(Runnable action) {
+    SqliteTransaction transaction = transactions.get();
+    if (transaction != null) {
+      transaction.endActions.add(action);
     } else {
-      if (logging) log("TRIGGER %s", tables);
-      triggers.onNext(tables);
+      action.run();
+    }
+  }
+
+  /**
+   * Create a {@link BriteKeyValueStore} backed by {@code table}, which is created when first
+   * used. At most {@code maxCacheSize} values are held in memory.
+   */
+  @CheckResult @NonNull
+  public BriteKeyValueStore newKeyValueStore(@NonNull String table, int maxCacheSize) {
+    if (table == null) throw new NullPointerException("table == null");
+    if (maxCacheSize < 0) throw new IllegalArgumentException("maxCacheSize < 0");
+    return new BriteKeyValueStore(this, table, maxCacheSize);
+  }
+
+  /**
+   * Create a builder for {@link DatabaseMaintenance} of this database whose checks and tasks run
+   * on {@code scheduler}, which should not be the main thread.
+   */
+  @CheckResult @NonNull
+  public DatabaseMaintenance.Builder newMaintenance(@NonNull Scheduler scheduler) {
+    if (scheduler == null) throw new NullPointerException("scheduler == null");
+    return new DatabaseMaintenance.Builder(this, scheduler);
+  }
+
+  synchronized void attachMaintenance(DatabaseMaintenance maintenance) {
+    if (this.maintenance != null) {
+      throw new IllegalStateException("Maintenance is already running.");
+    }
+    this.maintenance = maintenance;
+  }
+
+  synchronized void detachMaintenance(DatabaseMaintenance maintenance) {
+    if (this.maintenance == maintenance) {
+      this.maintenance = null;
+    }
+  }
+
+  // Package-private to avoid synthetic accessor method for 'transaction' instance.
+  void noteActivity() {
+    DatabaseMaintenance maintenance = this.maintenance;
+    if (maintenance != null) {
+      maintenance.onActivity();
+    }
+  }
+
+  /** Called before a statement or outermost transaction which may commit a change. */
+  private void beginWrite() {
+    writesStarted.incrementAndGet();
+  }
+
+  /** Called after a statement or outermost transaction began with {@link #beginWrite} ended. */
+  // Package-private to avoid synthetic accessor method for 'transaction' instance.
+  void endWrite() {
+    writesFinished.incrementAndGet();
+  }
+
+  /**
+   * Returns the write count to pass to {@link #isUnchangedSince} after reading, or -1 if a write
+   * is in flight and might commit while reading.
+   */
+  long beginConsistentRead() {
+    long finished = writesFinished.get();
+    return writesStarted.get() == finished ? finished : -1;
+  }
+
+  /**
+   * True if no write through this instance could have committed since
+   * {@link #beginConsistentRead} returned {@code finished}. Every write which started since then
+   * would have been counted, and one which was in flight already would have made it return -1.
+   */
+  boolean isUnchangedSince(long finished) {
+    return finished != -1 && writesStarted.get() == finished;
+  }
+
+  /**
+   * Start recording the statements run through this instance in an {@link IndexAdvisor}. Calling
+   * this again returns the same advisor. Only statements run after this call are recorded.
+   */
+  @NonNull
+  public synchronized IndexAdvisor enableIndexAdvisor() {
+    IndexAdvisor indexAdvisor = this.indexAdvisor;
+    if (indexAdvisor == null) {
+      indexAdvisor = new IndexAdvisor(this);
+      this.indexAdvisor = indexAdvisor;
+    }
+    return indexAdvisor;
+  }
+
+  /** Stop recording statements. The advisor keeps what it recorded. */
+  public synchronized void disableIndexAdvisor() {
+    indexAdvisor = null;
+  }
+
+  /** Wrap {@code cursor} to record the time of {@code sql} if the index advisor is enabled. */
+  // Package-private to avoid synthetic accessor method for 'DatabaseQuery' instances.
+  Cursor advise(String sql, long startNanos, Cursor cursor) {
+    IndexAdvisor indexAdvisor = this.indexAdvisor;
+    return indexAdvisor != null ? indexAdvisor.recordQuery(sql, startNanos, cursor) : cursor;
+  }
+
+  /**
+   * Record a read of {@code sql} which did not return a cursor, or whose cursor was already
+   * filled, with the index advisor and the recording, if any.
+   */
+  // Package-private to avoid synthetic accessor method for 'ScalarStatement' instances.
+  void recordRead(String sql, Object[] args, long startNanos) {
+    IndexAdvisor indexAdvisor = this.indexAdvisor;
+    if (indexAdvisor != null) indexAdvisor.record(sql, System.nanoTime() - startNanos);
+    WorkloadRecorder recorder = this.recorder;
+    if (recorder != null) recorder.recordQuery(sql, args, startNanos);
+  }
+
+  // Package-private to avoid synthetic accessor method for 'DatabaseQuery' instances.
+  void recordRead(SupportSQLiteQuery query, long startNanos) {
+    IndexAdvisor indexAdvisor = this.indexAdvisor;
+    if (indexAdvisor != null) indexAdvisor.record(query.getSql(), System.nanoTime() - startNanos);
+    WorkloadRecorder recorder = this.recorder;
+    if (recorder != null) recorder.recordQuery(query, startNanos);
+  }
+
+  /**
+   * Start writing a trace of the statements and transactions run through this instance to
+   * {@code out}, which is not closed. Close the returned recorder to stop. Replay the trace with
+   * {@link WorkloadReplayer}.
+   *
+   * @param redact Whether to record only the length of text and blob arguments.
+   * @throws IllegalStateException if a recording is already running.
+   */
+  @NonNull
+  public synchronized WorkloadRecorder startRecording(@NonNull OutputStream out, boolean redact)
+      throws IOException {
+    if (out == null) throw new NullPointerException("out == null");
+    if (recorder != null) {
+      throw new IllegalStateException("Recording is already running.");
+    }
+    WorkloadRecorder recorder = new WorkloadRecorder(this, out, redact);
+    this.recorder = recorder;
+    return recorder;
+  }
+
+  synchronized void detachRecorder(WorkloadRecorder recorder) {
+    if (this.recorder == recorder) {
+      this.recorder = null;
+    }
+  }
+
+  /** Wrap {@code cursor} to record the run of {@code sql} if a recording is running. */
+  // Package-private to avoid synthetic accessor method for 'DatabaseSnapshot' instances.
+  Cursor record(String sql, Object[] args, long startNanos, Cursor cursor) {
+    WorkloadRecorder recorder = this.recorder;
+    return recorder != null ? recorder.recordQuery(sql, args, startNanos, cursor) : cursor;
+  }
+
+  /** Wrap {@code cursor} to record the run of {@code query} if a recording is running. */
+  // Package-private to avoid synthetic accessor method for 'DatabaseQuery' instances.
+  Cursor record(SupportSQLiteQuery query, long startNanos, Cursor cursor) {
+    WorkloadRecorder recorder = this.recorder;
+    return recorder != null ? recorder.recordQuery(query, startNanos, cursor) : cursor;
+  }
+
+  /**
+   * Record every change committed to {@code tables} in a persistent {@link ChangeJournal}, creating
+   * its tables if needed. Calling this again adds to the journaled tables and returns the same
+   * journal. Tables are not journaled across instances, so this should be called right after the
+   * database is wrapped.
+   */
+  @WorkerThread @NonNull
+  public synchronized ChangeJournal enableChangeJournal(@NonNull String... tables) {
+    if (tables == null) throw new NullPointerException("tables == null");
+    ChangeJournal journal = this.journal;
+    if (journal == null) {
+      ChangeJournal.createTables(getWritableDatabase());
+      journal = new ChangeJournal(this);
+      this.journal = journal;
+    }
+    journal.addTables(tables);
+    return journal;
+  }
+
+  /**
+   * Begin a transaction which makes a write to {@code tables} atomic with its journal entries, or
+   * return null if none of {@code tables} are journaled.
+   */
+  @Nullable private Transaction beginJournaled(Collection<String> tables) {
+    ChangeJournal journal = this.journal;
+    return journal != null && journal.isJournaled(tables) ? newTransaction() : null;
+  }
+
+  /** Record a change to each journaled table of {@code tables} in the current transaction. */
+  private void journal(Set<String> tables, int operation, long rowId) {
+    SupportSQLiteDatabase db = getWritableDatabase();
+    for (String table : tables) {
+      if (journal.isJournaled(table)) {
+        journal.record(db, table, operation, rowId, null);
+      }
     }
+    sendTableTriggerOnly(Collections.singleton(ChangeJournal.TABLE));
   }
 
   /**
@@ -228,9 +794,16 @@ public final class BriteDatabase implements Closeable {
   @CheckResult @NonNull
   public Transaction newTransaction() {
     SqliteTransaction transaction = new SqliteTransaction(transactions.get());
+    if (transaction.parent == null) {
+      openTransactions.incrementAndGet();
+      beginWrite();
+      noteActivity();
+    }
     transactions.set(transaction);
     if (logging) log("TXN BEGIN %s", transaction);
     getWritableDatabase().beginTransactionWithListener(transaction);
+    WorkloadRecorder recorder = this.recorder;
+    if (recorder != null) recorder.recordBegin(true);
 
     return this.transaction;
   }
@@ -275,9 +848,16 @@ public final class BriteDatabase implements Closeable {
   @CheckResult @NonNull
   public Transaction newNonExclusiveTransaction() {
     SqliteTransaction transaction = new SqliteTransaction(transactions.get());
+    if (transaction.parent == null) {
+      openTransactions.incrementAndGet();
+      beginWrite();
+      noteActivity();
+    }
     transactions.set(transaction);
     if (logging) log("TXN BEGIN %s", transaction);
     getWritableDatabase().beginTransactionWithListenerNonExclusive(transaction);
+    WorkloadRecorder recorder = this.recorder;
+    if (recorder != null) recorder.recordBegin(false);
 
     return this.transaction;
   }
@@ -309,6 +889,11 @@ public final class BriteDatabase implements Closeable {
    * Note: To skip the immediate notification and only receive subsequent notifications when data
    * has changed call {@code skip(1)} on the returned observable.
    * <p>
+   * An argument may be a {@link Collection} of values bound to the sole placeholder of an
+   * {@code IN (?)} list, such as {@code WHERE _id IN (?)}. Where SQLite has the JSON1 extension
+   * the collection is bound as a single JSON array, so the same SQL serves any number of values.
+   * Otherwise a placeholder is added for each value.
+   * <p>
    * <b>Warning:</b> this method does not perform the query! Only by subscribing to the returned
    * {@link Observable} will the operation occur.
    *
@@ -317,7 +902,7 @@ public final class BriteDatabase implements Closeable {
   @CheckResult @NonNull
   public QueryObservable createQuery(@NonNull final String table, @NonNull String sql,
       @NonNull Object... args) {
-    return createQuery(new DatabaseQuery(singletonList(table), new SimpleSQLiteQuery(sql, args)));
+    return createQuery(singletonList(table), sqliteQuery(sql, args));
   }
 
   /**
@@ -329,7 +914,7 @@ public final class BriteDatabase implements Closeable {
   @CheckResult @NonNull
   public QueryObservable createQuery(@NonNull final Iterable<String> tables, @NonNull String sql,
       @NonNull Object... args) {
-    return createQuery(new DatabaseQuery(tables, new SimpleSQLiteQuery(sql, args)));
+    return createQuery(tables, sqliteQuery(sql, args));
   }
 
   /**
@@ -358,7 +943,7 @@ public final class BriteDatabase implements Closeable {
   @CheckResult @NonNull
   public QueryObservable createQuery(@NonNull final String table,
       @NonNull SupportSQLiteQuery query) {
-    return createQuery(new DatabaseQuery(singletonList(table), query));
+    return createQuery(singletonList(table), query);
   }
 
   /**
@@ -369,106 +954,894 @@ public final class BriteDatabase implements Closeable {
    */
   @CheckResult @NonNull
   public QueryObservable createQuery(@NonNull final Iterable<String> tables,
-      @NonNull SupportSQLiteQuery query) {
-    return createQuery(new DatabaseQuery(tables, query));
-  }
-
-  @CheckResult @NonNull
-  private QueryObservable createQuery(DatabaseQuery query) {
+      @NonNull final SupportSQLiteQuery query) {
     if (transactions.get() != null) {
       throw new IllegalStateException("Cannot create observable query in transaction. "
           + "Use query() for a query inside a transaction.");
     }
 
-    return triggers //
-        .filter(query) // DatabaseQuery filters triggers to on tables we care about.
-        .map(query) // DatabaseQuery maps to itself to save an allocation.
-        .startWith(query) //
-        .observeOn(scheduler) //
+    return createQuery(tables, query, true);
+  }
+
+  /**
+   * Like {@link #createQuery(Iterable, SupportSQLiteQuery)}. Observables which map the emitted
+   * query to a value they read some other way pass false for {@code batchable}, since batching
+   * would run the query for a cursor which is never read.
+   */
+  QueryObservable createQuery(Iterable<String> tables, SupportSQLiteQuery query,
+      boolean batchable) {
+    return new DatabaseQueryObservable(tables, query, batchable) //
         .compose(queryTransformer) // Apply the user's query transformer.
-        .doOnSubscribe(ensureNotInTransaction)
         .to(QUERY_OBSERVABLE);
   }
 
   /**
-   * Runs the provided SQL and returns a {@link Cursor} over the result set.
-   *
-   * @see SupportSQLiteDatabase#query(String, Object[])
+   * Create an observable which emits the single {@code long} value returned by the provided SQL,
+   * such as a {@code COUNT(*)}. Notifications follow the same rules as
+   * {@link #createQuery(String, String, Object...)}.
+   * <p>
+   * The SQL is compiled once per subscription and re-executed with
+   * {@link SupportSQLiteStatement#simpleQueryForLong()} for each notification, so no cursor is
+   * created. It is an error for the query to return no rows.
    */
-  @CheckResult @WorkerThread
-  public Cursor query(@NonNull String sql, @NonNull Object... args) {
-    Cursor cursor = getReadableDatabase().query(sql, args);
-    if (logging) {
-      log("QUERY\n  sql: %s\n  args: %s", indentSql(sql), Arrays.toString(args));
-    }
-
-    return cursor;
+  @CheckResult @NonNull
+  public Observable<Long> createLongQuery(@NonNull String table, @NonNull String sql,
+      @NonNull Object... args) {
+    return createLongQuery(singletonList(table), sql, args);
   }
 
   /**
-   * Runs the provided {@link SupportSQLiteQuery} and returns a {@link Cursor} over the result set.
-   *
-   * @see SupportSQLiteDatabase#query(SupportSQLiteQuery)
+   * See {@link #createLongQuery(String, String, Object...)} for usage. This overload allows for
+   * monitoring multiple tables for changes.
    */
-  @CheckResult @WorkerThread
-  public Cursor query(@NonNull SupportSQLiteQuery query) {
-    Cursor cursor = getReadableDatabase().query(query);
-    if (logging) {
-      log("QUERY\n  sql: %s", indentSql(query.getSql()));
-    }
-
-    return cursor;
+  @CheckResult @NonNull
+  public Observable<Long> createLongQuery(@NonNull Iterable<String> tables, @NonNull String sql,
+      @NonNull Object... args) {
+    return createScalarQuery(tables, sql, args, new Function<ScalarStatement, Long>() {
+      @Override public Long apply(ScalarStatement statement) {
+        return statement.simpleQueryForLong();
+      }
+    });
   }
 
   /**
-   * Insert a row into the specified {@code table} and notify any subscribed queries.
-   *
-   * @see SupportSQLiteDatabase#insert(String, int, ContentValues)
+   * Create an observable which emits the single {@code String} value returned by the provided
+   * SQL. Notifications follow the same rules as {@link #createQuery(String, String, Object...)}.
+   * <p>
+   * The SQL is compiled once per subscription and re-executed with
+   * {@link SupportSQLiteStatement#simpleQueryForString()} for each notification, so no cursor is
+   * created. It is an error for the query to return no rows or a {@code NULL} value.
    */
-  @WorkerThread
-  public long insert(@NonNull String table, @ConflictAlgorithm int conflictAlgorithm,
-      @NonNull ContentValues values) {
-    SupportSQLiteDatabase db = getWritableDatabase();
-
-    if (logging) {
-      log("INSERT\n  table: %s\n  values: %s\n  conflictAlgorithm: %s", table, values,
-          conflictString(conflictAlgorithm));
-    }
-    long rowId = db.insert(table, conflictAlgorithm, values);
-
-    if (logging) log("INSERT id: %s", rowId);
-
-    if (rowId != -1) {
-      // Only send a table trigger if the insert was successful.
-      sendTableTrigger(Collections.singleton(table));
-    }
-    return rowId;
+  @CheckResult @NonNull
+  public Observable<String> createStringQuery(@NonNull String table, @NonNull String sql,
+      @NonNull Object... args) {
+    return createStringQuery(singletonList(table), sql, args);
   }
 
   /**
-   * Delete rows from the specified {@code table} and notify any subscribed queries. This method
-   * will not trigger a notification if no rows were deleted.
-   *
-   * @see SupportSQLiteDatabase#delete(String, String, Object[])
+   * See {@link #createStringQuery(String, String, Object...)} for usage. This overload allows for
+   * monitoring multiple tables for changes.
    */
-  @WorkerThread
-  public int delete(@NonNull String table, @Nullable String whereClause,
-      @Nullable String... whereArgs) {
-    SupportSQLiteDatabase db = getWritableDatabase();
+  @CheckResult @NonNull
+  public Observable<String> createStringQuery(@NonNull Iterable<String> tables,
+      @NonNull String sql, @NonNull Object... args) {
+    return createScalarQuery(tables, sql, args, new Function<ScalarStatement, String>() {
+      @Override public String apply(ScalarStatement statement) {
+        return statement.simpleQueryForString();
+      }
+    });
+  }
+
+  /**
+   * Create an observable which emits whether the provided SQL returns any rows. Notifications
+   * follow the same rules as {@link #createQuery(String, String, Object...)}.
+   * <p>
+   * The SQL is wrapped in {@code SELECT EXISTS(...)}, compiled once per subscription, and
+   * re-executed with {@link SupportSQLiteStatement#simpleQueryForLong()} for each notification,
+   * so no cursor is created and SQLite stops at the first row.
+   */
+  @CheckResult @NonNull
+  public Observable<Boolean> createExistsQuery(@NonNull String table, @NonNull String sql,
+      @NonNull Object... args) {
+    return createExistsQuery(singletonList(table), sql, args);
+  }
+
+  /**
+   * See {@link #createExistsQuery(String, String, Object...)} for usage. This overload allows for
+   * monitoring multiple tables for changes.
+   */
+  @CheckResult @NonNull
+  public Observable<Boolean> createExistsQuery(@NonNull Iterable<String> tables,
+      @NonNull String sql, @NonNull Object... args) {
+    return createScalarQuery(tables, "SELECT EXISTS(" + sql + ")", args,
+        new Function<ScalarStatement, Boolean>() {
+          @Override public Boolean apply(ScalarStatement statement) {
+            return statement.simpleQueryForLong() != 0;
+          }
+        });
+  }
+
+  /**
+   * Keep an in-memory copy of every row of {@code table} for {@link #queryMirror} and
+   * {@link #createMirrorQuery}. Use this for small tables which are read far more often than
+   * they are written, such as settings or feature flags.
+   * <p>
+   * The copy is loaded when it is first read and is replaced on the first read after each change
+   * committed through the methods of this class which notify queries. Changes made in any other
+   * way are not reflected.
+   */
+  public void mirrorTable(@NonNull String table) {
+    if (table == null) throw new NullPointerException("table == null");
+    mirroredTables.putIfAbsent(table, new MirroredTable(table));
+  }
+
+  /**
+   * Returns a {@link Cursor} over every row of the mirrored {@code table}. Unless the table
+   * changed since it was last read this does not touch the database.
+   *
+   * @throws IllegalArgumentException if {@code table} was not passed to {@link #mirrorTable}.
+   */
+  @CheckResult @WorkerThread
+  public Cursor queryMirror(@NonNull String table) {
+    MirroredTable mirror = mirroredTables.get(table);
+    if (mirror == null) {
+      throw new IllegalArgumentException("Table is not mirrored: " + table);
+    }
+    if (transactions.get() != null) {
+      // The copy only ever holds committed rows.
+      throw new IllegalStateException("Cannot read mirrored table in a transaction.");
+    }
+    return mirror.query(getReadableDatabase());
+  }
+
+  /**
+   * Create an observable which will notify subscribers with a {@linkplain Query query} over every
+   * row of the mirrored {@code table}. Running the query returns the same cursor as
+   * {@link #queryMirror}. Notifications follow the same rules as
+   * {@link #createQuery(String, String, Object...)}.
+   *
+   * @throws IllegalArgumentException if {@code table} was not passed to {@link #mirrorTable}.
+   */
+  @CheckResult @NonNull
+  public QueryObservable createMirrorQuery(@NonNull final String table) {
+    if (!mirroredTables.containsKey(table)) {
+      throw new IllegalArgumentException("Table is not mirrored: " + table);
+    }
+    if (transactions.get() != null) {
+      throw new IllegalStateException("Cannot create observable query in transaction. "
+          + "Use query() for a query inside a transaction.");
+    }
+
+    final Query mirrorQuery = new Query() {
+      @Override public Cursor run() {
+        return queryMirror(table);
+      }
+
+      @Override Scheduler scheduler() {
+        return scheduler;
+      }
+
+      @Override public String toString() {
+        return "MIRROR " + table;
+      }
+    };
+    return new DatabaseQueryObservable(singletonList(table), null, false) //
+        .map(new Function<Query, Query>() {
+          @Override public Query apply(Query query) {
+            ((DatabaseQuery) query).markRead(); // Read through the mirror instead.
+            return mirrorQuery;
+          }
+        }) //
+        .compose(queryTransformer) // Apply the user's query transformer.
+        .to(QUERY_OBSERVABLE);
+  }
+
+  /**
+   * Create an observable which emits the number of rows in {@code table}, or only of those whose
+   * {@code whereColumn} equals {@code whereValue}. Notifications follow the same rules as
+   * {@link #createQuery(String, String, Object...)}.
+   * <p>
+   * The count is kept in memory for as long as the observable is subscribed. Rows added through
+   * {@link #insert} or removed through {@link #delete} are applied to it directly once committed.
+   * Any other change to the table recomputes it with SQL, so {@code whereColumn} should be
+   * indexed. To know how many rows it removes, a delete first counts them in the same
+   * transaction.
+   */
+  @CheckResult @NonNull
+  public Observable<Long> createCountAggregate(@NonNull String table,
+      @Nullable String whereColumn, @Nullable Object whereValue) {
+    return createAggregate(table, null, whereColumn, whereValue);
+  }
+
+  /**
+   * Create an observable which emits the sum of the integer {@code sumColumn} over the rows in
+   * {@code table}, or only over those whose {@code whereColumn} equals {@code whereValue}. The sum
+   * of no rows is 0. Notifications follow the same rules as
+   * {@link #createQuery(String, String, Object...)}.
+   * <p>
+   * The sum is kept in memory for as long as the observable is subscribed. Rows added through
+   * {@link #insert} or removed through {@link #delete} with an integral {@code sumColumn} are
+   * applied to it directly once committed. Any other change to the table recomputes it with SQL,
+   * so {@code whereColumn} should be indexed. To know what the rows it removes add up to, a
+   * delete first sums them in the same transaction.
+   */
+  @CheckResult @NonNull
+  public Observable<Long> createSumAggregate(@NonNull String table, @NonNull String sumColumn,
+      @Nullable String whereColumn, @Nullable Object whereValue) {
+    if (sumColumn == null) throw new NullPointerException("sumColumn == null");
+    return createAggregate(table, sumColumn, whereColumn, whereValue);
+  }
+
+  private Observable<Long> createAggregate(final String table, @Nullable final String sumColumn,
+      @Nullable final String whereColumn, @Nullable final Object whereValue) {
+    if (table == null) throw new NullPointerException("table == null");
+    final String sql = Aggregate.sql(table, sumColumn, whereColumn);
+    final Object[] args = Aggregate.args(whereColumn, whereValue);
+    final QueryObservable queries =
+        createQuery(singletonList(table), new SimpleSQLiteQuery(sql, args), false);
+    return Observable.using(new Callable<Aggregate>() {
+      @Override public Aggregate call() {
+        ScalarStatement statement = new ScalarStatement(singletonList(table), sql, args);
+        Aggregate aggregate = new Aggregate(table, sumColumn, whereColumn, whereValue, statement);
+        aggregates.add(aggregate);
+        return aggregate;
+      }
+    }, new Function<Aggregate, ObservableSource<Long>>() {
+      @Override public ObservableSource<Long> apply(final Aggregate aggregate) {
+        return queries.map(new Function<Query, Long>() {
+          @Override public Long apply(Query query) {
+            if (query instanceof DatabaseQuery) {
+              ((DatabaseQuery) query).markRead(); // Read through the aggregate instead.
+            }
+            return aggregate.value(getReadableDatabase());
+          }
+        });
+      }
+    }, new Consumer<Aggregate>() {
+      @Override public void accept(Aggregate aggregate) {
+        aggregates.remove(aggregate);
+        aggregate.statement.close();
+      }
+    });
+  }
+
+  private <T> Observable<T> createScalarQuery(final Iterable<String> tables, final String sql,
+      final Object[] args, final Function<ScalarStatement, T> reader) {
+    final QueryObservable queries = createQuery(tables, sqliteQuery(sql, args), false);
+    return Observable.using(new Callable<ScalarStatement>() {
+      @Override public ScalarStatement call() {
+        return new ScalarStatement(tables, sql, args);
+      }
+    }, new Function<ScalarStatement, ObservableSource<T>>() {
+      @Override public ObservableSource<T> apply(final ScalarStatement statement) {
+        return queries.map(new Function<Query, T>() {
+          @Override public T apply(Query query) throws Exception {
+            if (query instanceof DatabaseQuery) {
+              ((DatabaseQuery) query).markRead(); // Read through the statement instead.
+            }
+            return reader.apply(statement);
+          }
+        });
+      }
+    }, new Consumer<ScalarStatement>() {
+      @Override public void accept(ScalarStatement statement) {
+        statement.close();
+      }
+    });
+  }
+
+  /**
+   * Create an observable which runs {@code reader} against a consistent snapshot of the database
+   * and emits its result. All queries made through the {@link Snapshot} reflect the same state of
+   * the database.
+   * <p>
+   * Subscribers will receive an immediate result as well as subsequent results for when the data
+   * of any of the supplied {@code tables} changes, exactly like {@link #createQuery}. This is
+   * preferable to combining several {@code createQuery} observables whose results may be taken
+   * from different states of the database and which each run separately for every change.
+   * <p>
+   * The snapshot does not hold a transaction, so it never blocks writers. Instead {@code reader}
+   * is run again when a write through this instance may have committed while it ran. After
+   * three attempts it runs inside a deferred transaction on the readable database, which only
+   * takes a read lock. Keep {@code reader} free of side effects and limited to the queries
+   * themselves since it may run more than once.
+   * <p>
+   * <b>Limitation:</b> only writes made through this {@code BriteDatabase} cause another attempt.
+   * Writes through another instance, another process, or {@link #getWritableDatabase()} directly
+   * go unnoticed and may leave the optimistic attempts reading from different states.
+   * <p>
+   * No {@link Query} is emitted, so the user's query transformer is not applied.
+   * <p>
+   * <b>Warning:</b> this method does not perform the queries! Only by subscribing to the returned
+   * {@link Observable} will the operation occur.
+   *
+   * @param reader Runs queries against the {@link Snapshot} and combines their results. Every
+   * {@link Cursor} must be consumed and closed before it returns. May not return null.
+   */
+  @CheckResult @NonNull
+  public <T> Observable<T> createQueries(@NonNull final Iterable<String> tables,
+      @NonNull final Function<Snapshot, T> reader) {
+    if (transactions.get() != null) {
+      throw new IllegalStateException("Cannot create observable query in transaction. "
+          + "Use query() for a query inside a transaction.");
+    }
+
+    return new DatabaseQueryObservable(tables, null, false) //
+        .map(new Function<Query, T>() {
+          @Override public T apply(Query query) throws Exception {
+            ((DatabaseQuery) query).markRead(); // Read through the snapshot instead.
+            return readSnapshot(tables, reader);
+          }
+        });
+  }
+
+  <T> T readSnapshot(Iterable<String> tables, Function<Snapshot, T> reader) throws Exception {
+    if (transactions.get() != null) {
+      throw new IllegalStateException("Cannot execute observable query in a transaction.");
+    }
+    Snapshot snapshot = new DatabaseSnapshot();
+    for (int attempt = 1; attempt <= SNAPSHOT_ATTEMPTS; attempt++) {
+      if (logging) log("SNAPSHOT BEGIN (attempt %s)\n  tables: %s", attempt, tables);
+      long finished = beginConsistentRead();
+      if (finished != -1) {
+        T result = reader.apply(snapshot);
+        if (isUnchangedSince(finished)) {
+          if (logging) log("SNAPSHOT END");
+          return result;
+        }
+      }
+      if (logging) log("SNAPSHOT CONCURRENT WRITE");
+    }
+
+    // All queries of a transaction see the same state. A deferred one takes no lock until the
+    // first query and then only a read lock, so unlike beginTransactionNonExclusive() it does
+    // not keep writers out.
+    SupportSQLiteDatabase db = getReadableDatabase();
+    if (logging) log("SNAPSHOT BEGIN (transaction)\n  tables: %s", tables);
+    db.execSQL("BEGIN DEFERRED");
+    try {
+      return reader.apply(snapshot);
+    } finally {
+      // Nothing is written so the transaction is always rolled back, which is the cheaper end.
+      db.execSQL("ROLLBACK");
+      if (logging) log("SNAPSHOT END");
+    }
+  }
+
+  /**
+   * Runs the provided SQL and returns a {@link Cursor} over the result set.
+   * <p>
+   * An argument may be a {@link Collection} bound to the sole placeholder of an {@code IN (?)}
+   * list. See {@link #createQuery(String, String, Object...)}.
+   *
+   * @see SupportSQLiteDatabase#query(String, Object[])
+   */
+  @CheckResult @WorkerThread
+  public Cursor query(@NonNull String sql, @NonNull Object... args) {
+    if (CollectionArgs.hasCollection(args)) {
+      CollectionArgs.Expanded expanded = CollectionArgs.expand(sql, args, isJsonSupported());
+      sql = expanded.sql;
+      args = expanded.args;
+    }
+    noteActivity();
+    long start = System.nanoTime();
+    Cursor cursor = getReadableDatabase().query(sql, args);
+    if (logging) {
+      log("QUERY\n  sql: %s\n  args: %s", indentSql(sql), Arrays.toString(args));
+    }
+
+    return record(sql, args, start, advise(sql, start, cursor));
+  }
+
+  /**
+   * Runs the provided {@link SupportSQLiteQuery} and returns a {@link Cursor} over the result set.
+   *
+   * @see SupportSQLiteDatabase#query(SupportSQLiteQuery)
+   */
+  @CheckResult @WorkerThread
+  public Cursor query(@NonNull SupportSQLiteQuery query) {
+    noteActivity();
+    long start = System.nanoTime();
+    Cursor cursor = getReadableDatabase().query(query);
+    if (logging) {
+      log("QUERY\n  sql: %s", indentSql(query.getSql()));
+    }
+
+    return record(query, start, advise(query.getSql(), start, cursor));
+  }
+
+  /**
+   * Create a {@link Single} which writes the rows of the provided SQL to {@code out} in
+   * {@code format} and emits the number of rows written. The rows are encoded directly from the
+   * cursor into a reused buffer, so memory use does not grow with the number of rows. {@code out}
+   * is flushed but not closed.
+   * <p>
+   * The export runs on the thread which subscribes, so use {@link Single#subscribeOn subscribeOn}
+   * to move it off of the main thread. Disposing stops it after the current row.
+   */
+  @CheckResult @NonNull
+  public Single<Long> export(@NonNull final ExportFormat format, @NonNull final OutputStream out,
+      @NonNull final String sql, @NonNull final Object... args) {
+    if (format == null) throw new NullPointerException("format == null");
+    if (out == null) throw new NullPointerException("out == null");
+    if (sql == null) throw new NullPointerException("sql == null");
+    return Single.create(new SingleOnSubscribe<Long>() {
+      @Override public void subscribe(final SingleEmitter<Long> emitter) throws Exception {
+        CursorExporter.Canceled canceled = new CursorExporter.Canceled() {
+          @Override public boolean isCanceled() {
+            return emitter.isDisposed();
+          }
+        };
+        if (canceled.isCanceled()) {
+          return;
+        }
+        if (logging) {
+          log("EXPORT\n  format: %s\n  sql: %s\n  args: %s", format, indentSql(sql),
+              Arrays.toString(args));
+        }
+        long rows;
+        Cursor cursor = query(sql, args);
+        try {
+          rows = new CursorExporter(out, format).export(cursor, canceled);
+        } finally {
+          cursor.close();
+        }
+        if (logging) log("EXPORT wrote %s %s", rows, rows != 1 ? "rows" : "row");
+        emitter.onSuccess(rows);
+      }
+    });
+  }
+
+  /**
+   * See {@link #export(ExportFormat, OutputStream, String, Object...)} for usage. This overload
+   * writes to a {@link WritableByteChannel}.
+   */
+  @CheckResult @NonNull
+  public Single<Long> export(@NonNull ExportFormat format, @NonNull WritableByteChannel channel,
+      @NonNull String sql, @NonNull Object... args) {
+    if (channel == null) throw new NullPointerException("channel == null");
+    return export(format, Channels.newOutputStream(channel), sql, args);
+  }
+
+  /**
+   * Insert a row into the specified {@code table} and notify any subscribed queries.
+   *
+   * @see SupportSQLiteDatabase#insert(String, int, ContentValues)
+   */
+  @WorkerThread
+  public long insert(@NonNull String table, @ConflictAlgorithm int conflictAlgorithm,
+      @NonNull ContentValues values) {
+    return insert(table, conflictAlgorithm, values, null);
+  }
+
+  /**
+   * Like {@link #insert(String, int, ContentValues)} but runs {@code compiled}, if not null,
+   * instead of inserting {@code values} itself. It must insert exactly {@code values}.
+   */
+  // Package-private to be used by 'BriteStatement' instances.
+  long insert(String table, int conflictAlgorithm, ContentValues values,
+      @Nullable SupportSQLiteStatement compiled) {
+    SupportSQLiteDatabase db = getWritableDatabase();
+
+    if (logging) {
+      log("INSERT\n  table: %s\n  values: %s\n  conflictAlgorithm: %s", table, values,
+          conflictString(conflictAlgorithm));
+    }
+    Set<String> tables = Collections.singleton(table);
+    Transaction journaled = beginJournaled(tables);
+    try {
+      long rowId = insertRow(db, table, conflictAlgorithm, values, journaled != null, compiled);
+
+      if (logging) log("INSERT id: %s", rowId);
+
+      if (rowId != -1) {
+        if (journaled != null) {
+          sendTableTriggerOnly(Collections.singleton(ChangeJournal.TABLE));
+        }
+        // Only send a table trigger if the insert was successful.
+        sendTableTriggerOnly(tables);
+      }
+      if (journaled != null) journaled.markSuccessful();
+      return rowId;
+    } finally {
+      if (journaled != null) journaled.end();
+    }
+  }
+
+  /**
+   * Insert {@code values} into {@code table}, with {@code compiled} if not null, and apply it to
+   * the journal, aggregates, index advisor and recording. Triggers are left to the caller. When
+   * {@code journaled}, this must run in a transaction.
+   */
+  private long insertRow(SupportSQLiteDatabase db, String table, int conflictAlgorithm,
+      ContentValues values, boolean journaled, @Nullable SupportSQLiteStatement compiled) {
+    List<Long> replaced = journaled && conflictAlgorithm == CONFLICT_REPLACE
+        ? journal.replaceCandidates(db, table, values)
+        : Collections.<Long>emptyList();
+    List<Aggregate> inFlight = beginAggregateChange(table);
+    long rowId = -1;
+    long start = System.nanoTime();
+    try {
+      beginWrite();
+      try {
+        rowId = compiled != null
+            ? compiled.executeInsert()
+            : db.insert(table, conflictAlgorithm, values);
+      } finally {
+        endWrite();
+      }
+      IndexAdvisor indexAdvisor = this.indexAdvisor;
+      if (indexAdvisor != null) {
+        indexAdvisor.recordInsert(table, values, System.nanoTime() - start);
+      }
+      WorkloadRecorder recorder = this.recorder;
+      if (recorder != null) {
+        Object[] args = new Object[values.size()];
+        recorder.recordExecute(insertSql(table, conflictAlgorithm, values, args), args, start);
+      }
+    } finally {
+      if (!inFlight.isEmpty() || !aggregates.isEmpty()) {
+        recordAggregateChange(AggregateChange.insert(table,
+            rowId != -1 ? new ContentValues(values) : null,
+            conflictAlgorithm == CONFLICT_REPLACE, inFlight));
+      }
+    }
+
+    if (rowId != -1 && journaled) {
+      journal.recordReplaced(db, table, replaced, rowId);
+      journal.record(db, table, ChangeJournal.Change.INSERT, rowId, values.keySet());
+    }
+    return rowId;
+  }
+
+  /**
+   * Insert a row into the specified {@code table} and return it as mapped by {@code mapper}, or
+   * null if it was not inserted. The row includes defaults and generated columns. Queries are
+   * notified like {@link #insert} notifies them.
+   * <p>
+   * On SQLite 3.35 and newer this is a single {@code INSERT ... RETURNING} statement. Otherwise,
+   * or when {@code table} is in the {@link ChangeJournal}, the row is inserted and then selected
+   * by its rowid in one transaction.
+   */
+  @WorkerThread @Nullable
+  public <T> T insertReturning(@NonNull String table, @ConflictAlgorithm int conflictAlgorithm,
+      @NonNull ContentValues values, @NonNull Function<Cursor, T> mapper) {
+    if (mapper == null) throw new NullPointerException("mapper == null");
+    if (sqliteVersion() >= SQLITE_RETURNING && !isJournaled(table)) {
+      Object[] args = new Object[values.size()];
+      String sql = insertSql(table, conflictAlgorithm, values, args) + " RETURNING *";
+      return executeReturning(table, sql, args, mapper);
+    }
+
+    Transaction transaction = newTransaction();
+    try {
+      long rowId = insert(table, conflictAlgorithm, values);
+      T row = rowId != -1
+          ? selectOne("SELECT * FROM " + table + " WHERE rowid = ?", new Object[] { rowId }, mapper)
+          : null;
+      transaction.markSuccessful();
+      return row;
+    } finally {
+      transaction.end();
+    }
+  }
+
+  /**
+   * Insert a row into the specified {@code table}, or update the row which has the same values in
+   * {@code conflictColumns} with the rest of {@code values}, and notify any subscribed queries.
+   * {@code conflictColumns} must be covered by a unique index.
+   * <p>
+   * On SQLite 3.24 and newer this is a single {@code INSERT ... ON CONFLICT DO UPDATE} statement.
+   * Otherwise, or when {@code table} is in the {@link ChangeJournal}, an {@link #update} is
+   * followed by an {@link #insert} if no row matched, in one transaction.
+   */
+  @WorkerThread
+  public void upsert(@NonNull String table, @NonNull String[] conflictColumns,
+      @NonNull ContentValues values) {
+    upsert(table, conflictColumns, values, null);
+  }
+
+  /**
+   * Perform an {@link #upsert(String, String[], ContentValues)} and return the resulting row as
+   * mapped by {@code mapper}.
+   * <p>
+   * On SQLite 3.35 and newer this is a single {@code INSERT ... ON CONFLICT DO UPDATE ...
+   * RETURNING} statement. Otherwise the row is selected after the upsert in the same transaction.
+   */
+  @WorkerThread @NonNull
+  public <T> T upsertReturning(@NonNull String table, @NonNull String[] conflictColumns,
+      @NonNull ContentValues values, @NonNull Function<Cursor, T> mapper) {
+    if (mapper == null) throw new NullPointerException("mapper == null");
+    return upsert(table, conflictColumns, values, mapper);
+  }
+
+  private <T> T upsert(String table, String[] conflictColumns, ContentValues values,
+      @Nullable Function<Cursor, T> mapper) {
+    if (conflictColumns == null) throw new NullPointerException("conflictColumns == null");
+    if (conflictColumns.length == 0) throw new IllegalArgumentException("No conflict columns.");
+    for (String column : conflictColumns) {
+      if (!values.containsKey(column)) {
+        throw new IllegalArgumentException("No value for conflict column: " + column);
+      }
+    }
+
+    int version = sqliteVersion();
+    boolean journaled = isJournaled(table);
+    if (version >= SQLITE_UPSERT && !journaled && (mapper == null || version >= SQLITE_RETURNING)) {
+      Object[] args = new Object[values.size()];
+      StringBuilder sql = new StringBuilder(insertSql(table, CONFLICT_NONE, values, args))
+          .append(" ON CONFLICT (");
+      for (int i = 0; i < conflictColumns.length; i++) {
+        if (i > 0) sql.append(", ");
+        sql.append(conflictColumns[i]);
+      }
+      sql.append(") DO UPDATE SET ");
+      boolean first = true;
+      for (String column : values.keySet()) {
+        if (!Arrays.asList(conflictColumns).contains(column)) {
+          if (!first) sql.append(", ");
+          sql.append(column).append(" = excluded.").append(column);
+          first = false;
+        }
+      }
+      if (first) {
+        // Only conflict columns were given. A no-op update still yields the row for RETURNING.
+        sql.append(conflictColumns[0]).append(" = excluded.").append(conflictColumns[0]);
+      }
+      if (mapper != null) {
+        return executeReturning(table, sql.append(" RETURNING *").toString(), args, mapper);
+      }
+      if (logging) log("UPSERT\n  table: %s\n  values: %s", table, values);
+      long start = System.nanoTime();
+      beginWrite();
+      try {
+        getWritableDatabase().execSQL(sql.toString(), args);
+      } finally {
+        endWrite();
+      }
+      IndexAdvisor indexAdvisor = this.indexAdvisor;
+      if (indexAdvisor != null) indexAdvisor.record(sql.toString(), System.nanoTime() - start);
+      WorkloadRecorder recorder = this.recorder;
+      if (recorder != null) recorder.recordExecute(sql.toString(), args, start);
+      sendTableTrigger(Collections.singleton(table));
+      return null;
+    }
+
+    StringBuilder where = new StringBuilder();
+    // Bound as is. As strings, booleans and blobs would not match their stored values.
+    Object[] whereArgs = new Object[conflictColumns.length];
+    for (int i = 0; i < conflictColumns.length; i++) {
+      if (i > 0) where.append(" AND ");
+      where.append(conflictColumns[i]).append(" = ?");
+      whereArgs[i] = values.get(conflictColumns[i]);
+    }
+    Transaction transaction = newTransaction();
+    try {
+      T row = null;
+      if (updateRows(table, CONFLICT_NONE, values, where.toString(), whereArgs, null) == 0) {
+        long rowId = insert(table, CONFLICT_NONE, values);
+        if (mapper != null) {
+          row = selectOne("SELECT * FROM " + table + " WHERE rowid = ?",
+              new Object[] { rowId }, mapper);
+        }
+      } else if (mapper != null) {
+        row = selectOne("SELECT * FROM " + table + " WHERE " + where, whereArgs, mapper);
+      }
+      transaction.markSuccessful();
+      return row;
+    } finally {
+      transaction.end();
+    }
+  }
+
+  /** Build an {@code INSERT} of {@code values}, filling {@code args} with their values. */
+  private static String insertSql(String table, int conflictAlgorithm, ContentValues values,
+      Object[] args) {
+    StringBuilder sql = new StringBuilder("INSERT")
+        .append(BriteStatement.CONFLICT_VALUES[conflictAlgorithm])
+        .append(" INTO ")
+        .append(table)
+        .append(" (");
+    int i = 0;
+    for (String column : values.keySet()) {
+      if (i > 0) sql.append(", ");
+      sql.append(column);
+      args[i++] = values.get(column);
+    }
+    sql.append(") VALUES (");
+    for (i = 0; i < args.length; i++) {
+      sql.append(i > 0 ? ", ?" : "?");
+    }
+    return sql.append(')').toString();
+  }
+
+  /** The SQL of {@link #update}, filling {@code args} with the values then the where args. */
+  private static String updateSql(String table, int conflictAlgorithm, ContentValues values,
+      @Nullable String whereClause, @Nullable Object[] whereArgs, Object[] args) {
+    StringBuilder sql = new StringBuilder("UPDATE")
+        .append(BriteStatement.CONFLICT_VALUES[conflictAlgorithm])
+        .append(' ')
+        .append(table)
+        .append(" SET ");
+    int i = 0;
+    for (String column : values.keySet()) {
+      if (i > 0) sql.append(", ");
+      sql.append(column).append(" = ?");
+      args[i++] = values.get(column);
+    }
+    if (whereArgs != null) {
+      System.arraycopy(whereArgs, 0, args, i, whereArgs.length);
+    }
+    if (whereClause != null && !whereClause.isEmpty()) {
+      sql.append(" WHERE ").append(whereClause);
+    }
+    return sql.toString();
+  }
+
+  /** Run a write with a {@code RETURNING} clause and map the row it returned, if any. */
+  @Nullable private <T> T executeReturning(String table, String sql, Object[] args,
+      Function<Cursor, T> mapper) {
+    if (logging) log("EXECUTE\n  sql: %s\n  args: %s", indentSql(sql), Arrays.toString(args));
+    T row;
+    // The statement runs when the cursor is first read. Do that before committing.
+    Transaction transaction = newTransaction();
+    try {
+      Cursor cursor = getWritableDatabase().query(sql, args);
+      try {
+        row = cursor.moveToFirst() ? mapper.apply(cursor) : null;
+      } finally {
+        cursor.close();
+      }
+      if (row != null) {
+        sendTableTrigger(Collections.singleton(table));
+      }
+      transaction.markSuccessful();
+    } catch (Exception e) {
+      throw Exceptions.propagate(e);
+    } finally {
+      transaction.end();
+    }
+    return row;
+  }
+
+  @Nullable private <T> T selectOne(String sql, Object[] args, Function<Cursor, T> mapper) {
+    Cursor cursor = query(sql, args);
+    try {
+      return cursor.moveToFirst() ? mapper.apply(cursor) : null;
+    } catch (Exception e) {
+      throw Exceptions.propagate(e);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private boolean isJournaled(String table) {
+    ChangeJournal journal = this.journal;
+    return journal != null && journal.isJournaled(table);
+  }
+
+  /** The SQLite library version as {@code major * 1000000 + minor * 1000 + patch}. */
+  int sqliteVersion() {
+    int sqliteVersion = this.sqliteVersion;
+    if (sqliteVersion == 0) {
+      Cursor cursor = getReadableDatabase().query("SELECT sqlite_version()");
+      try {
+        cursor.moveToFirst();
+        sqliteVersion = parseSqliteVersion(cursor.getString(0));
+      } finally {
+        cursor.close();
+      }
+      this.sqliteVersion = sqliteVersion;
+    }
+    return sqliteVersion;
+  }
+
+  static int parseSqliteVersion(String version) {
+    String[] parts = version.split("\\.");
+    int parsed = 0;
+    for (int i = 0; i < 3; i++) {
+      parsed = parsed * 1000 + (i < parts.length ? Integer.parseInt(parts[i]) : 0);
+    }
+    return parsed;
+  }
+
+  /**
+   * Delete rows from the specified {@code table} and notify any subscribed queries. This method
+   * will not trigger a notification if no rows were deleted.
+   *
+   * @see SupportSQLiteDatabase#delete(String, String, Object[])
+   */
+  @WorkerThread
+  public int delete(@NonNull String table, @Nullable String whereClause,
+      @Nullable String... whereArgs) {
+    return delete(table, whereClause, (Object[]) whereArgs);
+  }
+
+  /**
+   * Delete rows from the specified {@code table} and notify any subscribed queries. This method
+   * will not trigger a notification if no rows were deleted.
+   * <p>
+   * An argument may be a {@link Collection} bound to the sole placeholder of an {@code IN (?)}
+   * list. See {@link #createQuery(String, String, Object...)}.
+   *
+   * @see SupportSQLiteDatabase#delete(String, String, Object[])
+   */
+  @WorkerThread
+  public int delete(@NonNull String table, @Nullable String whereClause,
+      @Nullable Object... whereArgs) {
+    SupportSQLiteDatabase db = getWritableDatabase();
+
+    if (whereClause != null && CollectionArgs.hasCollection(whereArgs)) {
+      CollectionArgs.Expanded expanded =
+          CollectionArgs.expand(whereClause, whereArgs, isJsonSupported());
+      whereClause = expanded.sql;
+      whereArgs = expanded.args;
+    }
 
     if (logging) {
       log("DELETE\n  table: %s\n  whereClause: %s\n  whereArgs: %s", table, whereClause,
           Arrays.toString(whereArgs));
     }
-    int rows = db.delete(table, whereClause, whereArgs);
+    Set<String> tables = Collections.singleton(table);
+    Transaction journaled = beginJournaled(tables);
+    // The deleted rows are read for their aggregate deltas in the same transaction.
+    Transaction transaction =
+        journaled == null && hasAggregate(table) ? newTransaction() : journaled;
+    try {
+      if (journaled != null) {
+        journal.recordWhere(db, table, ChangeJournal.Change.DELETE, null, whereClause, whereArgs);
+      }
+      List<Aggregate> inFlight = beginAggregateChange(table);
+      Long[] removed = null;
+      int rows = 0;
+      try {
+        Long[] contributions = new Long[inFlight.size()];
+        if (transaction != null) { // Otherwise an aggregate was created since. Recompute it.
+          for (int i = 0; i < contributions.length; i++) {
+            contributions[i] = inFlight.get(i).contribution(db, whereClause, whereArgs);
+          }
+        }
 
-    if (logging) log("DELETE affected %s %s", rows, rows != 1 ? "rows" : "row");
+        long start = System.nanoTime();
+        beginWrite();
+        try {
+          rows = db.delete(table, whereClause, whereArgs);
+        } finally {
+          endWrite();
+        }
+        removed = contributions;
+        IndexAdvisor indexAdvisor = this.indexAdvisor;
+        if (indexAdvisor != null) {
+          indexAdvisor.recordDelete(table, whereClause, System.nanoTime() - start);
+        }
+        WorkloadRecorder recorder = this.recorder;
+        if (recorder != null) {
+          recorder.recordExecute(whereClause != null && !whereClause.isEmpty()
+                  ? "DELETE FROM " + table + " WHERE " + whereClause
+                  : "DELETE FROM " + table,
+              whereArgs != null ? whereArgs : new Object[0], start);
+        }
+      } finally {
+        if (!inFlight.isEmpty() || (rows > 0 && !aggregates.isEmpty())) {
+          recordAggregateChange(AggregateChange.delete(table,
+              removed != null ? removed : new Long[inFlight.size()], inFlight));
+        }
+      }
 
-    if (rows > 0) {
-      // Only send a table trigger if rows were affected.
-      sendTableTrigger(Collections.singleton(table));
+      if (logging) log("DELETE affected %s %s", rows, rows != 1 ? "rows" : "row");
+
+      if (rows > 0) {
+        if (journaled != null) {
+          sendTableTriggerOnly(Collections.singleton(ChangeJournal.TABLE));
+        }
+        // Only send a table trigger if rows were affected.
+        sendTableTriggerOnly(tables);
+      }
+      if (transaction != null) transaction.markSuccessful();
+      return rows;
+    } finally {
+      if (transaction != null) transaction.end();
     }
-    return rows;
   }
 
   /**
@@ -480,6 +1853,17 @@ public final class BriteDatabase implements Closeable {
   @WorkerThread
   public int update(@NonNull String table, @ConflictAlgorithm int conflictAlgorithm,
       @NonNull ContentValues values, @Nullable String whereClause, @Nullable String... whereArgs) {
+    return updateRows(table, conflictAlgorithm, values, whereClause, whereArgs, null);
+  }
+
+  /**
+   * Update the rows matching {@code whereClause} with {@code values}, with {@code compiled} if not
+   * null. It must run exactly this update.
+   */
+  // Package-private to be used by 'BriteStatement' instances.
+  int updateRows(String table, int conflictAlgorithm, ContentValues values,
+      @Nullable String whereClause, @Nullable Object[] whereArgs,
+      @Nullable SupportSQLiteStatement compiled) {
     SupportSQLiteDatabase db = getWritableDatabase();
 
     if (logging) {
@@ -487,15 +1871,92 @@ public final class BriteDatabase implements Closeable {
           table, values, whereClause, Arrays.toString(whereArgs),
           conflictString(conflictAlgorithm));
     }
-    int rows = db.update(table, conflictAlgorithm, values, whereClause, whereArgs);
+    Set<String> tables = Collections.singleton(table);
+    Transaction journaled = beginJournaled(tables);
+    try {
+      if (journaled != null) {
+        // May include rows which a conflict algorithm then skips. Consumers see them unchanged.
+        journal.recordWhere(db, table, ChangeJournal.Change.UPDATE, values.keySet(), whereClause,
+            whereArgs);
+      }
+      long start = System.nanoTime();
+      int rows;
+      beginWrite();
+      try {
+        rows = compiled != null
+            ? compiled.executeUpdateDelete()
+            : db.update(table, conflictAlgorithm, values, whereClause, whereArgs);
+      } finally {
+        endWrite();
+      }
+      IndexAdvisor indexAdvisor = this.indexAdvisor;
+      if (indexAdvisor != null) {
+        indexAdvisor.recordUpdate(table, values, whereClause, System.nanoTime() - start);
+      }
+      WorkloadRecorder recorder = this.recorder;
+      if (recorder != null) {
+        Object[] args = new Object[values.size() + (whereArgs != null ? whereArgs.length : 0)];
+        recorder.recordExecute(updateSql(table, conflictAlgorithm, values, whereClause, whereArgs,
+            args), args, start);
+      }
+
+      if (logging) log("UPDATE affected %s %s", rows, rows != 1 ? "rows" : "row");
+
+      if (rows > 0) {
+        if (journaled != null) {
+          sendTableTriggerOnly(Collections.singleton(ChangeJournal.TABLE));
+        }
+        // Only send a table trigger if rows were affected.
+        sendTableTrigger(tables);
+      }
+      if (journaled != null) journaled.markSuccessful();
+      return rows;
+    } finally {
+      if (journaled != null) journaled.end();
+    }
+  }
+
+  /**
+   * Compile an {@code INSERT} of {@code columns} into {@code table} whose values are bound by
+   * position in the order of {@code columns}. The returned statement should be reused for every
+   * row and closed when done. Executing it notifies queries like {@link #insert} does.
+   */
+  @CheckResult @NonNull
+  public BriteStatement compileInsert(@NonNull String table,
+      @ConflictAlgorithm int conflictAlgorithm, @NonNull String... columns) {
+    if (table == null) throw new NullPointerException("table == null");
+    if (columns == null) throw new NullPointerException("columns == null");
+    if (columns.length == 0) throw new IllegalArgumentException("No columns.");
+    return BriteStatement.insert(this, table, conflictAlgorithm, columns);
+  }
 
-    if (logging) log("UPDATE affected %s %s", rows, rows != 1 ? "rows" : "row");
+  /**
+   * Compile {@code sql} against the writable database for use with {@link #executeInsert} and
+   * {@link #executeUpdateDelete}. Unlike a statement compiled on the
+   * {@link SupportSQLiteDatabase} directly, its runs are included in a
+   * {@linkplain #startRecording recording}.
+   */
+  @CheckResult @NonNull
+  public SupportSQLiteStatement compileStatement(@NonNull String sql) {
+    if (sql == null) throw new NullPointerException("sql == null");
+    return new WorkloadRecorder.RecordableStatement(sql,
+        getWritableDatabase().compileStatement(sql));
+  }
 
-    if (rows > 0) {
-      // Only send a table trigger if rows were affected.
-      sendTableTrigger(Collections.singleton(table));
-    }
-    return rows;
+  /**
+   * Compile an {@code UPDATE} of {@code columns} in {@code table} for the rows matching
+   * {@code whereClause}. The new values are bound by position in the order of {@code columns},
+   * followed by any arguments of {@code whereClause}. The returned statement should be reused and
+   * closed when done. Executing it notifies queries like {@link #update} does.
+   */
+  @CheckResult @NonNull
+  public BriteStatement compileUpdate(@NonNull String table,
+      @ConflictAlgorithm int conflictAlgorithm, @Nullable String whereClause,
+      @NonNull String... columns) {
+    if (table == null) throw new NullPointerException("table == null");
+    if (columns == null) throw new NullPointerException("columns == null");
+    if (columns.length == 0) throw new IllegalArgumentException("No columns.");
+    return BriteStatement.update(this, table, conflictAlgorithm, whereClause, columns);
   }
 
   /**
@@ -511,7 +1972,17 @@ public final class BriteDatabase implements Closeable {
   public void execute(String sql) {
     if (logging) log("EXECUTE\n  sql: %s", indentSql(sql));
 
-    getWritableDatabase().execSQL(sql);
+    long start = System.nanoTime();
+    beginWrite();
+    try {
+      getWritableDatabase().execSQL(sql);
+    } finally {
+      endWrite();
+    }
+    IndexAdvisor indexAdvisor = this.indexAdvisor;
+    if (indexAdvisor != null) indexAdvisor.record(sql, System.nanoTime() - start);
+    WorkloadRecorder recorder = this.recorder;
+    if (recorder != null) recorder.recordExecute(sql, new Object[0], start);
   }
 
   /**
@@ -527,7 +1998,17 @@ public final class BriteDatabase implements Closeable {
   public void execute(String sql, Object... args) {
     if (logging) log("EXECUTE\n  sql: %s\n  args: %s", indentSql(sql), Arrays.toString(args));
 
-    getWritableDatabase().execSQL(sql, args);
+    long start = System.nanoTime();
+    beginWrite();
+    try {
+      getWritableDatabase().execSQL(sql, args);
+    } finally {
+      endWrite();
+    }
+    IndexAdvisor indexAdvisor = this.indexAdvisor;
+    if (indexAdvisor != null) indexAdvisor.record(sql, System.nanoTime() - start);
+    WorkloadRecorder recorder = this.recorder;
+    if (recorder != null) recorder.recordExecute(sql, args, start);
   }
 
   /**
@@ -551,9 +2032,18 @@ public final class BriteDatabase implements Closeable {
    */
   @WorkerThread
   public void executeAndTrigger(Set<String> tables, String sql) {
-    execute(sql);
+    Transaction journaled = beginJournaled(tables);
+    try {
+      execute(sql);
 
-    sendTableTrigger(tables);
+      if (journaled != null) {
+        journal(tables, ChangeJournal.Change.UNKNOWN, -1);
+        journaled.markSuccessful();
+      }
+      sendTableTrigger(tables);
+    } finally {
+      if (journaled != null) journaled.end();
+    }
   }
 
   /**
@@ -577,9 +2067,18 @@ public final class BriteDatabase implements Closeable {
    */
   @WorkerThread
   public void executeAndTrigger(Set<String> tables, String sql, Object... args) {
-    execute(sql, args);
+    Transaction journaled = beginJournaled(tables);
+    try {
+      execute(sql, args);
 
-    sendTableTrigger(tables);
+      if (journaled != null) {
+        journal(tables, ChangeJournal.Change.UNKNOWN, -1);
+        journaled.markSuccessful();
+      }
+      sendTableTrigger(tables);
+    } finally {
+      if (journaled != null) journaled.end();
+    }
   }
 
   /**
@@ -606,12 +2105,31 @@ public final class BriteDatabase implements Closeable {
   public int executeUpdateDelete(Set<String> tables, SupportSQLiteStatement statement) {
     if (logging) log("EXECUTE\n %s", statement);
 
-    int rows = statement.executeUpdateDelete();
-    if (rows > 0) {
-      // Only send a table trigger if rows were affected.
-      sendTableTrigger(tables);
+    Transaction journaled = beginJournaled(tables);
+    try {
+      long start = System.nanoTime();
+      int rows;
+      beginWrite();
+      try {
+        rows = statement.executeUpdateDelete();
+      } finally {
+        endWrite();
+      }
+      IndexAdvisor indexAdvisor = this.indexAdvisor;
+      if (indexAdvisor != null) indexAdvisor.recordWrite(tables, System.nanoTime() - start);
+      record(statement, start);
+      if (rows > 0) {
+        if (journaled != null) {
+          journal(tables, ChangeJournal.Change.UNKNOWN, -1);
+        }
+        // Only send a table trigger if rows were affected.
+        sendTableTrigger(tables);
+      }
+      if (journaled != null) journaled.markSuccessful();
+      return rows;
+    } finally {
+      if (journaled != null) journaled.end();
     }
-    return rows;
   }
 
   /**
@@ -639,12 +2157,154 @@ public final class BriteDatabase implements Closeable {
   public long executeInsert(Set<String> tables, SupportSQLiteStatement statement) {
     if (logging) log("EXECUTE\n %s", statement);
 
-    long rowId = statement.executeInsert();
-    if (rowId != -1) {
-      // Only send a table trigger if the insert was successful.
-      sendTableTrigger(tables);
+    Transaction journaled = beginJournaled(tables);
+    try {
+      long start = System.nanoTime();
+      long rowId;
+      beginWrite();
+      try {
+        rowId = statement.executeInsert();
+      } finally {
+        endWrite();
+      }
+      IndexAdvisor indexAdvisor = this.indexAdvisor;
+      if (indexAdvisor != null) indexAdvisor.recordWrite(tables, System.nanoTime() - start);
+      record(statement, start);
+      if (rowId != -1) {
+        if (journaled != null) {
+          // The row ID is ambiguous when several tables are triggered.
+          journal(tables, tables.size() == 1 ? ChangeJournal.Change.INSERT
+              : ChangeJournal.Change.UNKNOWN, tables.size() == 1 ? rowId : -1);
+        }
+        // Only send a table trigger if the insert was successful.
+        sendTableTrigger(tables);
+      }
+      if (journaled != null) journaled.markSuccessful();
+      return rowId;
+    } finally {
+      if (journaled != null) journaled.end();
     }
-    return rowId;
+  }
+
+  /** Record the run of {@code statement} if a recording is running and its SQL is known. */
+  private void record(SupportSQLiteStatement statement, long startNanos) {
+    WorkloadRecorder recorder = this.recorder;
+    if (recorder != null && statement instanceof WorkloadRecorder.RecordableStatement) {
+      WorkloadRecorder.RecordableStatement recordable =
+          (WorkloadRecorder.RecordableStatement) statement;
+      recorder.recordExecute(recordable.sql, recordable.args(), startNanos);
+    }
+  }
+
+  /**
+   * Insert every row of {@code rows} into {@code table} in chunks which are each committed in
+   * their own transaction, and return the number of rows inserted. Each chunk notifies queries
+   * once.
+   * <p>
+   * Chunks are sized to hold the database for about 50ms at a time. Outside of a transaction, a
+   * chunk which ends while another thread is waiting for the database yields to it, and the
+   * following chunks are made smaller. Chunks already committed stay committed if a later row
+   * fails. Each row reaches the same hooks as one inserted with {@link #insert}, such as the
+   * {@linkplain ChangeJournal change journal}, aggregates and {@linkplain #startRecording
+   * recording}.
+   *
+   * @param progress notified on this thread after each chunk. May be null.
+   */
+  @WorkerThread
+  public long bulkInsert(@NonNull String table, @ConflictAlgorithm int conflictAlgorithm,
+      @NonNull Iterator<ContentValues> rows, @Nullable BulkInsertProgress progress) {
+    if (table == null) throw new NullPointerException("table == null");
+    if (rows == null) throw new NullPointerException("rows == null");
+    SupportSQLiteDatabase db = getWritableDatabase();
+    Set<String> tables = Collections.singleton(table);
+    boolean journaled = isJournaled(table);
+
+    int chunkSize = BULK_INITIAL_CHUNK;
+    long inserted = 0;
+    while (rows.hasNext()) {
+      long start = System.nanoTime();
+      int count = 0;
+      long chunkInserted = 0;
+      boolean yielded = false;
+      Transaction transaction = newTransaction();
+      try {
+        boolean outermost = transactions.get().parent == null;
+        while (count < chunkSize && rows.hasNext()) {
+          if (insertRow(db, table, conflictAlgorithm, rows.next(), journaled, null) != -1) {
+            chunkInserted++;
+          }
+          count++;
+        }
+        if (chunkInserted > 0) {
+          if (journaled) {
+            sendTableTriggerOnly(Collections.singleton(ChangeJournal.TABLE));
+          }
+          sendTableTriggerOnly(tables);
+        }
+        // Only the outermost transaction can yield. Yielding once the whole chunk is in and its
+        // trigger is queued, readers never see part of a chunk and its trigger follows right away.
+        yielded = outermost && transaction.yieldIfContendedSafely();
+        transaction.markSuccessful();
+      } finally {
+        transaction.end();
+      }
+      inserted += chunkInserted;
+
+      if (logging) {
+        log("BULK INSERT\n  table: %s\n  rows: %s\n  inserted: %s", table, count,
+            chunkInserted);
+      }
+      if (progress != null) {
+        progress.onChunkInserted(inserted);
+      }
+      chunkSize = nextChunkSize(chunkSize, System.nanoTime() - start, yielded);
+    }
+    return inserted;
+  }
+
+  /**
+   * See {@link #bulkInsert(String, int, Iterator, BulkInsertProgress)} for usage. {@code rows} is
+   * subscribed to and consumed on this thread and disposed if inserting fails.
+   */
+  @WorkerThread
+  public long bulkInsert(@NonNull String table, @ConflictAlgorithm int conflictAlgorithm,
+      @NonNull Flowable<ContentValues> rows, @Nullable BulkInsertProgress progress) {
+    if (rows == null) throw new NullPointerException("rows == null");
+    Iterator<ContentValues> iterator = rows.blockingIterable(BULK_INITIAL_CHUNK).iterator();
+    boolean success = false;
+    try {
+      long inserted = bulkInsert(table, conflictAlgorithm, iterator, progress);
+      success = true;
+      return inserted;
+    } finally {
+      if (!success && iterator instanceof Disposable) {
+        ((Disposable) iterator).dispose();
+      }
+    }
+  }
+
+  /**
+   * Grow or shrink a chunk which took {@code tookNanos} towards {@link #BULK_TARGET_MILLIS}, and
+   * halve it if the database was yielded to another thread.
+   */
+  static int nextChunkSize(int chunkSize, long tookNanos, boolean yielded) {
+    long next;
+    if (yielded) {
+      next = chunkSize / 2;
+    } else if (tookNanos <= 0) {
+      next = chunkSize * 2L;
+    } else {
+      // Grow at most twofold per chunk so one fast chunk does not overshoot.
+      next = Math.min(chunkSize * MILLISECONDS.toNanos(BULK_TARGET_MILLIS) / tookNanos,
+          chunkSize * 2L);
+    }
+    return (int) Math.max(BULK_MIN_CHUNK, Math.min(next, BULK_MAX_CHUNK));
+  }
+
+  /** Receives the progress of {@link #bulkInsert}. */
+  public interface BulkInsertProgress {
+    /** Called after each chunk with the number of rows inserted so far. */
+    void onChunkInserted(long rowsInserted);
   }
 
   /** An in-progress database transaction. */
@@ -707,6 +2367,29 @@ public final class BriteDatabase implements Closeable {
     @Override void close();
   }
 
+  /**
+   * A consistent view of the database passed to the reader of
+   * {@link #createQueries(Iterable, Function)}. Only valid until the reader returns.
+   */
+  public interface Snapshot {
+    /**
+     * Runs the provided SQL and returns a {@link Cursor} over the result set.
+     *
+     * @see SupportSQLiteDatabase#query(String, Object[])
+     */
+    @CheckResult @WorkerThread
+    Cursor query(@NonNull String sql, @NonNull Object... args);
+
+    /**
+     * Runs the provided {@link SupportSQLiteQuery} and returns a {@link Cursor} over the result
+     * set.
+     *
+     * @see SupportSQLiteDatabase#query(SupportSQLiteQuery)
+     */
+    @CheckResult @WorkerThread
+    Cursor query(@NonNull SupportSQLiteQuery query);
+  }
+
   @IntDef({
       CONFLICT_ABORT,
       CONFLICT_FAIL,
@@ -750,6 +2433,8 @@ public final class BriteDatabase implements Closeable {
   static final class SqliteTransaction extends LinkedHashSet<String>
       implements SQLiteTransactionListener {
     final SqliteTransaction parent;
+    final List<AggregateChange> aggregateChanges = new ArrayList<>();
+    final List<Runnable> endActions = new ArrayList<>();
     boolean commit;
 
     SqliteTransaction(SqliteTransaction parent) {
@@ -772,45 +2457,534 @@ public final class BriteDatabase implements Closeable {
     }
   }
 
-  final class DatabaseQuery extends Query
-      implements Function<Set<String>, Query>, Predicate<Set<String>> {
+  /**
+   * The source of {@link #createQuery} notifications. This fuses filtering triggers by table,
+   * checking the transaction state, and moving to the scheduler into a single operator. Each
+   * subscriber gets its own {@link DatabaseQuery} which is also what gets emitted, so triggers
+   * cause no allocations.
+   * <p>
+   * Without a {@code query} the emitted {@link DatabaseQuery} only tracks the versions of the
+   * tables for observables which read them some other way and map it away.
+   */
+  final class DatabaseQueryObservable extends Observable<Query> {
     private final Iterable<String> tables;
-    private final SupportSQLiteQuery query;
+    @Nullable private final SupportSQLiteQuery query;
+    private final boolean batchable;
 
-    DatabaseQuery(Iterable<String> tables, SupportSQLiteQuery query) {
+    DatabaseQueryObservable(Iterable<String> tables, @Nullable SupportSQLiteQuery query,
+        boolean batchable) {
       this.tables = tables;
       this.query = query;
+      this.batchable = batchable;
     }
 
-    @Override public Cursor run() {
+    @Override protected void subscribeActual(Observer<? super Query> observer) {
       if (transactions.get() != null) {
-        throw new IllegalStateException("Cannot execute observable query in a transaction.");
+        observer.onSubscribe(Disposables.empty());
+        observer.onError(
+            new IllegalStateException("Cannot subscribe to observable query in a transaction."));
+        return;
       }
+      DatabaseQuery databaseQuery = new DatabaseQuery(tables, query);
+      QueryEmitter emitter =
+          new QueryEmitter(observer, databaseQuery, scheduler.createWorker());
+      observer.onSubscribe(emitter);
+      if (batchable) {
+        activeQueries.add(databaseQuery);
+      }
+      triggers.subscribe(emitter);
+      emitter.schedule(); // Initial notification.
+    }
+  }
 
-      Cursor cursor = getReadableDatabase().query(query);
+  /**
+   * Delivers a single subscriber's query on its own scheduler worker. Instead of queueing one
+   * task per trigger, a flag records whether a task is already pending. Triggers arriving before
+   * it runs are folded into it since they would all run the same query.
+   */
+  final class QueryEmitter implements Observer<Set<String>>, Disposable, Runnable {
+    private final Observer<? super Query> downstream;
+    private final DatabaseQuery query;
+    private final Scheduler.Worker worker;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile Disposable upstream;
+    private volatile boolean disposed;
+
+    QueryEmitter(Observer<? super Query> downstream, DatabaseQuery query,
+        Scheduler.Worker worker) {
+      this.downstream = downstream;
+      this.query = query;
+      this.worker = worker;
+    }
 
-      if (logging) {
-        log("QUERY\n  tables: %s\n  sql: %s", tables, indentSql(query.getSql()));
+    @Override public void onSubscribe(Disposable d) {
+      upstream = d;
+      if (disposed) {
+        d.dispose();
       }
+    }
 
-      return cursor;
+    @Override public void onNext(Set<String> triggered) {
+      if (query.isAffectedBy(triggered)) {
+        query.cancel(); // The in-flight result is about to be superseded.
+        schedule();
+      }
     }
 
-    @Override public String toString() {
-      return query.getSql();
+    @Override public void onError(Throwable e) {
+      throw new AssertionError(e); // Triggers never terminate.
+    }
+
+    @Override public void onComplete() {
+      throw new AssertionError(); // Triggers never terminate.
+    }
+
+    void schedule() {
+      if (pending.compareAndSet(false, true)) {
+        worker.schedule(this);
+      }
     }
 
-    @Override public Query apply(Set<String> ignored) {
-      return this;
+    @Override public void run() {
+      pending.set(false);
+      // Skip a run whose data was already read by the previous one.
+      if (!disposed && query.isStale()) {
+        query.awaitRun();
+        downstream.onNext(query);
+      }
+      // A prefetched cursor which the subscriber did not take while handling the query would
+      // otherwise stay open until the next trigger.
+      query.discardPrefetched();
+    }
+
+    @Override public void dispose() {
+      if (disposed) {
+        return;
+      }
+      disposed = true;
+      Disposable upstream = this.upstream;
+      if (upstream != null) {
+        upstream.dispose();
+      }
+      worker.dispose();
+      activeQueries.remove(query);
+      query.cancel();
+      query.discardPrefetched();
+    }
+
+    @Override public boolean isDisposed() {
+      return disposed;
     }
+  }
 
-    @Override public boolean test(Set<String> strings) {
+  /**
+   * A query bound to a single subscriber. A trigger for one of its tables or disposal of
+   * the subscriber cancels the cursor of an in-flight {@link #runCancellable()} since its result
+   * is about to be superseded or will never be read. This aborts the SQL and releases its
+   * connection immediately. Cancellation requires API 16.
+   */
+  final class DatabaseQuery extends Query {
+    private final Iterable<String> tables;
+    @Nullable private final SupportSQLiteQuery query;
+    private final AtomicLong[] versions;
+    private volatile CancellationSignal cancellationSignal;
+    private final AtomicReference<Prefetched> prefetched = new AtomicReference<>();
+    /** Table versions before the most recent run, or null if it has not run yet. */
+    private volatile long[] readVersions;
+    /** Whether the query was emitted, or never was, and has not been run since. */
+    private volatile boolean awaitingRun = true;
+
+    DatabaseQuery(Iterable<String> tables, @Nullable SupportSQLiteQuery query) {
+      this.tables = tables;
+      this.query = query;
+
+      List<AtomicLong> versions = new ArrayList<>();
       for (String table : tables) {
-        if (strings.contains(table)) {
+        versions.add(tableVersionCounter(table));
+      }
+      this.versions = versions.toArray(new AtomicLong[versions.size()]);
+    }
+
+    /** Whether any table was changed since the start of the most recent run. */
+    boolean isStale() {
+      long[] readVersions = this.readVersions;
+      if (readVersions == null) {
+        return true;
+      }
+      for (int i = 0; i < versions.length; i++) {
+        if (versions[i].get() != readVersions[i]) {
           return true;
         }
       }
       return false;
     }
+
+    void markRead() {
+      readVersions = currentVersions();
+      awaitingRun = false;
+    }
+
+    void awaitRun() {
+      awaitingRun = true;
+    }
+
+    boolean isAwaitingRun() {
+      return awaitingRun;
+    }
+
+    /** Snapshot the table versions. Taken before querying so racing changes count as unread. */
+    private long[] currentVersions() {
+      long[] current = new long[versions.length];
+      for (int i = 0; i < versions.length; i++) {
+        current[i] = versions[i].get();
+      }
+      return current;
+    }
+
+    @Nullable private Cursor takePrefetched() {
+      awaitingRun = false;
+      Prefetched prefetched = this.prefetched.getAndSet(null);
+      if (prefetched == null) {
+        return null;
+      }
+      readVersions = prefetched.versions;
+      return prefetched.cursor;
+    }
+
+    @Override public Cursor run() {
+      checkNotInTransaction();
+      if (query == null) {
+        throw new IllegalStateException("Only tracks the versions of " + tables);
+      }
+
+      Cursor cursor = takePrefetched();
+      if (cursor != null) {
+        return cursor;
+      }
+      readVersions = currentVersions();
+      noteActivity();
+      long start = System.nanoTime();
+      cursor = getReadableDatabase().query(query);
+
+      if (logging) {
+        log("QUERY\n  tables: %s\n  sql: %s", tables, indentSql(query.getSql()));
+      }
+
+      return record(query, start, advise(query.getSql(), start, cursor));
+    }
+
+    @Override Cursor runCancellable() {
+      if (Build.VERSION.SDK_INT < 16 || query == null) {
+        return run();
+      }
+      checkNotInTransaction();
+
+      Cursor cursor = takePrefetched();
+      if (cursor != null) {
+        return cursor; // Already fully read by a batch. Nothing left to cancel.
+      }
+      readVersions = currentVersions();
+      CancellationSignal cancellationSignal = new CancellationSignal();
+      this.cancellationSignal = cancellationSignal;
+      noteActivity();
+      long start = System.nanoTime();
+      cursor = query(cancellationSignal);
+
+      if (logging) {
+        log("QUERY\n  tables: %s\n  sql: %s", tables, indentSql(query.getSql()));
+      }
+
+      return record(query, start, advise(query.getSql(), start, cursor));
+    }
+
+    /**
+     * Run this query as part of a batch and hold on to the result for the next run, unless it does
+     * not fit in the cursor's first window.
+     */
+    void prefetch(SupportSQLiteDatabase db) {
+      long[] versions = currentVersions();
+      long start = System.nanoTime();
+      Cursor cursor = db.query(query);
+      boolean complete;
+      try {
+        complete = isFullyRead(cursor, cursor.getCount());
+      } catch (RuntimeException e) {
+        cursor.close();
+        throw e;
+      }
+      recordRead(query, start);
+
+      if (logging) {
+        log("BATCH QUERY%s\n  tables: %s\n  sql: %s", complete ? "" : " (exceeds window)", tables,
+            indentSql(query.getSql()));
+      }
+      if (!complete) {
+        // Later windows would be read outside of the batch. Run on its own instead.
+        cursor.close();
+        discardPrefetched();
+        return;
+      }
+
+      Prefetched previous = prefetched.getAndSet(new Prefetched(cursor, versions));
+      if (previous != null) {
+        previous.cursor.close(); // Superseded before it was run.
+      }
+    }
+
+    void discardPrefetched() {
+      Prefetched prefetched = this.prefetched.getAndSet(null);
+      if (prefetched != null) {
+        prefetched.cursor.close();
+      }
+    }
+
+    @RequiresApi(16)
+    private Cursor query(CancellationSignal cancellationSignal) {
+      return getReadableDatabase().query(query, cancellationSignal);
+    }
+
+    @Override Scheduler scheduler() {
+      return scheduler;
+    }
+
+    @Override boolean isCanceled() {
+      if (Build.VERSION.SDK_INT < 16) {
+        return false;
+      }
+      CancellationSignal cancellationSignal = this.cancellationSignal;
+      return cancellationSignal != null && cancellationSignal.isCanceled();
+    }
+
+    void cancel() {
+      if (Build.VERSION.SDK_INT < 16) {
+        return;
+      }
+      CancellationSignal cancellationSignal = this.cancellationSignal;
+      if (cancellationSignal != null) {
+        cancellationSignal.cancel();
+      }
+    }
+
+    private void checkNotInTransaction() {
+      if (transactions.get() != null) {
+        throw new IllegalStateException("Cannot execute observable query in a transaction.");
+      }
+    }
+
+    @Override public String toString() {
+      if (query == null) {
+        return "TABLES " + tables;
+      }
+      // Expanding collection arguments could query the database.
+      return query instanceof CollectionArgs.LazyQuery ? query.toString() : query.getSql();
+    }
+
+    boolean isAffectedBy(Set<String> triggered) {
+      return containsAny(triggered, tables);
+    }
+  }
+
+  /**
+   * A statement compiled on first use and bound to a single subscription. Uses are serialized by
+   * the subscription's scheduler worker.
+   */
+  final class ScalarStatement {
+    private final Iterable<String> tables;
+    private String sql; // Guarded by this.
+    private Object[] args; // Guarded by this.
+    private SupportSQLiteStatement statement; // Guarded by this.
+    private boolean closed; // Guarded by this.
+
+    ScalarStatement(Iterable<String> tables, String sql, Object[] args) {
+      this.tables = tables;
+      this.sql = sql;
+      this.args = args;
+    }
+
+    /**
+     * Run the statement for a single long. The statement is bound and run while holding the same
+     * lock as {@link #close} so that it cannot be closed while in use.
+     */
+    synchronized long simpleQueryForLong() {
+      SupportSQLiteStatement statement = prepare();
+      long start = System.nanoTime();
+      long value = statement.simpleQueryForLong();
+      recordRead(sql, args, start);
+      return value;
+    }
+
+    /** Like {@link #simpleQueryForLong} but for a single string. */
+    @Nullable synchronized String simpleQueryForString() {
+      SupportSQLiteStatement statement = prepare();
+      long start = System.nanoTime();
+      String value = statement.simpleQueryForString();
+      recordRead(sql, args, start);
+      return value;
+    }
+
+    // Guarded by this.
+    private SupportSQLiteStatement prepare() {
+      if (closed) {
+        throw new IllegalStateException("Statement is closed.");
+      }
+      if (transactions.get() != null) {
+        throw new IllegalStateException("Cannot execute observable query in a transaction.");
+      }
+      if (statement == null) {
+        if (CollectionArgs.hasCollection(args)) {
+          CollectionArgs.Expanded expanded = CollectionArgs.expand(sql, args, isJsonSupported());
+          sql = expanded.sql;
+          args = expanded.args;
+        }
+        statement = getReadableDatabase().compileStatement(sql);
+        SimpleSQLiteQuery.bind(statement, args);
+      }
+      if (logging) {
+        log("QUERY\n  tables: %s\n  sql: %s\n  args: %s", tables, indentSql(sql),
+            Arrays.toString(args));
+      }
+      return statement;
+    }
+
+    synchronized void close() {
+      closed = true;
+      if (statement != null) {
+        try {
+          statement.close();
+        } catch (IOException ignored) {
+        }
+        statement = null;
+      }
+    }
+  }
+
+  /** A write which affects the value of aggregates, applied once it is committed. */
+  static final class AggregateChange {
+    final Set<String> tables;
+    /** The values of an insert or null if the change was not an insert or inserted nothing. */
+    @Nullable final ContentValues inserted;
+    final boolean replace;
+    /**
+     * For a delete, what the deleted rows contributed to each aggregate of {@code inFlight}, or
+     * null where that is not known. Null if the change was not a delete.
+     */
+    @Nullable final Long[] removed;
+    /** Aggregates which were told about an insert or delete before it was written. */
+    final List<Aggregate> inFlight;
+    /** Whether the rows of {@code tables} changed in a way no delta is known for. */
+    final boolean unknown;
+
+    static AggregateChange unknown(Set<String> tables) {
+      return new AggregateChange(tables, null, false, null, Collections.<Aggregate>emptyList(),
+          true);
+    }
+
+    static AggregateChange insert(String table, @Nullable ContentValues inserted,
+        boolean replace, List<Aggregate> inFlight) {
+      return new AggregateChange(Collections.singleton(table), inserted, replace, null, inFlight,
+          false);
+    }
+
+    static AggregateChange delete(String table, Long[] removed, List<Aggregate> inFlight) {
+      return new AggregateChange(Collections.singleton(table), null, false, removed, inFlight,
+          false);
+    }
+
+    private AggregateChange(Set<String> tables, @Nullable ContentValues inserted,
+        boolean replace, @Nullable Long[] removed, List<Aggregate> inFlight, boolean unknown) {
+      this.tables = tables;
+      this.inserted = inserted;
+      this.replace = replace;
+      this.removed = removed;
+      this.inFlight = inFlight;
+      this.unknown = unknown;
+    }
+  }
+
+  /** Leading and trailing edge rate limit for the triggers of a single table. */
+  final class TableThrottle implements Runnable {
+    private final Set<String> table;
+    private final long intervalNanos;
+    private boolean running; // Guarded by this.
+    private boolean pending; // Guarded by this.
+
+    TableThrottle(String table, long intervalNanos) {
+      this.table = Collections.singleton(table);
+      this.intervalNanos = intervalNanos;
+    }
+
+    /** Returns true if the trigger should be sent now or false if it was deferred. */
+    boolean tryPass() {
+      synchronized (this) {
+        if (running) {
+          pending = true;
+          return false;
+        }
+        running = true;
+      }
+      scheduler.scheduleDirect(this, intervalNanos, NANOSECONDS);
+      return true;
+    }
+
+    @Override public void run() {
+      synchronized (this) {
+        if (!pending) {
+          running = false;
+          return;
+        }
+        pending = false;
+      }
+      // The trailing trigger starts the next interval.
+      scheduler.scheduleDirect(this, intervalNanos, NANOSECONDS);
+      deliverTableTrigger(table);
+    }
+  }
+
+  static final class Prefetched {
+    final Cursor cursor;
+    final long[] versions;
+
+    Prefetched(Cursor cursor, long[] versions) {
+      this.cursor = cursor;
+      this.versions = versions;
+    }
+  }
+
+  final class DatabaseSnapshot implements Snapshot {
+    @Override public Cursor query(@NonNull String sql, @NonNull Object... args) {
+      long start = System.nanoTime();
+      Cursor cursor = getReadableDatabase().query(sql, args);
+      if (logging) {
+        log("SNAPSHOT QUERY\n  sql: %s\n  args: %s", indentSql(sql), Arrays.toString(args));
+      }
+      return record(sql, args, start, advise(sql, start, cursor));
+    }
+
+    @Override public Cursor query(@NonNull SupportSQLiteQuery query) {
+      long start = System.nanoTime();
+      Cursor cursor = getReadableDatabase().query(query);
+      if (logging) {
+        log("SNAPSHOT QUERY\n  sql: %s", indentSql(query.getSql()));
+      }
+      return record(query, start, advise(query.getSql(), start, cursor));
+    }
+  }
+
+  /** True if every one of the {@code count} rows of {@code cursor} was read into its window. */
+  static boolean isFullyRead(Cursor cursor, int count) {
+    if (!(cursor instanceof AbstractWindowedCursor)) {
+      return false; // Cannot tell.
+    }
+    CursorWindow window = ((AbstractWindowedCursor) cursor).getWindow();
+    return window != null && window.getStartPosition() == 0 && window.getNumRows() >= count;
+  }
+
+  static boolean containsAny(Set<String> triggered, Iterable<String> tables) {
+    for (String table : tables) {
+      if (triggered.contains(table)) {
+        return true;
+      }
+    }
+    return false;
   }
 }
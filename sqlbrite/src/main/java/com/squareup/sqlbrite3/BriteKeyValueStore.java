@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SimpleSQLiteQuery;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import com.squareup.sqlbrite3.BriteDatabase.DatabaseQuery;
+import com.squareup.sqlbrite3.BriteDatabase.Transaction;
+import com.squareup.sqlbrite3.SqlBrite.Query;
+import io.reactivex.Observable;
+import io.reactivex.functions.Function;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static android.database.Cursor.FIELD_TYPE_INTEGER;
+import static android.database.Cursor.FIELD_TYPE_NULL;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_REPLACE;
+
+/**
+ * An observable key-value store kept in a table of a {@link BriteDatabase}. Create using
+ * {@link BriteDatabase#newKeyValueStore}.
+ * <p>
+ * Observers are triggered by any write to the table and then re-read their key through a bounded
+ * in-memory cache, so changing the value of one key only notifies the observers of that key.
+ * Writes update the cache directly. Values
+ * written inside a transaction are instead evicted from the cache when it ends, so a rolled back
+ * value is never served.
+ * <p>
+ * Values are written with {@link BriteDatabase#insert} and {@link BriteDatabase#delete}, so they
+ * reach the same hooks as any other write, such as the {@linkplain ChangeJournal change journal}.
+ */
+public final class BriteKeyValueStore {
+  static final String KEY = "key";
+  static final String VALUE = "value";
+
+  /** Cached marker for a key without a value. */
+  private static final Object ABSENT = new Object();
+
+  private final BriteDatabase db;
+  private final String table;
+  private final String selectValue;
+  private final Map<String, Object> cache; // Guarded by itself.
+  /** Held across a write and its cache update outside of transactions. */
+  private final Object writeLock = new Object();
+  private long cacheGeneration; // Guarded by cache.
+  private volatile boolean tableCreated;
+
+  BriteKeyValueStore(BriteDatabase db, String table, final int maxCacheSize) {
+    this.db = db;
+    this.table = table;
+    this.selectValue = "SELECT " + VALUE + " FROM " + table + " WHERE " + KEY + " = ?";
+    this.cache = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+        return size() > maxCacheSize;
+      }
+    };
+  }
+
+  /** Returns the value of {@code key} or null if it has none or its value is not a string. */
+  @CheckResult @WorkerThread @Nullable
+  public String getString(@NonNull String key) {
+    Object value = read(key);
+    return value instanceof String ? (String) value : null;
+  }
+
+  /** Returns the value of {@code key} or {@code defaultValue} if it has no integer value. */
+  @CheckResult @WorkerThread
+  public long getLong(@NonNull String key, long defaultValue) {
+    Object value = read(key);
+    return value instanceof Long ? (Long) value : defaultValue;
+  }
+
+  /** Returns the value of {@code key} or {@code defaultValue} if it has no boolean value. */
+  @CheckResult @WorkerThread
+  public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+    Object value = read(key);
+    return value instanceof Long ? (Long) value != 0 : defaultValue;
+  }
+
+  /** Set the value of {@code key}, removing it if {@code value} is null. */
+  @WorkerThread
+  public void putString(@NonNull String key, @Nullable String value) {
+    write(key, value);
+  }
+
+  @WorkerThread
+  public void putLong(@NonNull String key, long value) {
+    write(key, value);
+  }
+
+  @WorkerThread
+  public void putBoolean(@NonNull String key, boolean value) {
+    write(key, value ? 1L : 0L);
+  }
+
+  @WorkerThread
+  public void remove(@NonNull String key) {
+    write(key, null);
+  }
+
+  /**
+   * Set the values of all keys of {@code values} in a single transaction. Values must be
+   * {@link String}, {@link Long}, {@link Integer}, {@link Boolean}, or null to remove the key.
+   */
+  @WorkerThread
+  public void putAll(@NonNull Map<String, ?> values) {
+    Transaction transaction = db.newTransaction();
+    try {
+      for (Map.Entry<String, ?> entry : values.entrySet()) {
+        write(entry.getKey(), normalize(entry.getValue()));
+      }
+      transaction.markSuccessful();
+    } finally {
+      transaction.end();
+    }
+  }
+
+  /**
+   * Create an observable of the value of {@code key}, or {@code defaultValue} while it has none.
+   * Only changes to {@code key} notify subscribers. Notifications otherwise follow the same rules
+   * as {@link BriteDatabase#createQuery(String, String, Object...)}.
+   */
+  @CheckResult @NonNull
+  public Observable<String> observeString(@NonNull final String key,
+      @NonNull final String defaultValue) {
+    return observe(key, new Function<Query, String>() {
+      @Override public String apply(Query query) {
+        String value = getString(key);
+        return value != null ? value : defaultValue;
+      }
+    });
+  }
+
+  /** See {@link #observeString} for usage. */
+  @CheckResult @NonNull
+  public Observable<Long> observeLong(@NonNull final String key, final long defaultValue) {
+    return observe(key, new Function<Query, Long>() {
+      @Override public Long apply(Query query) {
+        return getLong(key, defaultValue);
+      }
+    });
+  }
+
+  /** See {@link #observeString} for usage. */
+  @CheckResult @NonNull
+  public Observable<Boolean> observeBoolean(@NonNull final String key,
+      final boolean defaultValue) {
+    return observe(key, new Function<Query, Boolean>() {
+      @Override public Boolean apply(Query query) {
+        return getBoolean(key, defaultValue);
+      }
+    });
+  }
+
+  private <T> Observable<T> observe(String key, final Function<Query, T> reader) {
+    if (key == null) throw new NullPointerException("key == null");
+    // Triggering on the table rather than on a name per key keeps the set of observed tables
+    // bounded. Writes to other keys are filtered out by comparing the value instead.
+    return db.createQuery(Collections.singletonList(table),
+        new SimpleSQLiteQuery(selectValue, new Object[] { key }), false)
+        .map(new Function<Query, T>() {
+          @Override public T apply(Query query) throws Exception {
+            if (query instanceof DatabaseQuery) {
+              ((DatabaseQuery) query).markRead(); // Read through the cache instead.
+            }
+            return reader.apply(query);
+          }
+        })
+        .distinctUntilChanged();
+  }
+
+  private Object read(String key) {
+    if (key == null) throw new NullPointerException("key == null");
+    long generation;
+    synchronized (cache) {
+      Object value = cache.get(key);
+      if (value != null) {
+        return value == ABSENT ? null : value;
+      }
+      generation = cacheGeneration;
+    }
+
+    ensureTable();
+    Object value = null;
+    Cursor cursor = db.query(selectValue, key);
+    try {
+      if (cursor.moveToNext()) {
+        int type = cursor.getType(0);
+        if (type == FIELD_TYPE_INTEGER) {
+          value = cursor.getLong(0);
+        } else if (type != FIELD_TYPE_NULL) {
+          value = cursor.getString(0);
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+
+    // A value read inside a transaction may never be committed. A value read while a write
+    // happened may be stale.
+    if (db.transactions.get() == null) {
+      synchronized (cache) {
+        if (cacheGeneration == generation) {
+          cache.put(key, value != null ? value : ABSENT);
+        }
+      }
+    }
+    return value;
+  }
+
+  private void write(final String key, @Nullable Object value) {
+    if (key == null) throw new NullPointerException("key == null");
+    ensureTable();
+    if (db.transactions.get() != null) {
+      // The value is not committed yet. Whatever is cached may be stale once it is, and holding
+      // writeLock here could deadlock with a writer waiting for this transaction.
+      writeRow(key, value);
+      synchronized (cache) {
+        cacheGeneration++;
+        cache.remove(key);
+      }
+      db.runAfterTransaction(new Runnable() {
+        @Override public void run() {
+          synchronized (cache) {
+            cacheGeneration++;
+            cache.remove(key);
+          }
+        }
+      });
+    } else {
+      // Otherwise two writers could update the cache in the opposite order of the database.
+      synchronized (writeLock) {
+        writeRow(key, value);
+        synchronized (cache) {
+          cacheGeneration++;
+          cache.put(key, value != null ? value : ABSENT);
+        }
+      }
+    }
+    // The insert or delete itself triggers the table, after the transaction if there is one.
+    if (db.logging) db.log("KV PUT\n  table: %s\n  key: %s\n  value: %s", table, key, value);
+  }
+
+  private void writeRow(String key, @Nullable Object value) {
+    if (value == null) {
+      db.delete(table, KEY + " = ?", key);
+    } else {
+      ContentValues values = new ContentValues(2);
+      values.put(KEY, key);
+      if (value instanceof Long) {
+        values.put(VALUE, (Long) value);
+      } else {
+        values.put(VALUE, (String) value);
+      }
+      db.insert(table, CONFLICT_REPLACE, values);
+    }
+  }
+
+  private void ensureTable() {
+    if (!tableCreated) {
+      db.getWritableDatabase().execSQL("CREATE TABLE IF NOT EXISTS " + table + " ("
+          + KEY + " TEXT NOT NULL PRIMARY KEY, "
+          + VALUE + ")");
+      tableCreated = true;
+    }
+  }
+
+  @Nullable private static Object normalize(@Nullable Object value) {
+    if (value == null || value instanceof String || value instanceof Long) {
+      return value;
+    } else if (value instanceof Integer) {
+      return ((Integer) value).longValue();
+    } else if (value instanceof Boolean) {
+      return (Boolean) value ? 1L : 0L;
+    }
+    throw new IllegalArgumentException("Unsupported value type: " + value.getClass().getName());
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SupportSQLiteStatement;
+import android.content.ContentValues;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A compiled {@code INSERT} or {@code UPDATE} for a fixed set of columns whose values are bound
+ * directly, without a {@link android.content.ContentValues} per row. Create using
+ * {@link BriteDatabase#compileInsert} or {@link BriteDatabase#compileUpdate} and reuse it for
+ * every row:
+ * <pre>{@code
+ * BriteStatement insert = db.compileInsert("todo_item", CONFLICT_NONE, "list_id", "description");
+ * for (Item item : items) {
+ *   insert.bindLong(1, item.listId())
+ *       .bindString(2, item.description())
+ *       .executeInsert();
+ * }
+ * insert.close();
+ * }</pre>
+ * Executing behaves exactly like {@link BriteDatabase#insert} and {@link BriteDatabase#update}:
+ * it notifies queries, and reaches the {@linkplain ChangeJournal change journal}, aggregates and
+ * recording with the bound values. Bound values are kept until rebound or
+ * {@linkplain #clearBindings cleared}. Like {@link SupportSQLiteStatement}, instances are not
+ * thread safe.
+ */
+public final class BriteStatement implements Closeable {
+  static final String[] CONFLICT_VALUES =
+      { "", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE" };
+
+  private final BriteDatabase db;
+  private final String table;
+  private final int conflictAlgorithm;
+  private final String[] columns;
+  /** The {@code WHERE} clause of an update, if any. */
+  @Nullable private final String whereClause;
+  private final String sql;
+  /** The values bound to each parameter, 0-based. Columns come first, then any where args. */
+  private Object[] bindings;
+  private SupportSQLiteStatement statement;
+  private boolean closed;
+
+  private BriteStatement(BriteDatabase db, String table, int conflictAlgorithm, String[] columns,
+      @Nullable String whereClause, String sql) {
+    this.db = db;
+    this.table = table;
+    this.conflictAlgorithm = conflictAlgorithm;
+    this.columns = columns.clone();
+    this.whereClause = whereClause;
+    this.sql = sql;
+    this.bindings = new Object[columns.length];
+  }
+
+  static BriteStatement insert(BriteDatabase db, String table, int conflictAlgorithm,
+      String... columns) {
+    StringBuilder sql = new StringBuilder("INSERT")
+        .append(CONFLICT_VALUES[conflictAlgorithm])
+        .append(" INTO ")
+        .append(table)
+        .append(" (");
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) sql.append(", ");
+      sql.append(columns[i]);
+    }
+    sql.append(") VALUES (");
+    for (int i = 0; i < columns.length; i++) {
+      sql.append(i > 0 ? ", ?" : "?");
+    }
+    sql.append(')');
+    return new BriteStatement(db, table, conflictAlgorithm, columns, null, sql.toString());
+  }
+
+  static BriteStatement update(BriteDatabase db, String table, int conflictAlgorithm,
+      @Nullable String whereClause, String... columns) {
+    StringBuilder sql = new StringBuilder("UPDATE")
+        .append(CONFLICT_VALUES[conflictAlgorithm])
+        .append(' ')
+        .append(table)
+        .append(" SET ");
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) sql.append(", ");
+      sql.append(columns[i]).append(" = ?");
+    }
+    if (whereClause != null && !whereClause.isEmpty()) {
+      sql.append(" WHERE ").append(whereClause);
+    }
+    return new BriteStatement(db, table, conflictAlgorithm, columns, whereClause,
+        sql.toString());
+  }
+
+  private SupportSQLiteStatement statement() {
+    if (closed) {
+      throw new IllegalStateException("Statement is closed.");
+    }
+    if (statement == null) {
+      statement = db.getWritableDatabase().compileStatement(sql);
+    }
+    return statement;
+  }
+
+  /** Bind {@code value} to the 1-based parameter {@code index}. */
+  @NonNull public BriteStatement bindLong(int index, long value) {
+    statement().bindLong(index, value);
+    bound(index, value);
+    return this;
+  }
+
+  /** Bind {@code value} to the 1-based parameter {@code index}. */
+  @NonNull public BriteStatement bindDouble(int index, double value) {
+    statement().bindDouble(index, value);
+    bound(index, value);
+    return this;
+  }
+
+  /** Bind {@code value}, or null, to the 1-based parameter {@code index}. */
+  @NonNull public BriteStatement bindString(int index, @Nullable String value) {
+    if (value == null) {
+      statement().bindNull(index);
+    } else {
+      statement().bindString(index, value);
+    }
+    bound(index, value);
+    return this;
+  }
+
+  /** Bind {@code value}, or null, to the 1-based parameter {@code index}. */
+  @NonNull public BriteStatement bindBlob(int index, @Nullable byte[] value) {
+    if (value == null) {
+      statement().bindNull(index);
+    } else {
+      statement().bindBlob(index, value);
+    }
+    bound(index, value);
+    return this;
+  }
+
+  /** Bind null to the 1-based parameter {@code index}. */
+  @NonNull public BriteStatement bindNull(int index) {
+    statement().bindNull(index);
+    bound(index, null);
+    return this;
+  }
+
+  @NonNull public BriteStatement clearBindings() {
+    statement().clearBindings();
+    Arrays.fill(bindings, null);
+    return this;
+  }
+
+  private void bound(int index, @Nullable Object value) {
+    if (index > bindings.length) {
+      bindings = Arrays.copyOf(bindings, index);
+    }
+    bindings[index - 1] = value;
+  }
+
+  /**
+   * Execute this {@code INSERT} with the bound values.
+   *
+   * @return the row ID of the inserted row or -1 if it was not inserted.
+   * @see BriteDatabase#insert(String, int, ContentValues)
+   */
+  @WorkerThread
+  public long executeInsert() {
+    SupportSQLiteStatement statement = statement();
+    return db.insert(table, conflictAlgorithm, values(), statement);
+  }
+
+  /**
+   * Execute this {@code UPDATE} with the bound values.
+   *
+   * @return the number of rows affected.
+   * @see BriteDatabase#update(String, int, ContentValues, String, String...)
+   */
+  @WorkerThread
+  public int executeUpdateDelete() {
+    SupportSQLiteStatement statement = statement();
+    Object[] whereArgs = Arrays.copyOfRange(bindings, columns.length, bindings.length);
+    return db.updateRows(table, conflictAlgorithm, values(), whereClause, whereArgs, statement);
+  }
+
+  /** The bound values of {@link #columns}. Unbound parameters are null, as in SQLite. */
+  private ContentValues values() {
+    ContentValues values = new ContentValues(columns.length);
+    for (int i = 0; i < columns.length; i++) {
+      Object value = bindings[i];
+      if (value == null) {
+        values.putNull(columns[i]);
+      } else if (value instanceof Long) {
+        values.put(columns[i], (Long) value);
+      } else if (value instanceof Double) {
+        values.put(columns[i], (Double) value);
+      } else if (value instanceof String) {
+        values.put(columns[i], (String) value);
+      } else {
+        values.put(columns[i], (byte[]) value);
+      }
+    }
+    return values;
+  }
+
+  /** Release the compiled statement. This instance can no longer be used. */
+  @Override public void close() {
+    closed = true;
+    if (statement != null) {
+      try {
+        statement.close();
+      } catch (IOException ignored) {
+      }
+      statement = null;
+    }
+  }
+
+  @Override public String toString() {
+    return sql;
+  }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SimpleSQLiteQuery;
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import com.squareup.sqlbrite3.BriteDatabase.Transaction;
+import io.reactivex.Observable;
+import io.reactivex.functions.Function;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent log of the row-level changes committed to a set of tables through a
+ * {@link BriteDatabase}. Enable using {@link BriteDatabase#enableChangeJournal}.
+ * <p>
+ * Changes are written to {@link #TABLE} in the same transaction as the rows they describe so a
+ * rolled back change is never recorded. Each consumer, such as a sync engine,
+ * {@linkplain #register registers} with an initial watermark, reads the changes after its
+ * watermark and {@linkplain #acknowledge acknowledges} them once handled. Changes acknowledged by
+ * every registered consumer are then deleted.
+ * <p>
+ * Only writes made through {@link BriteDatabase#insert}, {@link BriteDatabase#update},
+ * {@link BriteDatabase#delete}, {@code executeInsert}, {@code executeUpdateDelete} and
+ * {@code executeAndTrigger} are recorded. Journaled tables must have a rowid. A row replaced by
+ * an {@link BriteDatabase#insert} with {@code CONFLICT_REPLACE} is recorded as deleted if it
+ * shared the value of its rowid or of a unique column index with the inserted row.
+ */
+public final class ChangeJournal {
+  /** The table which holds the changes. Queries on it are notified of new changes. */
+  public static final String TABLE = "sqlbrite_changes";
+  /** The table which holds the watermark of each consumer. */
+  public static final String WATERMARK_TABLE = "sqlbrite_change_watermarks";
+
+  private static final String SELECT_PENDING = ""
+      + "SELECT sequence, table_name, operation, row_id, columns FROM " + TABLE + " "
+      + "WHERE sequence > COALESCE("
+      + "(SELECT sequence FROM " + WATERMARK_TABLE + " WHERE consumer = ?), 0) "
+      + "ORDER BY sequence LIMIT ";
+
+  private static final String PRUNE = "DELETE FROM " + TABLE + " WHERE sequence <= "
+      + "(SELECT MIN(sequence) FROM " + WATERMARK_TABLE + ")";
+
+  private static final Function<Cursor, Change> MAPPER = new Function<Cursor, Change>() {
+    @Override public Change apply(Cursor cursor) {
+      return readChange(cursor);
+    }
+  };
+
+  private final BriteDatabase db;
+  private final Set<String> tables =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  /** The columns of each unique key of a journaled table, read from its schema once. */
+  private final ConcurrentHashMap<String, List<String[]>> uniqueKeys = new ConcurrentHashMap<>();
+
+  ChangeJournal(BriteDatabase db) {
+    this.db = db;
+  }
+
+  static void createTables(SupportSQLiteDatabase db) {
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+        + "sequence INTEGER PRIMARY KEY AUTOINCREMENT, "
+        + "table_name TEXT NOT NULL, "
+        + "operation INTEGER NOT NULL, "
+        + "row_id INTEGER, "
+        + "columns TEXT)");
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + WATERMARK_TABLE + " ("
+        + "consumer TEXT NOT NULL PRIMARY KEY, "
+        + "sequence INTEGER NOT NULL)");
+  }
+
+  void addTables(String... tables) {
+    Collections.addAll(this.tables, tables);
+  }
+
+  boolean isJournaled(String table) {
+    return tables.contains(table);
+  }
+
+  boolean isJournaled(Collection<String> tables) {
+    for (String table : tables) {
+      if (this.tables.contains(table)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Record a change of one row, or of unknown rows if {@code rowId} is -1. */
+  void record(SupportSQLiteDatabase db, String table, int operation, long rowId,
+      @Nullable Collection<String> columns) {
+    db.execSQL("INSERT INTO " + TABLE + " (table_name, operation, row_id, columns) "
+        + "VALUES (?, ?, ?, ?)", new Object[] {
+        table, operation, rowId != -1 ? rowId : null, join(columns)
+    });
+  }
+
+  /**
+   * Record a change of every row matching {@code whereClause}. This must run before the change
+   * itself so that the rows still match.
+   */
+  void recordWhere(SupportSQLiteDatabase db, String table, int operation,
+      @Nullable Collection<String> columns, @Nullable String whereClause,
+      @Nullable Object[] whereArgs) {
+    String sql = "INSERT INTO " + TABLE + " (table_name, operation, row_id, columns) "
+        + "SELECT ?, ?, rowid, ? FROM " + table;
+    if (whereClause != null && !whereClause.isEmpty()) {
+      sql += " WHERE " + whereClause;
+    }
+    int argCount = whereArgs == null ? 0 : whereArgs.length;
+    Object[] args = new Object[3 + argCount];
+    args[0] = table;
+    args[1] = operation;
+    args[2] = join(columns);
+    if (argCount > 0) {
+      System.arraycopy(whereArgs, 0, args, 3, argCount);
+    }
+    db.execSQL(sql, args);
+  }
+
+  /**
+   * Returns the rowids of the rows which inserting {@code values} into {@code table} with
+   * {@code CONFLICT_REPLACE} may replace. Call before the insert and pass the result to
+   * {@link #recordReplaced} after it.
+   */
+  List<Long> replaceCandidates(SupportSQLiteDatabase db, String table, ContentValues values) {
+    StringBuilder where = new StringBuilder();
+    List<Object> args = new ArrayList<>();
+    keys:
+    for (String[] key : uniqueKeys(db, table)) {
+      for (String column : key) {
+        if (values.get(column) == null) {
+          continue keys; // NULLs never conflict. A missing column's default is not known.
+        }
+      }
+      where.append(where.length() == 0 ? "(" : " OR (");
+      for (int i = 0; i < key.length; i++) {
+        if (i > 0) where.append(" AND ");
+        where.append(key[i]).append(" = ?");
+        args.add(values.get(key[i]));
+      }
+      where.append(')');
+    }
+    if (where.length() == 0) {
+      return Collections.emptyList();
+    }
+    Cursor cursor = db.query(new SimpleSQLiteQuery(
+        "SELECT rowid FROM " + table + " WHERE " + where, args.toArray()));
+    try {
+      List<Long> rowIds = new ArrayList<>(cursor.getCount());
+      while (cursor.moveToNext()) {
+        rowIds.add(cursor.getLong(0));
+      }
+      return rowIds;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Record the deletion of each of {@code candidates} which the insert of {@code rowId} replaced.
+   * A candidate may have been kept if its unique index is partial.
+   */
+  void recordReplaced(SupportSQLiteDatabase db, String table, List<Long> candidates, long rowId) {
+    for (Long candidate : candidates) {
+      if (candidate != rowId && exists(db, table, candidate)) {
+        continue;
+      }
+      record(db, table, Change.DELETE, candidate, null);
+    }
+  }
+
+  private static boolean exists(SupportSQLiteDatabase db, String table, long rowId) {
+    Cursor cursor = db.query("SELECT 1 FROM " + table + " WHERE rowid = ?", new Object[] { rowId });
+    try {
+      return cursor.moveToNext();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private List<String[]> uniqueKeys(SupportSQLiteDatabase db, String table) {
+    List<String[]> keys = uniqueKeys.get(table);
+    if (keys == null) {
+      keys = readUniqueKeys(db, table);
+      uniqueKeys.put(table, keys);
+    }
+    return keys;
+  }
+
+  /** The rowid alias, if any, and the columns of each unique index of {@code table}. */
+  private static List<String[]> readUniqueKeys(SupportSQLiteDatabase db, String table) {
+    List<String[]> keys = new ArrayList<>();
+    List<String> primaryKey = new ArrayList<>();
+    boolean integerPrimaryKey = false;
+    Cursor cursor = db.query("PRAGMA table_info(" + table + ")");
+    try {
+      int name = cursor.getColumnIndexOrThrow("name");
+      int type = cursor.getColumnIndexOrThrow("type");
+      int pk = cursor.getColumnIndexOrThrow("pk");
+      while (cursor.moveToNext()) {
+        if (cursor.getInt(pk) > 0) {
+          primaryKey.add(cursor.getString(name));
+          integerPrimaryKey = "INTEGER".equalsIgnoreCase(cursor.getString(type));
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    if (primaryKey.size() == 1 && integerPrimaryKey) {
+      keys.add(new String[] { primaryKey.get(0) }); // An alias of the rowid has no index.
+    }
+
+    List<String> indexes = new ArrayList<>();
+    cursor = db.query("PRAGMA index_list(" + table + ")");
+    try {
+      int name = cursor.getColumnIndexOrThrow("name");
+      int unique = cursor.getColumnIndexOrThrow("unique");
+      while (cursor.moveToNext()) {
+        if (cursor.getInt(unique) != 0) {
+          indexes.add(cursor.getString(name));
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    indexes:
+    for (String index : indexes) {
+      List<String> columns = new ArrayList<>();
+      cursor = db.query("PRAGMA index_info(" + index + ")");
+      try {
+        int name = cursor.getColumnIndexOrThrow("name");
+        while (cursor.moveToNext()) {
+          if (cursor.isNull(name)) {
+            continue indexes; // An index on an expression.
+          }
+          columns.add(cursor.getString(name));
+        }
+      } finally {
+        cursor.close();
+      }
+      keys.add(columns.toArray(new String[columns.size()]));
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the sequence of the latest change, or 0 if there is none. Pass to {@link #register}
+   * for a consumer which only needs the changes from now on.
+   */
+  @CheckResult @WorkerThread
+  public long latestSequence() {
+    Cursor cursor = db.query("SELECT COALESCE(MAX(sequence), 0) FROM " + TABLE);
+    try {
+      return cursor.moveToNext() ? cursor.getLong(0) : 0;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Register {@code consumer} with a watermark of {@code sequence}, unless it is already
+   * registered. Changes are only deleted once every registered consumer acknowledged them, so a
+   * consumer must register before its first change can be deleted. Pass 0 for every change still
+   * in the journal or {@link #latestSequence} for only the changes from now on.
+   */
+  @WorkerThread
+  public void register(@NonNull String consumer, long sequence) {
+    if (consumer == null) throw new NullPointerException("consumer == null");
+    Transaction transaction = db.newTransaction();
+    try {
+      db.getWritableDatabase().execSQL("INSERT OR IGNORE INTO " + WATERMARK_TABLE
+          + " (consumer, sequence) VALUES (?, ?)", new Object[] { consumer, sequence });
+      db.sendTableTrigger(Collections.singleton(TABLE));
+      transaction.markSuccessful();
+    } finally {
+      transaction.end();
+    }
+  }
+
+  /**
+   * Remove {@code consumer} and its watermark, deleting the changes which every remaining
+   * consumer has acknowledged.
+   */
+  @WorkerThread
+  public void unregister(@NonNull String consumer) {
+    if (consumer == null) throw new NullPointerException("consumer == null");
+    Transaction transaction = db.newTransaction();
+    try {
+      SupportSQLiteDatabase database = db.getWritableDatabase();
+      database.execSQL("DELETE FROM " + WATERMARK_TABLE + " WHERE consumer = ?",
+          new Object[] { consumer });
+      database.execSQL(PRUNE);
+      db.sendTableTrigger(Collections.singleton(TABLE));
+      transaction.markSuccessful();
+    } finally {
+      transaction.end();
+    }
+  }
+
+  /**
+   * Returns up to {@code limit} changes which {@code consumer} has not acknowledged, oldest
+   * first.
+   */
+  @CheckResult @WorkerThread @NonNull
+  public List<Change> pendingChanges(@NonNull String consumer, int limit) {
+    if (consumer == null) throw new NullPointerException("consumer == null");
+    Cursor cursor = db.query(SELECT_PENDING + limit, consumer);
+    try {
+      List<Change> changes = new ArrayList<>(cursor.getCount());
+      while (cursor.moveToNext()) {
+        changes.add(readChange(cursor));
+      }
+      return changes;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Create an observable of up to {@code limit} changes which {@code consumer} has not
+   * acknowledged, oldest first. It emits again whenever changes are committed or acknowledged.
+   */
+  @CheckResult @NonNull
+  public Observable<List<Change>> observePendingChanges(@NonNull String consumer, int limit) {
+    if (consumer == null) throw new NullPointerException("consumer == null");
+    return db.createQuery(TABLE, SELECT_PENDING + limit, consumer).mapToList(MAPPER);
+  }
+
+  /**
+   * Advance the watermark of {@code consumer} to {@code sequence} and delete the changes which
+   * every registered consumer has acknowledged.
+   *
+   * @throws IllegalStateException if {@code consumer} was not {@linkplain #register registered}.
+   */
+  @WorkerThread
+  public void acknowledge(@NonNull String consumer, long sequence) {
+    if (consumer == null) throw new NullPointerException("consumer == null");
+    Transaction transaction = db.newTransaction();
+    try {
+      SupportSQLiteDatabase database = db.getWritableDatabase();
+      Cursor cursor = database.query("SELECT 1 FROM " + WATERMARK_TABLE + " WHERE consumer = ?",
+          new Object[] { consumer });
+      try {
+        if (!cursor.moveToNext()) {
+          throw new IllegalStateException("Consumer is not registered: " + consumer);
+        }
+      } finally {
+        cursor.close();
+      }
+      database.execSQL("UPDATE " + WATERMARK_TABLE + " SET sequence = MAX(sequence, ?) "
+          + "WHERE consumer = ?", new Object[] { sequence, consumer });
+      database.execSQL(PRUNE);
+      db.sendTableTrigger(Collections.singleton(TABLE));
+      transaction.markSuccessful();
+    } finally {
+      transaction.end();
+    }
+  }
+
+  static Change readChange(Cursor cursor) {
+    String columns = cursor.isNull(4) ? null : cursor.getString(4);
+    return new Change(cursor.getLong(0), cursor.getString(1), cursor.getInt(2),
+        cursor.isNull(3) ? -1 : cursor.getLong(3),
+        columns == null
+            ? null
+            : Collections.unmodifiableList(Arrays.asList(columns.split(","))));
+  }
+
+  @Nullable private static String join(@Nullable Collection<String> columns) {
+    if (columns == null) {
+      return null;
+    }
+    StringBuilder builder = new StringBuilder();
+    for (String column : columns) {
+      if (builder.length() > 0) {
+        builder.append(',');
+      }
+      builder.append(column);
+    }
+    return builder.toString();
+  }
+
+  /** A committed change to one or more rows of a table. */
+  public static final class Change {
+    /** Rows of the table changed in a way which was not observed. Rescan the table. */
+    public static final int UNKNOWN = 0;
+    public static final int INSERT = 1;
+    public static final int UPDATE = 2;
+    public static final int DELETE = 3;
+
+    private final long sequence;
+    private final String table;
+    private final int operation;
+    private final long rowId;
+    @Nullable private final List<String> columns;
+
+    Change(long sequence, String table, int operation, long rowId,
+        @Nullable List<String> columns) {
+      this.sequence = sequence;
+      this.table = table;
+      this.operation = operation;
+      this.rowId = rowId;
+      this.columns = columns;
+    }
+
+    /** The position of this change in the journal. Pass to {@link #acknowledge}. */
+    public long sequence() {
+      return sequence;
+    }
+
+    @NonNull public String table() {
+      return table;
+    }
+
+    /** One of {@link #UNKNOWN}, {@link #INSERT}, {@link #UPDATE} or {@link #DELETE}. */
+    public int operation() {
+      return operation;
+    }
+
+    /** The rowid of the changed row or -1 if it is not known which rows changed. */
+    public long rowId() {
+      return rowId;
+    }
+
+    /** The columns which were written or null if they are not known. */
+    @Nullable public List<String> columns() {
+      return columns;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof Change)) return false;
+      Change other = (Change) o;
+      return sequence == other.sequence
+          && table.equals(other.table)
+          && operation == other.operation
+          && rowId == other.rowId
+          && (columns == null ? other.columns == null : columns.equals(other.columns));
+    }
+
+    @Override public int hashCode() {
+      return (int) (sequence ^ (sequence >>> 32));
+    }
+
+    @Override public String toString() {
+      return "Change{sequence=" + sequence
+          + ", table=" + table
+          + ", operation=" + operation
+          + ", rowId=" + rowId
+          + ", columns=" + columns
+          + '}';
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SimpleSQLiteQuery;
+import android.arch.persistence.db.SupportSQLiteProgram;
+import android.arch.persistence.db.SupportSQLiteQuery;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Expands {@link Collection} arguments of SQL. Each must be bound to a placeholder which is the
+ * sole content of an {@code IN (?)} list. When the JSON1 extension is available the placeholder
+ * becomes {@code SELECT value FROM json_each(?)} bound to a JSON array, so the SQL is the same for
+ * any number of values. Otherwise it becomes one placeholder per value, which is subject to
+ * SQLite's limit on the number of variables.
+ */
+final class CollectionArgs {
+  private static final String JSON_EACH = "SELECT value FROM json_each(?)";
+  /** A subquery without rows. Unlike {@code NULL} it also makes {@code NOT IN} hold. */
+  private static final String EMPTY = "SELECT NULL WHERE 0";
+
+  static boolean hasCollection(@Nullable Object[] args) {
+    if (args != null) {
+      for (Object arg : args) {
+        if (arg instanceof Collection) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  static Expanded expand(String sql, Object[] args, boolean json) {
+    StringBuilder expanded = new StringBuilder(sql.length() + 32);
+    List<Object> expandedArgs = new ArrayList<>(args.length);
+    int argIndex = 0;
+    int length = sql.length();
+    for (int i = 0; i < length; i++) {
+      char c = sql.charAt(i);
+      if (c == '\'' || c == '"' || c == '`') {
+        int end = sql.indexOf(c, i + 1);
+        end = end == -1 ? length - 1 : end;
+        expanded.append(sql, i, end + 1);
+        i = end;
+      } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+        int end = sql.indexOf('\n', i);
+        end = end == -1 ? length - 1 : end;
+        expanded.append(sql, i, end + 1);
+        i = end;
+      } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+        int end = sql.indexOf("*/", i + 2);
+        end = end == -1 ? length - 1 : end + 1;
+        expanded.append(sql, i, end + 1);
+        i = end;
+      } else if (c == '?') {
+        if (i + 1 < length && Character.isDigit(sql.charAt(i + 1))) {
+          throw new IllegalArgumentException(
+              "Numbered parameters cannot be combined with collection arguments: " + sql);
+        }
+        if (argIndex >= args.length) {
+          throw new IllegalArgumentException("Too few arguments for SQL: " + sql);
+        }
+        Object arg = args[argIndex++];
+        if (!(arg instanceof Collection)) {
+          expanded.append('?');
+          expandedArgs.add(arg);
+        } else if (json) {
+          expanded.append(JSON_EACH);
+          expandedArgs.add(toJson((Collection<?>) arg));
+        } else if (((Collection<?>) arg).isEmpty()) {
+          expanded.append(EMPTY);
+        } else {
+          boolean first = true;
+          for (Object value : (Collection<?>) arg) {
+            expanded.append(first ? "?" : ", ?");
+            expandedArgs.add(value);
+            first = false;
+          }
+        }
+      } else {
+        expanded.append(c);
+      }
+    }
+    if (argIndex != args.length) {
+      throw new IllegalArgumentException("Too many arguments for SQL: " + sql);
+    }
+    return new Expanded(expanded.toString(), expandedArgs.toArray());
+  }
+
+  static String toJson(Collection<?> values) {
+    StringBuilder json = new StringBuilder(values.size() * 8 + 2).append('[');
+    boolean first = true;
+    for (Object value : values) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      if (value == null) {
+        json.append("null");
+      } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+          || value instanceof Byte) {
+        json.append(((Number) value).longValue());
+      } else if (value instanceof Double || value instanceof Float) {
+        double number = ((Number) value).doubleValue();
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+          throw new IllegalArgumentException("Cannot bind " + number + " in a collection.");
+        }
+        json.append(number);
+      } else if (value instanceof Boolean) {
+        json.append((Boolean) value ? 1 : 0);
+      } else if (value instanceof String) {
+        appendJsonString(json, (String) value);
+      } else {
+        throw new IllegalArgumentException(
+            "Cannot bind " + value.getClass().getName() + " in a collection.");
+      }
+    }
+    return json.append(']').toString();
+  }
+
+  private static void appendJsonString(StringBuilder json, String value) {
+    json.append('"');
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+
+  static final class Expanded {
+    final String sql;
+    final Object[] args;
+
+    Expanded(String sql, Object[] args) {
+      this.sql = sql;
+      this.args = args;
+    }
+  }
+
+  /**
+   * A query with collection arguments which is expanded when first run, since that is when the
+   * availability of JSON1 can be checked off the calling thread.
+   */
+  static final class LazyQuery implements SupportSQLiteQuery {
+    private final BriteDatabase db;
+    private final String sql;
+    private final Object[] args;
+    private volatile Expanded expanded;
+
+    LazyQuery(BriteDatabase db, String sql, Object[] args) {
+      this.db = db;
+      this.sql = sql;
+      this.args = args;
+    }
+
+    private Expanded expanded() {
+      Expanded expanded = this.expanded;
+      if (expanded == null) {
+        expanded = expand(sql, args, db.isJsonSupported());
+        this.expanded = expanded;
+      }
+      return expanded;
+    }
+
+    @Override public String getSql() {
+      return expanded().sql;
+    }
+
+    @Override public void bindTo(SupportSQLiteProgram statement) {
+      SimpleSQLiteQuery.bind(statement, expanded().args);
+    }
+
+    public int getArgCount() {
+      return expanded().args.length;
+    }
+
+    /** The SQL as written, which unlike {@link #getSql} never has to check for JSON1. */
+    @Override public String toString() {
+      return sql;
+    }
+  }
+
+  private CollectionArgs() {
+    throw new AssertionError("No instances.");
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+/**
+ * Shares a single {@link ContentObserver} between all listeners of the same uri. Observers are
+ * dispatched on a dedicated background thread which is started when the first observer is
+ * registered and quit when the last one is unregistered.
+ * <p>
+ * On API 16 and newer the changed uri is reported to the observer, so listeners which do not
+ * want notifications for descendants can share a registration with those that do. Changes to
+ * strict descendants are filtered out for them before they are notified. The registration only
+ * covers descendants while a listener wants them. On older versions a separate registration is
+ * made for each {@code notifyForDescendents} value.
+ */
+final class ContentObserverRegistry {
+  interface Listener {
+    void onChange();
+  }
+
+  /** Whether {@link ContentObserver#onChange(boolean, Uri)} is called with the changed uri. */
+  private static final boolean REPORTS_URI = Build.VERSION.SDK_INT >= 16;
+
+  private final ContentResolver contentResolver;
+  /** Dispatches observers instead of a thread of our own, or null. */
+  @Nullable private final Handler dispatchHandler;
+  private final Map<Uri, SharedObserver> observers = new LinkedHashMap<>();
+  private final Map<Uri, SharedObserver> exactObservers = new LinkedHashMap<>();
+  private HandlerThread thread; // Guarded by this.
+  private Handler handler; // Guarded by this.
+
+  ContentObserverRegistry(ContentResolver contentResolver, @Nullable Handler dispatchHandler) {
+    this.contentResolver = contentResolver;
+    this.dispatchHandler = dispatchHandler;
+  }
+
+  synchronized void register(Uri uri, boolean notifyForDescendents, Listener listener) {
+    Map<Uri, SharedObserver> observers = observers(notifyForDescendents);
+    SharedObserver observer = observers.get(uri);
+    if (observer == null) {
+      observer = new SharedObserver(handler(), uri, notifyForDescendents);
+      observers.put(uri, observer);
+      contentResolver.registerContentObserver(uri, notifyForDescendents, observer);
+    } else if (notifyForDescendents && !observer.notifyForDescendents) {
+      // Widen the existing registration. Its exact listeners are filtered by the changed uri.
+      contentResolver.unregisterContentObserver(observer);
+      observer.notifyForDescendents = true;
+      contentResolver.registerContentObserver(uri, true, observer);
+    }
+    observer.registrations.add(new Registration(listener, notifyForDescendents));
+  }
+
+  synchronized void unregister(Uri uri, boolean notifyForDescendents, Listener listener) {
+    Map<Uri, SharedObserver> observers = observers(notifyForDescendents);
+    SharedObserver observer = observers.get(uri);
+    if (observer == null) {
+      return;
+    }
+    for (Registration registration : observer.registrations) {
+      if (registration.listener == listener
+          && registration.notifyForDescendents == notifyForDescendents) {
+        observer.registrations.remove(registration);
+        break;
+      }
+    }
+    if (observer.registrations.isEmpty()) {
+      observers.remove(uri);
+      contentResolver.unregisterContentObserver(observer);
+      if (this.observers.isEmpty() && exactObservers.isEmpty()) {
+        quitThread();
+      }
+    } else if (observer.notifyForDescendents && !wantsDescendants(observer)) {
+      // Narrow the registration again so that changes to descendants are not dispatched only to
+      // be filtered out.
+      contentResolver.unregisterContentObserver(observer);
+      observer.notifyForDescendents = false;
+      contentResolver.registerContentObserver(uri, false, observer);
+    }
+  }
+
+  private static boolean wantsDescendants(SharedObserver observer) {
+    for (Registration registration : observer.registrations) {
+      if (registration.notifyForDescendents) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  synchronized int observerCount() {
+    return observers.size() + exactObservers.size();
+  }
+
+  private Map<Uri, SharedObserver> observers(boolean notifyForDescendents) {
+    return notifyForDescendents || REPORTS_URI ? observers : exactObservers;
+  }
+
+  synchronized boolean isThreadRunning() {
+    return thread != null;
+  }
+
+  private Handler handler() {
+    if (dispatchHandler != null) {
+      return dispatchHandler;
+    }
+    if (handler == null) {
+      thread = new HandlerThread("SqlBrite ContentObserver", THREAD_PRIORITY_BACKGROUND);
+      thread.start();
+      handler = new Handler(thread.getLooper());
+    }
+    return handler;
+  }
+
+  private void quitThread() {
+    if (thread != null) {
+      // Changes still queued were for observers which are all gone.
+      thread.quit();
+      thread = null;
+      handler = null;
+    }
+  }
+
+  /** True when {@code uri} is strictly below {@code parent} in the uri hierarchy. */
+  static boolean isDescendant(Uri parent, Uri uri) {
+    List<String> parentSegments = parent.getPathSegments();
+    List<String> segments = uri.getPathSegments();
+    return segments.size() > parentSegments.size()
+        && equal(parent.getScheme(), uri.getScheme())
+        && equal(parent.getAuthority(), uri.getAuthority())
+        && segments.subList(0, parentSegments.size()).equals(parentSegments);
+  }
+
+  private static boolean equal(@Nullable String a, @Nullable String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  static final class SharedObserver extends ContentObserver {
+    final Uri uri;
+    final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+    boolean notifyForDescendents;
+
+    SharedObserver(Handler handler, Uri uri, boolean notifyForDescendents) {
+      super(handler);
+      this.uri = uri;
+      this.notifyForDescendents = notifyForDescendents;
+    }
+
+    @Override public void onChange(boolean selfChange) {
+      onChange(selfChange, null);
+    }
+
+    @Override public void onChange(boolean selfChange, @Nullable Uri changed) {
+      boolean descendant = changed != null && isDescendant(uri, changed);
+      for (Registration registration : registrations) {
+        if (descendant && !registration.notifyForDescendents) {
+          continue; // Would not have been notified by its own registration.
+        }
+        registration.listener.onChange();
+      }
+    }
+  }
+
+  static final class Registration {
+    final Listener listener;
+    final boolean notifyForDescendents;
+
+    Registration(Listener listener, boolean notifyForDescendents) {
+      this.listener = listener;
+      this.notifyForDescendents = notifyForDescendents;
+    }
+  }
+}
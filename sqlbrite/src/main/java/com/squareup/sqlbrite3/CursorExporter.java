@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static android.database.Cursor.FIELD_TYPE_BLOB;
+import static android.database.Cursor.FIELD_TYPE_FLOAT;
+import static android.database.Cursor.FIELD_TYPE_INTEGER;
+import static android.database.Cursor.FIELD_TYPE_NULL;
+
+/**
+ * Writes the rows of a {@link Cursor} in an {@link ExportFormat}. Values are encoded straight
+ * into a reused buffer. Only floats in the text formats and blobs, which the cursor copies,
+ * allocate per value.
+ * <p>
+ * Instances are not thread safe.
+ */
+final class CursorExporter {
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  interface Canceled {
+    boolean isCanceled();
+  }
+
+  private final OutputStream out;
+  private final ExportFormat format;
+  private final byte[] buffer = new byte[8192];
+  private int size;
+  private final CharArrayBuffer chars = new CharArrayBuffer(128);
+  private final byte[] digits = new byte[20];
+  /** UTF-8 of the current text value, to learn its length before writing it in binary. */
+  private byte[] scratch = new byte[128];
+  private int scratchSize;
+
+  CursorExporter(OutputStream out, ExportFormat format) {
+    this.out = out;
+    this.format = format;
+  }
+
+  /** Write every remaining row of {@code cursor} and return how many were written. */
+  long export(Cursor cursor, Canceled canceled) throws IOException {
+    String[] names = cursor.getColumnNames();
+    byte[][] encodedNames = new byte[names.length][];
+    for (int i = 0; i < names.length; i++) {
+      encodedNames[i] = names[i].getBytes("UTF-8");
+    }
+    writeHeader(encodedNames);
+
+    long rows = 0;
+    while (!canceled.isCanceled() && cursor.moveToNext()) {
+      switch (format) {
+        case CSV:
+          writeCsvRow(cursor, encodedNames.length);
+          break;
+        case JSON_LINES:
+          writeJsonRow(cursor, encodedNames);
+          break;
+        default:
+          writeByte(1);
+          for (int i = 0; i < encodedNames.length; i++) {
+            writeBinaryValue(cursor, i);
+          }
+          break;
+      }
+      rows++;
+    }
+    if (format == ExportFormat.BINARY) {
+      writeByte(0);
+    }
+    flush();
+    return rows;
+  }
+
+  private void writeHeader(byte[][] names) throws IOException {
+    switch (format) {
+      case CSV:
+        for (int i = 0; i < names.length; i++) {
+          if (i > 0) writeByte(',');
+          writeCsvBytes(names[i]);
+        }
+        writeByte('\r');
+        writeByte('\n');
+        break;
+      case JSON_LINES:
+        break;
+      default:
+        writeByte('S');
+        writeByte('Q');
+        writeByte('L');
+        writeByte('B');
+        writeByte(1);
+        writeVarint(names.length);
+        for (byte[] name : names) {
+          writeVarint(name.length);
+          write(name, name.length);
+        }
+        break;
+    }
+  }
+
+  private void writeCsvRow(Cursor cursor, int columnCount) throws IOException {
+    for (int i = 0; i < columnCount; i++) {
+      if (i > 0) writeByte(',');
+      switch (cursor.getType(i)) {
+        case FIELD_TYPE_NULL:
+          break;
+        case FIELD_TYPE_INTEGER:
+          writeDecimal(cursor.getLong(i));
+          break;
+        case FIELD_TYPE_FLOAT:
+          writeAscii(Double.toString(cursor.getDouble(i)));
+          break;
+        case FIELD_TYPE_BLOB:
+          writeHex(cursor.getBlob(i));
+          break;
+        default:
+          cursor.copyStringToBuffer(i, chars);
+          writeCsvText(chars.data, chars.sizeCopied);
+          break;
+      }
+    }
+    writeByte('\r');
+    writeByte('\n');
+  }
+
+  private void writeCsvBytes(byte[] text) throws IOException {
+    boolean quote = false;
+    for (byte b : text) {
+      if (b == ',' || b == '"' || b == '\r' || b == '\n') {
+        quote = true;
+        break;
+      }
+    }
+    if (quote) writeByte('"');
+    for (byte b : text) {
+      if (b == '"') writeByte('"');
+      writeByte(b);
+    }
+    if (quote) writeByte('"');
+  }
+
+  private void writeCsvText(char[] text, int length) throws IOException {
+    boolean quote = false;
+    for (int i = 0; i < length; i++) {
+      char c = text[i];
+      if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+        quote = true;
+        break;
+      }
+    }
+    if (!quote) {
+      writeUtf8(text, 0, length);
+      return;
+    }
+    writeByte('"');
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      if (text[i] == '"') {
+        writeUtf8(text, start, i + 1);
+        start = i; // Write the quote a second time.
+      }
+    }
+    writeUtf8(text, start, length);
+    writeByte('"');
+  }
+
+  private void writeJsonRow(Cursor cursor, byte[][] names) throws IOException {
+    writeByte('{');
+    for (int i = 0; i < names.length; i++) {
+      if (i > 0) writeByte(',');
+      writeByte('"');
+      writeJsonBytes(names[i]);
+      writeByte('"');
+      writeByte(':');
+      switch (cursor.getType(i)) {
+        case FIELD_TYPE_NULL:
+          writeAscii("null");
+          break;
+        case FIELD_TYPE_INTEGER:
+          writeDecimal(cursor.getLong(i));
+          break;
+        case FIELD_TYPE_FLOAT:
+          double value = cursor.getDouble(i);
+          writeAscii(Double.isNaN(value) || Double.isInfinite(value)
+              ? "null"
+              : Double.toString(value));
+          break;
+        case FIELD_TYPE_BLOB:
+          writeByte('"');
+          writeHex(cursor.getBlob(i));
+          writeByte('"');
+          break;
+        default:
+          cursor.copyStringToBuffer(i, chars);
+          writeByte('"');
+          writeJsonText(chars.data, chars.sizeCopied);
+          writeByte('"');
+          break;
+      }
+    }
+    writeByte('}');
+    writeByte('\n');
+  }
+
+  private void writeJsonBytes(byte[] text) throws IOException {
+    for (byte b : text) {
+      if (b == '"' || b == '\\') {
+        writeByte('\\');
+        writeByte(b);
+      } else if (b >= 0 && b < 0x20) {
+        writeJsonControl(b);
+      } else {
+        writeByte(b);
+      }
+    }
+  }
+
+  private void writeJsonText(char[] text, int length) throws IOException {
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = text[i];
+      if (c == '"' || c == '\\' || c < 0x20) {
+        writeUtf8(text, start, i);
+        if (c < 0x20) {
+          writeJsonControl(c);
+        } else {
+          writeByte('\\');
+          writeByte(c);
+        }
+        start = i + 1;
+      }
+    }
+    writeUtf8(text, start, length);
+  }
+
+  private void writeJsonControl(int c) throws IOException {
+    writeByte('\\');
+    switch (c) {
+      case '\n':
+        writeByte('n');
+        break;
+      case '\r':
+        writeByte('r');
+        break;
+      case '\t':
+        writeByte('t');
+        break;
+      default:
+        writeByte('u');
+        writeByte('0');
+        writeByte('0');
+        writeByte(HEX[c >> 4]);
+        writeByte(HEX[c & 0xf]);
+        break;
+    }
+  }
+
+  private void writeBinaryValue(Cursor cursor, int column) throws IOException {
+    switch (cursor.getType(column)) {
+      case FIELD_TYPE_NULL:
+        writeByte(0);
+        break;
+      case FIELD_TYPE_INTEGER:
+        writeByte(1);
+        long value = cursor.getLong(column);
+        writeVarint((value << 1) ^ (value >> 63));
+        break;
+      case FIELD_TYPE_FLOAT:
+        writeByte(2);
+        long bits = Double.doubleToRawLongBits(cursor.getDouble(column));
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          writeByte((int) (bits >>> shift));
+        }
+        break;
+      case FIELD_TYPE_BLOB:
+        writeByte(4);
+        byte[] blob = cursor.getBlob(column);
+        writeVarint(blob.length);
+        write(blob, blob.length);
+        break;
+      default:
+        writeByte(3);
+        cursor.copyStringToBuffer(column, chars);
+        encodeScratch(chars.data, chars.sizeCopied);
+        writeVarint(scratchSize);
+        write(scratch, scratchSize);
+        break;
+    }
+  }
+
+  private void encodeScratch(char[] text, int length) {
+    if (scratch.length < length * 3) {
+      scratch = new byte[length * 3];
+    }
+    int position = 0;
+    for (int i = 0; i < length; i++) {
+      char c = text[i];
+      if (c < 0x80) {
+        scratch[position++] = (byte) c;
+      } else if (c < 0x800) {
+        scratch[position++] = (byte) (0xc0 | c >> 6);
+        scratch[position++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(text[i + 1])) {
+        int codePoint = Character.toCodePoint(c, text[++i]);
+        scratch[position++] = (byte) (0xf0 | codePoint >> 18);
+        scratch[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+        scratch[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+        scratch[position++] = (byte) (0x80 | codePoint & 0x3f);
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        scratch[position++] = '?';
+      } else {
+        scratch[position++] = (byte) (0xe0 | c >> 12);
+        scratch[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+        scratch[position++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+    scratchSize = position;
+  }
+
+  private void writeUtf8(char[] text, int start, int end) throws IOException {
+    for (int i = start; i < end; i++) {
+      char c = text[i];
+      if (c < 0x80) {
+        writeByte(c);
+      } else if (c < 0x800) {
+        writeByte(0xc0 | c >> 6);
+        writeByte(0x80 | c & 0x3f);
+      } else if (Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(text[i + 1])) {
+        int codePoint = Character.toCodePoint(c, text[++i]);
+        writeByte(0xf0 | codePoint >> 18);
+        writeByte(0x80 | codePoint >> 12 & 0x3f);
+        writeByte(0x80 | codePoint >> 6 & 0x3f);
+        writeByte(0x80 | codePoint & 0x3f);
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        writeByte('?');
+      } else {
+        writeByte(0xe0 | c >> 12);
+        writeByte(0x80 | c >> 6 & 0x3f);
+        writeByte(0x80 | c & 0x3f);
+      }
+    }
+  }
+
+  private void writeDecimal(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      writeAscii("-9223372036854775808");
+      return;
+    }
+    if (value < 0) {
+      writeByte('-');
+      value = -value;
+    }
+    int position = digits.length;
+    do {
+      digits[--position] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    write(digits, position, digits.length - position);
+  }
+
+  private void writeHex(byte[] bytes) throws IOException {
+    for (byte b : bytes) {
+      writeByte(HEX[(b >> 4) & 0xf]);
+      writeByte(HEX[b & 0xf]);
+    }
+  }
+
+  private void writeVarint(long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    writeByte((int) value);
+  }
+
+  private void writeAscii(String text) throws IOException {
+    for (int i = 0, length = text.length(); i < length; i++) {
+      writeByte(text.charAt(i));
+    }
+  }
+
+  private void writeByte(int b) throws IOException {
+    if (size == buffer.length) {
+      flushBuffer();
+    }
+    buffer[size++] = (byte) b;
+  }
+
+  private void write(byte[] bytes, int length) throws IOException {
+    write(bytes, 0, length);
+  }
+
+  private void write(byte[] bytes, int offset, int length) throws IOException {
+    if (length > buffer.length - size) {
+      flushBuffer();
+      if (length > buffer.length) {
+        out.write(bytes, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, offset, buffer, size, length);
+    size += length;
+  }
+
+  private void flushBuffer() throws IOException {
+    out.write(buffer, 0, size);
+    size = 0;
+  }
+
+  private void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import static android.database.Cursor.FIELD_TYPE_BLOB;
+import static android.database.Cursor.FIELD_TYPE_FLOAT;
+import static android.database.Cursor.FIELD_TYPE_INTEGER;
+import static android.database.Cursor.FIELD_TYPE_NULL;
+
+/**
+ * A streaming 64-bit hash over the values of a {@link Cursor}. Text columns are copied into a
+ * reused buffer so hashing a window-backed cursor does not allocate for anything but blobs.
+ * <p>
+ * Instances are not thread safe.
+ */
+final class CursorFingerprint {
+  private static final long SEED = 0xcbf29ce484222325L;
+
+  private final CharArrayBuffer buffer = new CharArrayBuffer(64);
+
+  /** Hash every remaining row of {@code cursor}, leaving it positioned after the last row. */
+  long hashRows(Cursor cursor) {
+    int columnCount = cursor.getColumnCount();
+    long hash = mix(SEED, columnCount);
+    while (cursor.moveToNext()) {
+      hash = mix(hash, hashRow(cursor, columnCount));
+    }
+    return hash;
+  }
+
+  /** Hash the values of the current row of {@code cursor}. */
+  long hashRow(Cursor cursor) {
+    return hashRow(cursor, cursor.getColumnCount());
+  }
+
+  private long hashRow(Cursor cursor, int columnCount) {
+    long hash = SEED;
+    for (int i = 0; i < columnCount; i++) {
+      int type = cursor.getType(i);
+      hash = mix(hash, type);
+      switch (type) {
+        case FIELD_TYPE_NULL:
+          break;
+        case FIELD_TYPE_INTEGER:
+          hash = mix(hash, cursor.getLong(i));
+          break;
+        case FIELD_TYPE_FLOAT:
+          hash = mix(hash, Double.doubleToLongBits(cursor.getDouble(i)));
+          break;
+        case FIELD_TYPE_BLOB:
+          byte[] blob = cursor.getBlob(i);
+          hash = mix(hash, blob.length);
+          for (byte b : blob) {
+            hash = mix(hash, b);
+          }
+          break;
+        default:
+          cursor.copyStringToBuffer(i, buffer);
+          char[] data = buffer.data;
+          int length = buffer.sizeCopied;
+          hash = mix(hash, length);
+          for (int c = 0; c < length; c++) {
+            hash = mix(hash, data[c]);
+          }
+          break;
+      }
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, long value) {
+    hash = (hash ^ value) * 0x9e3779b97f4a7c15L;
+    return hash ^ (hash >>> 32);
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Housekeeping for a {@link BriteDatabase} which runs while it is idle. Create using
+ * {@link BriteDatabase#newMaintenance}:
+ * <pre>{@code
+ * Disposable maintenance = db.newMaintenance(Schedulers.io())
+ *     .idleTime(5, SECONDS)
+ *     .listener(new DatabaseMaintenance.Listener() {
+ *       @Override public void onTaskRun(DatabaseMaintenance.Report report) {
+ *         Log.d(TAG, report.toString());
+ *       }
+ *     })
+ *     .start();
+ * }</pre>
+ * The database counts as idle once no transaction is open and nothing was queried or written
+ * through it for the idle time. Cursors which are still being read do not count, so the idle
+ * time should be longer than it takes to consume a result. A run stops between tasks, and within
+ * {@link Task#INCREMENTAL_VACUUM} between steps, as soon as the database is used again or the
+ * task's time budget is spent. Only {@link Task#INCREMENTAL_VACUUM} is bound by the budget.
+ * {@link Task#CHECKPOINT} and {@link Task#OPTIMIZE} are each a single statement which runs to
+ * completion however long it takes.
+ */
+public final class DatabaseMaintenance implements Disposable {
+  public enum Task {
+    /**
+     * {@code PRAGMA wal_checkpoint(PASSIVE)}, which copies as much of the write-ahead log into the
+     * database as possible without waiting on other connections. Runs once enough writes were
+     * committed. Has no effect unless the database uses write-ahead logging.
+     */
+    CHECKPOINT,
+    /**
+     * {@code PRAGMA optimize}, which refreshes the query planner's statistics where they are
+     * likely stale. Runs once enough writes were committed. The work is bounded by
+     * {@code PRAGMA analysis_limit} where SQLite supports it, not by the time budget. The
+     * connection's previous limit is restored afterwards.
+     */
+    OPTIMIZE,
+    /**
+     * {@code PRAGMA incremental_vacuum} in small steps until the free pages are released or the
+     * time budget is spent. Runs whenever free pages exist in a database whose
+     * {@code auto_vacuum} mode is {@code INCREMENTAL}.
+     */
+    INCREMENTAL_VACUUM
+  }
+
+  /** The outcome of running one {@link Task}. */
+  public static final class Report {
+    @NonNull public final Task task;
+    /** What the task did, such as the pages checkpointed or freed. */
+    @NonNull public final String result;
+    public final long durationNanos;
+    /** True if the task stopped early because of its time budget or use of the database. */
+    public final boolean interrupted;
+    /** The failure which ended the task, if any. */
+    @Nullable public final SQLiteException error;
+
+    Report(Task task, String result, long durationNanos, boolean interrupted,
+        @Nullable SQLiteException error) {
+      this.task = task;
+      this.result = result;
+      this.durationNanos = durationNanos;
+      this.interrupted = interrupted;
+      this.error = error;
+    }
+
+    @Override public String toString() {
+      return "Report{task=" + task
+          + ", result=" + result
+          + ", durationMillis=" + NANOSECONDS.toMillis(durationNanos)
+          + ", interrupted=" + interrupted
+          + ", error=" + error
+          + '}';
+    }
+  }
+
+  public interface Listener {
+    /** Called on the maintenance {@link Scheduler} after each task which ran. */
+    void onTaskRun(@NonNull Report report);
+  }
+
+  public static final class Builder {
+    private final BriteDatabase db;
+    private final Scheduler scheduler;
+    private long idleNanos = TimeUnit.SECONDS.toNanos(5);
+    private long taskBudgetNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long checkpointWrites = 100;
+    private long optimizeWrites = 1000;
+    private int analysisLimit = 400;
+    private int vacuumPagesPerStep = 64;
+    private Listener listener;
+
+    Builder(BriteDatabase db, Scheduler scheduler) {
+      this.db = db;
+      this.scheduler = scheduler;
+    }
+
+    /** How long the database must go unused before tasks run. Also how often it is checked. */
+    @CheckResult
+    public Builder idleTime(long time, @NonNull TimeUnit unit) {
+      if (time <= 0) throw new IllegalArgumentException("time <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.idleNanos = unit.toNanos(time);
+      return this;
+    }
+
+    /**
+     * The time after which {@link Task#INCREMENTAL_VACUUM} stops at its next opportunity. A
+     * single SQLite statement cannot be interrupted, so it may overrun by the duration of one.
+     * {@link Task#CHECKPOINT} and {@link Task#OPTIMIZE} ignore the budget.
+     */
+    @CheckResult
+    public Builder taskBudget(long time, @NonNull TimeUnit unit) {
+      if (time <= 0) throw new IllegalArgumentException("time <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.taskBudgetNanos = unit.toNanos(time);
+      return this;
+    }
+
+    /** The number of committed table changes which make {@link Task#CHECKPOINT} due. */
+    @CheckResult
+    public Builder checkpointAfter(long writes) {
+      if (writes <= 0) throw new IllegalArgumentException("writes <= 0");
+      this.checkpointWrites = writes;
+      return this;
+    }
+
+    /** The number of committed table changes which make {@link Task#OPTIMIZE} due. */
+    @CheckResult
+    public Builder optimizeAfter(long writes) {
+      if (writes <= 0) throw new IllegalArgumentException("writes <= 0");
+      this.optimizeWrites = writes;
+      return this;
+    }
+
+    /** The approximate number of rows {@link Task#OPTIMIZE} examines in each index. */
+    @CheckResult
+    public Builder analysisLimit(int rows) {
+      if (rows <= 0) throw new IllegalArgumentException("rows <= 0");
+      this.analysisLimit = rows;
+      return this;
+    }
+
+    /** The number of pages {@link Task#INCREMENTAL_VACUUM} frees between checks. */
+    @CheckResult
+    public Builder vacuumPagesPerStep(int pages) {
+      if (pages <= 0) throw new IllegalArgumentException("pages <= 0");
+      this.vacuumPagesPerStep = pages;
+      return this;
+    }
+
+    @CheckResult
+    public Builder listener(@NonNull Listener listener) {
+      if (listener == null) throw new NullPointerException("listener == null");
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Start watching the database. Only one maintenance may run per database at a time.
+     *
+     * @throws IllegalStateException if maintenance was already started and not disposed.
+     */
+    @NonNull
+    public DatabaseMaintenance start() {
+      DatabaseMaintenance maintenance = new DatabaseMaintenance(this);
+      db.attachMaintenance(maintenance);
+      maintenance.periodic =
+          scheduler.schedulePeriodicDirect(maintenance.check, idleNanos, idleNanos, NANOSECONDS);
+      return maintenance;
+    }
+  }
+
+  private final BriteDatabase db;
+  private final Scheduler scheduler;
+  private final long idleNanos;
+  private final long taskBudgetNanos;
+  private final long checkpointWrites;
+  private final long optimizeWrites;
+  private final int analysisLimit;
+  private final int vacuumPagesPerStep;
+  @Nullable private final Listener listener;
+
+  /** Incremented on every use of the database so a run can tell whether it was used since. */
+  private final AtomicLong activity = new AtomicLong();
+  private volatile long lastActivityNanos;
+  private final AtomicLong writesSinceCheckpoint = new AtomicLong();
+  private final AtomicLong writesSinceOptimize = new AtomicLong();
+  private volatile Disposable periodic;
+  private volatile boolean disposed;
+
+  private final Runnable check = new Runnable() {
+    @Override public void run() {
+      runIfIdle();
+    }
+  };
+
+  DatabaseMaintenance(Builder builder) {
+    this.db = builder.db;
+    this.scheduler = builder.scheduler;
+    this.idleNanos = builder.idleNanos;
+    this.taskBudgetNanos = builder.taskBudgetNanos;
+    this.checkpointWrites = builder.checkpointWrites;
+    this.optimizeWrites = builder.optimizeWrites;
+    this.analysisLimit = builder.analysisLimit;
+    this.vacuumPagesPerStep = builder.vacuumPagesPerStep;
+    this.listener = builder.listener;
+    this.lastActivityNanos = scheduler.now(NANOSECONDS);
+  }
+
+  void onActivity() {
+    activity.incrementAndGet();
+    lastActivityNanos = scheduler.now(NANOSECONDS);
+  }
+
+  void onWrite(int tables) {
+    writesSinceCheckpoint.addAndGet(tables);
+    writesSinceOptimize.addAndGet(tables);
+    onActivity();
+  }
+
+  void runIfIdle() {
+    if (disposed
+        || db.openTransactions.get() > 0
+        || scheduler.now(NANOSECONDS) - lastActivityNanos < idleNanos) {
+      return;
+    }
+    long activity = this.activity.get();
+    if (writesSinceCheckpoint.get() >= checkpointWrites) {
+      writesSinceCheckpoint.set(0);
+      report(checkpoint());
+      if (!isIdle(activity)) return;
+    }
+    if (writesSinceOptimize.get() >= optimizeWrites) {
+      writesSinceOptimize.set(0);
+      report(optimize());
+      if (!isIdle(activity)) return;
+    }
+    Report vacuum = incrementalVacuum(activity);
+    if (vacuum != null) {
+      report(vacuum);
+    }
+  }
+
+  private boolean isIdle(long activity) {
+    return !disposed && db.openTransactions.get() == 0 && this.activity.get() == activity;
+  }
+
+  private Report checkpoint() {
+    long start = System.nanoTime();
+    try {
+      String result;
+      Cursor cursor = db.getWritableDatabase().query("PRAGMA wal_checkpoint(PASSIVE)");
+      try {
+        result = cursor.moveToFirst()
+            ? "busy=" + cursor.getLong(0)
+                + " log=" + cursor.getLong(1)
+                + " checkpointed=" + cursor.getLong(2)
+            : "none";
+      } finally {
+        cursor.close();
+      }
+      return new Report(Task.CHECKPOINT, result, System.nanoTime() - start, false, null);
+    } catch (SQLiteException e) {
+      return new Report(Task.CHECKPOINT, "failed", System.nanoTime() - start, false, e);
+    }
+  }
+
+  private Report optimize() {
+    long start = System.nanoTime();
+    SupportSQLiteDatabase database = db.getWritableDatabase();
+    try {
+      // Unknown pragmas are ignored, so older versions simply analyze without a limit. They also
+      // return no row for the current limit, which is then left alone.
+      long previousLimit = pragma(database, "PRAGMA analysis_limit");
+      pragma(database, "PRAGMA analysis_limit=" + analysisLimit);
+      try {
+        pragma(database, "PRAGMA optimize");
+      } finally {
+        if (previousLimit != -1) {
+          pragma(database, "PRAGMA analysis_limit=" + previousLimit);
+        }
+      }
+      return new Report(Task.OPTIMIZE, "analysis_limit=" + analysisLimit,
+          System.nanoTime() - start, false, null);
+    } catch (SQLiteException e) {
+      return new Report(Task.OPTIMIZE, "failed", System.nanoTime() - start, false, e);
+    }
+  }
+
+  /** Returns null if there was nothing to vacuum. */
+  @Nullable private Report incrementalVacuum(long activity) {
+    long start = System.nanoTime();
+    SupportSQLiteDatabase database = db.getWritableDatabase();
+    long freed = 0;
+    try {
+      if (pragma(database, "PRAGMA auto_vacuum") != 2) { // INCREMENTAL
+        return null;
+      }
+      long free = pragma(database, "PRAGMA freelist_count");
+      if (free == 0) {
+        return null;
+      }
+      boolean interrupted = false;
+      while (free > 0) {
+        if (System.nanoTime() - start >= taskBudgetNanos || !isIdle(activity)) {
+          interrupted = true;
+          break;
+        }
+        pragma(database, "PRAGMA incremental_vacuum(" + vacuumPagesPerStep + ")");
+        long remaining = pragma(database, "PRAGMA freelist_count");
+        freed += free - remaining;
+        free = remaining;
+      }
+      return new Report(Task.INCREMENTAL_VACUUM, "freed=" + freed + " remaining=" + free,
+          System.nanoTime() - start, interrupted, null);
+    } catch (SQLiteException e) {
+      return new Report(Task.INCREMENTAL_VACUUM, "freed=" + freed, System.nanoTime() - start,
+          false, e);
+    }
+  }
+
+  /**
+   * Run a pragma to completion and return the integer in its first column, or -1 if it has no
+   * result. Pragmas are queried because some return a row, which {@code execSQL} rejects.
+   */
+  private static long pragma(SupportSQLiteDatabase database, String sql) {
+    Cursor cursor = database.query(sql);
+    try {
+      return cursor.moveToFirst() && cursor.getColumnCount() > 0 ? cursor.getLong(0) : -1;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private void report(Report report) {
+    if (db.logging) db.log("MAINTENANCE %s", report);
+    if (listener != null) {
+      listener.onTaskRun(report);
+    }
+  }
+
+  /** Stop watching the database. A task which is running stops at its next opportunity. */
+  @Override public void dispose() {
+    if (disposed) {
+      return;
+    }
+    disposed = true;
+    Disposable periodic = this.periodic;
+    if (periodic != null) {
+      periodic.dispose();
+    }
+    db.detachMaintenance(this);
+  }
+
+  @Override public boolean isDisposed() {
+    return disposed;
+  }
+}
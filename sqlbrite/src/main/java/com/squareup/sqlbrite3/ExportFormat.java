@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+/**
+ * The encodings of {@link BriteDatabase#export}. Text is written as UTF-8. Blobs are written as
+ * lowercase hex in the text formats.
+ */
+public enum ExportFormat {
+  /**
+   * RFC 4180 comma-separated values with a header row of column names and {@code \r\n} line
+   * endings. {@code NULL} is an empty field.
+   */
+  CSV,
+  /** One JSON object per row, keyed by column name, each followed by {@code \n}. */
+  JSON_LINES,
+  /**
+   * A compact binary encoding. It starts with the ASCII magic {@code SQLB}, a version byte of 1,
+   * the column count as a varint and each column name as a varint byte length followed by its
+   * bytes. Each row is the byte 1 followed by one value per column, and the byte 0 ends the rows.
+   * A value is a type byte followed by its payload: 0 for {@code NULL} with none, 1 for an integer
+   * as a zigzag varint, 2 for a float as 8 big-endian IEEE 754 bytes, 3 for text and 4 for a blob
+   * as a varint byte length followed by the bytes.
+   */
+  BINARY
+}
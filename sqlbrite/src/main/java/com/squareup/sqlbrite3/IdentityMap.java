@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.database.Cursor;
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import io.reactivex.functions.Function;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Deduplicates the objects mapped from the rows of one table across queries. Rows are identified
+ * by their primary key and a version, which is either a column which changes whenever the row
+ * does or a hash of all of the row's selected values. Hashed rows are only deduplicated across
+ * queries which select the same columns.
+ * <pre>{@code
+ * IdentityMap<TodoItem> items = IdentityMap.create(TodoItem.ID);
+ * Function<Cursor, TodoItem> mapper = items.mapper(TodoItem.MAPPER);
+ * db.createQuery(TodoItem.TABLE, "SELECT * FROM todo_item WHERE list_id = ?", listId)
+ *     .mapToList(mapper)
+ * }</pre>
+ * An unchanged row which was already mapped by any query using the same map yields the same
+ * instance, so downstream diffing can compare items by reference. Instances are only held weakly.
+ */
+public final class IdentityMap<T> {
+  /**
+   * Deduplicate rows of the table whose primary key is {@code idColumn} by a 64-bit hash of their
+   * values. Should a changed row hash the same as its previous values, which is very unlikely but
+   * possible, the instance of the previous values is returned. Use
+   * {@link #create(String, String)} where that is not acceptable.
+   */
+  @CheckResult @NonNull
+  public static <T> IdentityMap<T> create(@NonNull String idColumn) {
+    if (idColumn == null) throw new NullPointerException("idColumn == null");
+    return new IdentityMap<>(idColumn, null);
+  }
+
+  /**
+   * Deduplicate rows of the table whose primary key is {@code idColumn} by {@code versionColumn},
+   * an integer which must change whenever a row does. This saves hashing every selected value.
+   */
+  @CheckResult @NonNull
+  public static <T> IdentityMap<T> create(@NonNull String idColumn,
+      @NonNull String versionColumn) {
+    if (idColumn == null) throw new NullPointerException("idColumn == null");
+    if (versionColumn == null) throw new NullPointerException("versionColumn == null");
+    return new IdentityMap<>(idColumn, versionColumn);
+  }
+
+  private final String idColumn;
+  @Nullable private final String versionColumn;
+  /** Entries by projection, which is empty with a version column, and then by id. */
+  private final Map<String, Map<Long, Entry<T>>> entries = new HashMap<>(); // Guarded by this.
+  private final ReferenceQueue<T> queue = new ReferenceQueue<>(); // Guarded by this.
+  private final ThreadLocal<RowHasher> hashers = new ThreadLocal<RowHasher>() {
+    @Override protected RowHasher initialValue() {
+      return new RowHasher();
+    }
+  };
+
+  private IdentityMap(String idColumn, @Nullable String versionColumn) {
+    this.idColumn = idColumn;
+    this.versionColumn = versionColumn;
+  }
+
+  /**
+   * Returns a mapper which only calls {@code mapper} for rows which this map does not already
+   * hold an instance of. Queries selecting the same rows must map them the same way, since the
+   * first instance is returned for all of them.
+   */
+  @CheckResult @NonNull
+  public Function<Cursor, T> mapper(@NonNull final Function<Cursor, T> mapper) {
+    if (mapper == null) throw new NullPointerException("mapper == null");
+    return new Function<Cursor, T>() {
+      @Override public T apply(Cursor cursor) throws Exception {
+        return map(cursor, mapper);
+      }
+    };
+  }
+
+  /** Forget every held instance. */
+  public synchronized void clear() {
+    entries.clear();
+    while (queue.poll() != null) {
+      // Entries are gone. Drain the queue so expunge does not look for them.
+    }
+  }
+
+  T map(Cursor cursor, Function<Cursor, T> mapper) throws Exception {
+    long id = cursor.getLong(cursor.getColumnIndexOrThrow(idColumn));
+    String projection;
+    long version;
+    if (versionColumn != null) {
+      projection = "";
+      version = cursor.getLong(cursor.getColumnIndexOrThrow(versionColumn));
+    } else {
+      // The same values of different columns would hash the same, and map differently.
+      RowHasher hasher = hashers.get();
+      projection = hasher.projection(cursor);
+      version = hasher.fingerprint.hashRow(cursor);
+    }
+
+    T value = get(projection, id, version);
+    if (value != null) {
+      return value;
+    }
+    // Map outside the lock so queries on other threads are not blocked by a slow mapper.
+    value = mapper.apply(cursor);
+    if (value == null) {
+      return null;
+    }
+    synchronized (this) {
+      T existing = get(projection, id, version);
+      if (existing != null) {
+        return existing; // Another query mapped the same row meanwhile.
+      }
+      Map<Long, Entry<T>> rows = entries.get(projection);
+      if (rows == null) {
+        rows = new HashMap<>();
+        entries.put(projection, rows);
+      }
+      rows.put(id, new Entry<>(projection, id, version, value, queue));
+    }
+    return value;
+  }
+
+  @Nullable private synchronized T get(String projection, long id, long version) {
+    expunge();
+    Map<Long, Entry<T>> rows = entries.get(projection);
+    Entry<T> entry = rows != null ? rows.get(id) : null;
+    return entry != null && entry.version == version ? entry.get() : null;
+  }
+
+  @SuppressWarnings("unchecked") // Only entries are enqueued.
+  private void expunge() {
+    Entry<T> entry;
+    while ((entry = (Entry<T>) queue.poll()) != null) {
+      Map<Long, Entry<T>> rows = entries.get(entry.projection);
+      if (rows != null && rows.get(entry.id) == entry) {
+        rows.remove(entry.id);
+        if (rows.isEmpty()) {
+          entries.remove(entry.projection);
+        }
+      }
+    }
+  }
+
+  static final class Entry<T> extends WeakReference<T> {
+    final String projection;
+    final long id;
+    final long version;
+
+    Entry(String projection, long id, long version, T value, ReferenceQueue<T> queue) {
+      super(value, queue);
+      this.projection = projection;
+      this.id = id;
+      this.version = version;
+    }
+  }
+
+  /** Per-thread state for hashing rows. Not thread safe. */
+  static final class RowHasher {
+    final CursorFingerprint fingerprint = new CursorFingerprint();
+    private String[] columns;
+    private String projection;
+
+    /** The column names of {@code cursor} as a key, reused while a cursor returns the same. */
+    String projection(Cursor cursor) {
+      String[] columns = cursor.getColumnNames();
+      if (columns != this.columns) {
+        StringBuilder projection = new StringBuilder();
+        for (String column : columns) {
+          projection.append(column).append(',');
+        }
+        this.columns = columns;
+        this.projection = projection.toString();
+      }
+      return projection;
+    }
+  }
+}
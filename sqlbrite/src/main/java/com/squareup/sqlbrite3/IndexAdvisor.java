@@ -0,0 +1,685 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records the shape of every statement run through a {@link BriteDatabase} with how often it ran
+ * and how long it took, and suggests indexes for the most expensive ones. Enable using
+ * {@link BriteDatabase#enableIndexAdvisor}.
+ * <p>
+ * Statements which differ only in their literals and parameters share a shape. A query's time
+ * spans preparing it and filling its cursor's first window. Writes through
+ * {@code executeInsert} and {@code executeUpdateDelete} have no known SQL and only count toward
+ * the write cost of their tables. Recording stops once 500 shapes are known.
+ * <p>
+ * This is a development tool. Recording adds a little overhead to every statement, so it should
+ * not be enabled in production.
+ */
+public final class IndexAdvisor {
+  static final int MAX_SHAPES = 500;
+
+  private static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\S+)");
+  private static final Pattern AUTOMATIC_INDEX = Pattern.compile(
+      "^SEARCH (?:TABLE )?(\\S+)(?: AS \\S+)? USING AUTOMATIC (?:PARTIAL )?(?:COVERING )?INDEX"
+          + " \\(([^)]*)\\)");
+  private static final Pattern TEMP_ORDER_BY = Pattern.compile("USE TEMP B-TREE FOR .*ORDER BY");
+
+  /** Why an index is suggested. */
+  public enum Reason {
+    /** A query reads every row of the table to find the ones matching its predicates. */
+    SCAN,
+    /** A query sorts its result in a temporary b-tree instead of reading it in index order. */
+    ORDER_BY,
+    /** SQLite builds a temporary index for each run of a query to join the table. */
+    JOIN
+  }
+
+  /** How often a statement shape ran and for how long. */
+  public static final class Statement {
+    /** The normalized SQL. */
+    @NonNull public final String sql;
+    public final long count;
+    public final long totalNanos;
+    public final long maxNanos;
+
+    Statement(String sql, long count, long totalNanos, long maxNanos) {
+      this.sql = sql;
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    @Override public String toString() {
+      return "Statement{sql=" + sql
+          + ", count=" + count
+          + ", totalNanos=" + totalNanos
+          + ", maxNanos=" + maxNanos
+          + '}';
+    }
+  }
+
+  /** An index which would serve the recorded statements. */
+  public static final class Suggestion {
+    @NonNull public final String table;
+    @NonNull public final List<String> columns;
+    @NonNull public final Set<Reason> reasons;
+    /** The normalized SQL of the statements the index would serve. */
+    @NonNull public final List<String> statements;
+    /**
+     * The time recorded for the statements the index would serve. This is the most which could be
+     * saved over the same workload.
+     */
+    public final long readNanos;
+    /**
+     * The estimated time the index would have added to the recorded writes of {@link #table}. Each
+     * write is assumed to cost the same for the table and each of its indexes.
+     */
+    public final long writeNanos;
+
+    Suggestion(String table, List<String> columns, Set<Reason> reasons, List<String> statements,
+        long readNanos, long writeNanos) {
+      this.table = table;
+      this.columns = columns;
+      this.reasons = reasons;
+      this.statements = statements;
+      this.readNanos = readNanos;
+      this.writeNanos = writeNanos;
+    }
+
+    /** A {@code CREATE INDEX} statement for this suggestion. */
+    @NonNull public String createSql() {
+      StringBuilder name = new StringBuilder("index_").append(table);
+      StringBuilder sql = new StringBuilder();
+      for (int i = 0; i < columns.size(); i++) {
+        name.append('_').append(columns.get(i));
+        sql.append(i > 0 ? ", " : "").append(columns.get(i));
+      }
+      return "CREATE INDEX " + name + " ON " + table + " (" + sql + ")";
+    }
+
+    @Override public String toString() {
+      return "Suggestion{" + createSql()
+          + ", reasons=" + reasons
+          + ", readNanos=" + readNanos
+          + ", writeNanos=" + writeNanos
+          + ", statements=" + statements
+          + '}';
+    }
+  }
+
+  private final BriteDatabase db;
+  private final ConcurrentHashMap<String, Shape> shapesBySql = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Writes> writes = new ConcurrentHashMap<>();
+
+  IndexAdvisor(BriteDatabase db) {
+    this.db = db;
+  }
+
+  /** Wrap {@code cursor} to record the time of {@code sql} once its first window is filled. */
+  Cursor recordQuery(String sql, long startNanos, Cursor cursor) {
+    final Shape shape = shape(sql);
+    if (shape == null) {
+      return cursor;
+    }
+    return new TimedCursor(cursor, System.nanoTime() - startNanos) {
+      @Override void onRun(long nanos) {
+        shape.record(nanos);
+      }
+    };
+  }
+
+  void record(String sql, long nanos) {
+    Shape shape = shape(sql);
+    if (shape != null) {
+      shape.record(nanos);
+      if (shape.shape.target != null) {
+        recordWrite(Collections.singleton(shape.shape.target), nanos);
+      }
+    }
+  }
+
+  void recordInsert(String table, ContentValues values, long nanos) {
+    List<String> columns = new ArrayList<>(values.keySet());
+    Collections.sort(columns); // Key order varies between equal values.
+    StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+    for (int i = 0; i < columns.size(); i++) {
+      sql.append(i > 0 ? ", " : "").append(columns.get(i));
+    }
+    sql.append(") VALUES (");
+    for (int i = 0; i < columns.size(); i++) {
+      sql.append(i > 0 ? ", ?" : "?");
+    }
+    record(sql.append(')').toString(), nanos);
+  }
+
+  void recordUpdate(String table, ContentValues values, @Nullable String whereClause,
+      long nanos) {
+    List<String> columns = new ArrayList<>(values.keySet());
+    Collections.sort(columns);
+    StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+    for (int i = 0; i < columns.size(); i++) {
+      sql.append(i > 0 ? ", " : "").append(columns.get(i)).append(" = ?");
+    }
+    if (whereClause != null && !whereClause.isEmpty()) {
+      sql.append(" WHERE ").append(whereClause);
+    }
+    record(sql.toString(), nanos);
+  }
+
+  void recordDelete(String table, @Nullable String whereClause, long nanos) {
+    record(whereClause != null && !whereClause.isEmpty()
+        ? "DELETE FROM " + table + " WHERE " + whereClause
+        : "DELETE FROM " + table, nanos);
+  }
+
+  void recordWrite(Collection<String> tables, long nanos) {
+    for (String table : tables) {
+      String key = table.toLowerCase(Locale.US);
+      Writes writes = this.writes.get(key);
+      if (writes == null) {
+        Writes newWrites = new Writes();
+        writes = this.writes.putIfAbsent(key, newWrites);
+        if (writes == null) {
+          writes = newWrites;
+        }
+      }
+      writes.nanos.addAndGet(nanos);
+    }
+  }
+
+  @Nullable private Shape shape(String sql) {
+    Shape shape = shapesBySql.get(sql);
+    if (shape != null) {
+      return shape;
+    }
+    SqlShape parsed = SqlShape.of(sql);
+    shape = shapes.get(parsed.sql);
+    if (shape == null) {
+      if (shapes.size() >= MAX_SHAPES) {
+        return null;
+      }
+      Shape newShape = new Shape(parsed);
+      shape = shapes.putIfAbsent(parsed.sql, newShape);
+      if (shape == null) {
+        shape = newShape;
+      }
+    }
+    if (shapesBySql.size() < MAX_SHAPES) {
+      shapesBySql.put(sql, shape);
+    }
+    return shape;
+  }
+
+  /** The recorded statement shapes, most total time first. */
+  @CheckResult @NonNull
+  public List<Statement> statements() {
+    List<Statement> statements = new ArrayList<>(shapes.size());
+    for (Shape shape : shapes.values()) {
+      statements.add(shape.snapshot());
+    }
+    Collections.sort(statements, new Comparator<Statement>() {
+      @Override public int compare(Statement a, Statement b) {
+        return a.totalNanos < b.totalNanos ? 1 : a.totalNanos > b.totalNanos ? -1 : 0;
+      }
+    });
+    return statements;
+  }
+
+  /** Forget everything recorded so far. */
+  public void reset() {
+    shapesBySql.clear();
+    shapes.clear();
+    writes.clear();
+  }
+
+  /**
+   * Run {@code EXPLAIN QUERY PLAN} on the {@code hottest} queries, updates and deletes by total
+   * time and suggest the indexes which would serve them, most beneficial first. Suggestions are
+   * ranked by their {@link Suggestion#readNanos} less their {@link Suggestion#writeNanos}.
+   * Indexes whose columns begin with the suggested ones are taken to already serve them.
+   */
+  @CheckResult @NonNull @WorkerThread
+  public List<Suggestion> suggest(int hottest) {
+    if (hottest <= 0) throw new IllegalArgumentException("hottest <= 0");
+    List<Shape> candidates = new ArrayList<>();
+    for (Shape shape : shapes.values()) {
+      String first = shape.shape.tokens.isEmpty() ? "" : shape.shape.tokens.get(0);
+      if (shape.shape.kind == SqlShape.READ
+          || first.equalsIgnoreCase("UPDATE") || first.equalsIgnoreCase("DELETE")) {
+        candidates.add(shape);
+      }
+    }
+    Collections.sort(candidates, new Comparator<Shape>() {
+      @Override public int compare(Shape a, Shape b) {
+        long aNanos = a.totalNanos.get();
+        long bNanos = b.totalNanos.get();
+        return aNanos < bNanos ? 1 : aNanos > bNanos ? -1 : 0;
+      }
+    });
+    if (candidates.size() > hottest) {
+      candidates = candidates.subList(0, hottest);
+    }
+
+    Schema schema = new Schema(db.getReadableDatabase());
+    Map<String, Builder> builders = new LinkedHashMap<>();
+    for (Shape shape : candidates) {
+      List<String> plan;
+      try {
+        plan = explain(shape.shape.sql);
+      } catch (SQLiteException e) {
+        continue; // Refers to something which no longer exists.
+      }
+      SqlShape.Parsed parsed = SqlShape.parse(shape.shape.tokens);
+      for (Candidate candidate : candidatesFor(plan, parsed, schema)) {
+        if (candidate.columns.isEmpty() || schema.isIndexed(candidate.table, candidate.columns)) {
+          continue;
+        }
+        String key = (candidate.table + candidate.columns).toLowerCase(Locale.US);
+        Builder builder = builders.get(key);
+        if (builder == null) {
+          builder = new Builder(candidate.table, candidate.columns);
+          builders.put(key, builder);
+        }
+        builder.add(shape, candidate.reason);
+      }
+    }
+
+    // An index also serves every statement which uses only a prefix of its columns.
+    List<Builder> merged = new ArrayList<>(builders.values());
+    Collections.sort(merged, new Comparator<Builder>() {
+      @Override public int compare(Builder a, Builder b) {
+        return b.columns.size() - a.columns.size();
+      }
+    });
+    for (int i = merged.size() - 1; i >= 0; i--) {
+      Builder prefix = merged.get(i);
+      for (int j = 0; j < i; j++) {
+        Builder wider = merged.get(j);
+        if (wider.columns.size() > prefix.columns.size()
+            && wider.table.equalsIgnoreCase(prefix.table)
+            && startsWith(wider.columns, prefix.columns)) {
+          wider.addAll(prefix);
+          merged.remove(i);
+          break;
+        }
+      }
+    }
+
+    List<Suggestion> suggestions = new ArrayList<>(merged.size());
+    for (Builder builder : merged) {
+      Writes writes = this.writes.get(builder.table.toLowerCase(Locale.US));
+      long writeNanos =
+          writes != null ? writes.nanos.get() / (schema.indexes(builder.table).size() + 1) : 0;
+      suggestions.add(builder.build(writeNanos));
+    }
+    Collections.sort(suggestions, new Comparator<Suggestion>() {
+      @Override public int compare(Suggestion a, Suggestion b) {
+        long aBenefit = a.readNanos - a.writeNanos;
+        long bBenefit = b.readNanos - b.writeNanos;
+        return aBenefit < bBenefit ? 1 : aBenefit > bBenefit ? -1 : 0;
+      }
+    });
+    return suggestions;
+  }
+
+  private List<String> explain(String sql) {
+    List<String> plan = new ArrayList<>();
+    Cursor cursor = db.getReadableDatabase().query("EXPLAIN QUERY PLAN " + sql);
+    try {
+      int detail = cursor.getColumnIndex("detail");
+      if (detail == -1) {
+        detail = cursor.getColumnCount() - 1;
+      }
+      while (cursor.moveToNext()) {
+        plan.add(cursor.getString(detail));
+      }
+    } finally {
+      cursor.close();
+    }
+    return plan;
+  }
+
+  private static List<Candidate> candidatesFor(List<String> plan, SqlShape.Parsed parsed,
+      Schema schema) {
+    List<Candidate> candidates = new ArrayList<>();
+
+    String orderTable = null;
+    List<String> orderColumns = new ArrayList<>();
+    for (String line : plan) {
+      if (TEMP_ORDER_BY.matcher(line).find()) {
+        for (SqlShape.Column column : parsed.orderBy) {
+          String table = schema.tableOf(column, parsed);
+          if (table == null || (orderTable != null && !orderTable.equalsIgnoreCase(table))) {
+            orderTable = null; // Only an index on a single table can provide the order.
+            orderColumns.clear();
+            break;
+          }
+          orderTable = table;
+          orderColumns.add(column.name);
+        }
+        break;
+      }
+    }
+
+    boolean orderHandled = false;
+    for (String line : plan) {
+      Matcher automatic = AUTOMATIC_INDEX.matcher(line);
+      if (automatic.find()) {
+        String table = parsed.table(automatic.group(1));
+        if (table != null) {
+          List<String> columns = new ArrayList<>();
+          for (String term : automatic.group(2).split(" AND ")) {
+            String column = term.split("[=<>]", 2)[0].trim();
+            if (schema.hasColumn(table, column)) {
+              columns.add(column);
+            }
+          }
+          candidates.add(new Candidate(table, columns, Reason.JOIN));
+        }
+        continue;
+      }
+      Matcher scan = SCAN.matcher(line);
+      if (scan.find()) {
+        String table = parsed.table(scan.group(1));
+        if (table == null || schema.columns(table).isEmpty()) {
+          continue; // A subquery or a constant row.
+        }
+        // Equality columns first. Then either the order, or the first range column.
+        List<String> equality = schema.columnsOf(table, parsed.equality, parsed);
+        List<String> range = schema.columnsOf(table, parsed.range, parsed);
+        boolean ordered = orderTable != null && orderTable.equalsIgnoreCase(table);
+        Set<String> columns = new LinkedHashSet<>(equality);
+        if (ordered) {
+          columns.addAll(orderColumns);
+          orderHandled = true;
+        } else if (!range.isEmpty()) {
+          columns.add(range.get(0));
+        }
+        List<String> list = new ArrayList<>(columns);
+        if (!equality.isEmpty() || !range.isEmpty()) {
+          candidates.add(new Candidate(table, list, Reason.SCAN));
+        }
+        if (ordered) {
+          candidates.add(new Candidate(table, list, Reason.ORDER_BY));
+        }
+      }
+    }
+    if (orderTable != null && !orderHandled) {
+      // The table is searched by an index which does not also provide the order.
+      Set<String> columns = new LinkedHashSet<>();
+      columns.addAll(schema.columnsOf(orderTable, parsed.equality, parsed));
+      columns.addAll(orderColumns);
+      candidates.add(new Candidate(orderTable, new ArrayList<>(columns), Reason.ORDER_BY));
+    }
+    return candidates;
+  }
+
+  static boolean startsWith(List<String> columns, List<String> prefix) {
+    if (prefix.size() > columns.size()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.size(); i++) {
+      if (!columns.get(i).equalsIgnoreCase(prefix.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static final class Shape {
+    final SqlShape shape;
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    Shape(SqlShape shape) {
+      this.shape = shape;
+    }
+
+    void record(long nanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      do {
+        max = maxNanos.get();
+      } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+    }
+
+    Statement snapshot() {
+      return new Statement(shape.sql, count.get(), totalNanos.get(), maxNanos.get());
+    }
+  }
+
+  static final class Writes {
+    final AtomicLong nanos = new AtomicLong();
+  }
+
+  static final class Candidate {
+    final String table;
+    final List<String> columns;
+    final Reason reason;
+
+    Candidate(String table, List<String> columns, Reason reason) {
+      this.table = table;
+      this.columns = columns;
+      this.reason = reason;
+    }
+  }
+
+  static final class Builder {
+    final String table;
+    final List<String> columns;
+    final Set<Reason> reasons = EnumSet.noneOf(Reason.class);
+    final Map<String, Shape> shapes = new LinkedHashMap<>();
+
+    Builder(String table, List<String> columns) {
+      this.table = table;
+      this.columns = columns;
+    }
+
+    void add(Shape shape, Reason reason) {
+      reasons.add(reason);
+      shapes.put(shape.shape.sql, shape);
+    }
+
+    void addAll(Builder other) {
+      reasons.addAll(other.reasons);
+      shapes.putAll(other.shapes);
+    }
+
+    Suggestion build(long writeNanos) {
+      long readNanos = 0;
+      for (Shape shape : shapes.values()) {
+        readNanos += shape.totalNanos.get();
+      }
+      return new Suggestion(table, Collections.unmodifiableList(columns),
+          Collections.unmodifiableSet(reasons),
+          Collections.unmodifiableList(new ArrayList<>(shapes.keySet())), readNanos, writeNanos);
+    }
+  }
+
+  /** The columns and indexes of tables, read once per {@link #suggest}. */
+  static final class Schema {
+    private final SupportSQLiteDatabase db;
+    private final Map<String, Map<String, Boolean>> columns = new HashMap<>();
+    private final Map<String, List<List<String>>> indexes = new HashMap<>();
+
+    Schema(SupportSQLiteDatabase db) {
+      this.db = db;
+    }
+
+    /**
+     * The columns of {@code table} in lowercase, each mapped to whether it is an alias of the
+     * rowid, or an empty map if it is not a table.
+     */
+    Map<String, Boolean> columns(String table) {
+      String key = table.toLowerCase(Locale.US);
+      Map<String, Boolean> columns = this.columns.get(key);
+      if (columns == null) {
+        columns = new HashMap<>();
+        int primaryKeys = 0;
+        String integerPrimaryKey = null;
+        Cursor cursor = db.query("PRAGMA table_info(" + quote(table) + ")");
+        try {
+          int name = cursor.getColumnIndexOrThrow("name");
+          int type = cursor.getColumnIndexOrThrow("type");
+          int pk = cursor.getColumnIndexOrThrow("pk");
+          while (cursor.moveToNext()) {
+            String column = cursor.getString(name).toLowerCase(Locale.US);
+            columns.put(column, false);
+            if (cursor.getInt(pk) > 0) {
+              primaryKeys++;
+              if ("INTEGER".equalsIgnoreCase(cursor.getString(type))) {
+                integerPrimaryKey = column;
+              }
+            }
+          }
+        } finally {
+          cursor.close();
+        }
+        if (primaryKeys == 1 && integerPrimaryKey != null) {
+          columns.put(integerPrimaryKey, true);
+        }
+        if (!columns.isEmpty()) {
+          columns.put("rowid", true);
+          columns.put("_rowid_", true);
+          columns.put("oid", true);
+        }
+        this.columns.put(key, columns);
+      }
+      return columns;
+    }
+
+    boolean hasColumn(String table, String column) {
+      return columns(table).containsKey(column.toLowerCase(Locale.US));
+    }
+
+    /** The table which {@code column} belongs to in {@code parsed}, or null if unknown. */
+    @Nullable String tableOf(SqlShape.Column column, SqlShape.Parsed parsed) {
+      if (column.qualifier != null) {
+        String table = parsed.table(column.qualifier);
+        return table != null && hasColumn(table, column.name) ? table : null;
+      }
+      String found = null;
+      for (String table : parsed.tables) {
+        if (hasColumn(table, column.name)) {
+          if (found != null && !found.equalsIgnoreCase(table)) {
+            return null; // Ambiguous.
+          }
+          found = table;
+        }
+      }
+      return found;
+    }
+
+    /** The names of {@code columns} which belong to {@code table} and are not the rowid. */
+    List<String> columnsOf(String table, List<SqlShape.Column> columns, SqlShape.Parsed parsed) {
+      List<String> names = new ArrayList<>();
+      for (SqlShape.Column column : columns) {
+        if (table.equalsIgnoreCase(tableOf(column, parsed))) {
+          Boolean rowid = columns(table).get(column.name.toLowerCase(Locale.US));
+          if (rowid != null && !rowid && !containsIgnoreCase(names, column.name)) {
+            names.add(column.name);
+          }
+        }
+      }
+      return names;
+    }
+
+    /** The columns of each index of {@code table}. */
+    List<List<String>> indexes(String table) {
+      String key = table.toLowerCase(Locale.US);
+      List<List<String>> indexes = this.indexes.get(key);
+      if (indexes == null) {
+        List<String> names = new ArrayList<>();
+        Cursor cursor = db.query("PRAGMA index_list(" + quote(table) + ")");
+        try {
+          int name = cursor.getColumnIndexOrThrow("name");
+          while (cursor.moveToNext()) {
+            names.add(cursor.getString(name));
+          }
+        } finally {
+          cursor.close();
+        }
+        indexes = new ArrayList<>(names.size());
+        for (String index : names) {
+          List<String> columns = new ArrayList<>();
+          Cursor info = db.query("PRAGMA index_info(" + quote(index) + ")");
+          try {
+            int name = info.getColumnIndexOrThrow("name");
+            // An expression has no name. Only the columns before it can serve a lookup.
+            while (info.moveToNext() && !info.isNull(name)) {
+              columns.add(info.getString(name));
+            }
+          } finally {
+            info.close();
+          }
+          indexes.add(columns);
+        }
+        this.indexes.put(key, indexes);
+      }
+      return indexes;
+    }
+
+    boolean isIndexed(String table, List<String> columns) {
+      for (List<String> index : indexes(table)) {
+        if (startsWith(index, columns)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean containsIgnoreCase(List<String> names, String name) {
+      for (String existing : names) {
+        if (existing.equalsIgnoreCase(name)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static String quote(String identifier) {
+      return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+  }
+}
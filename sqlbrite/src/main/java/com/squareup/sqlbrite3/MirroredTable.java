@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static android.database.Cursor.FIELD_TYPE_BLOB;
+import static android.database.Cursor.FIELD_TYPE_FLOAT;
+import static android.database.Cursor.FIELD_TYPE_INTEGER;
+import static android.database.Cursor.FIELD_TYPE_NULL;
+import static android.database.Cursor.FIELD_TYPE_STRING;
+
+/**
+ * An immutable in-memory copy of every row of a table. Each committed change to the table
+ * advances its generation, and the next read loads a new copy which replaces the old one only if
+ * no further change was committed while it loaded.
+ */
+final class MirroredTable {
+  final String table;
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+  MirroredTable(String table) {
+    this.table = table;
+  }
+
+  void invalidate() {
+    generation.incrementAndGet();
+  }
+
+  /** Returns a cursor over the current rows, loading them from {@code db} if they changed. */
+  Cursor query(SupportSQLiteDatabase db) {
+    long generation = this.generation.get();
+    Snapshot snapshot = this.snapshot.get();
+    if (snapshot == null || snapshot.generation != generation) {
+      snapshot = load(db, generation);
+      // Only install if no change was committed while loading. Otherwise the copy may be stale.
+      if (this.generation.get() == generation) {
+        this.snapshot.set(snapshot);
+      }
+    }
+    return new SnapshotCursor(snapshot.columnNames, snapshot.rows);
+  }
+
+  private Snapshot load(SupportSQLiteDatabase db, long generation) {
+    Cursor cursor = db.query("SELECT * FROM " + table);
+    try {
+      String[] columnNames = cursor.getColumnNames();
+      List<Object[]> rows = new ArrayList<>(cursor.getCount());
+      while (cursor.moveToNext()) {
+        Object[] row = new Object[columnNames.length];
+        for (int i = 0; i < row.length; i++) {
+          switch (cursor.getType(i)) {
+            case FIELD_TYPE_NULL:
+              break;
+            case FIELD_TYPE_INTEGER:
+              row[i] = cursor.getLong(i);
+              break;
+            case FIELD_TYPE_FLOAT:
+              row[i] = cursor.getDouble(i);
+              break;
+            case FIELD_TYPE_BLOB:
+              row[i] = cursor.getBlob(i);
+              break;
+            default:
+              row[i] = cursor.getString(i);
+              break;
+          }
+        }
+        rows.add(row);
+      }
+      return new Snapshot(generation, columnNames, rows.toArray(new Object[rows.size()][]));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  static final class Snapshot {
+    final long generation;
+    final String[] columnNames;
+    final Object[][] rows;
+
+    Snapshot(long generation, String[] columnNames, Object[][] rows) {
+      this.generation = generation;
+      this.columnNames = columnNames;
+      this.rows = rows;
+    }
+  }
+
+  /** A cursor over rows shared with a {@link Snapshot}. The rows are never modified. */
+  static final class SnapshotCursor extends AbstractCursor {
+    private final String[] columnNames;
+    private final Object[][] rows;
+
+    SnapshotCursor(String[] columnNames, Object[][] rows) {
+      this.columnNames = columnNames;
+      this.rows = rows;
+    }
+
+    private Object get(int column) {
+      if (column < 0 || column >= columnNames.length) {
+        throw new IndexOutOfBoundsException(
+            "Requested column: " + column + ", # of columns: " + columnNames.length);
+      }
+      int position = getPosition();
+      if (position < 0 || position >= rows.length) {
+        throw new IndexOutOfBoundsException(
+            "Requested row: " + position + ", # of rows: " + rows.length);
+      }
+      return rows[position][column];
+    }
+
+    @Override public int getCount() {
+      return rows.length;
+    }
+
+    @Override public String[] getColumnNames() {
+      return columnNames;
+    }
+
+    @Override public int getType(int column) {
+      Object value = get(column);
+      if (value == null) {
+        return FIELD_TYPE_NULL;
+      } else if (value instanceof Long) {
+        return FIELD_TYPE_INTEGER;
+      } else if (value instanceof Double) {
+        return FIELD_TYPE_FLOAT;
+      } else if (value instanceof byte[]) {
+        return FIELD_TYPE_BLOB;
+      }
+      return FIELD_TYPE_STRING;
+    }
+
+    @Override public String getString(int column) {
+      Object value = get(column);
+      if (value == null) {
+        return null;
+      } else if (value instanceof Double) {
+        return formatDouble((Double) value);
+      } else if (value instanceof byte[]) {
+        throw new SQLiteException("Unable to convert BLOB to string");
+      }
+      return value.toString();
+    }
+
+    @Override public short getShort(int column) {
+      return (short) getLong(column);
+    }
+
+    @Override public int getInt(int column) {
+      return (int) getLong(column);
+    }
+
+    @Override public long getLong(int column) {
+      Object value = get(column);
+      if (value == null) {
+        return 0;
+      } else if (value instanceof Number) {
+        return ((Number) value).longValue();
+      } else if (value instanceof byte[]) {
+        throw new SQLiteException("Unable to convert BLOB to long");
+      }
+      return parseLong(value.toString());
+    }
+
+    @Override public float getFloat(int column) {
+      return (float) getDouble(column);
+    }
+
+    @Override public double getDouble(int column) {
+      Object value = get(column);
+      if (value == null) {
+        return 0;
+      } else if (value instanceof Number) {
+        return ((Number) value).doubleValue();
+      } else if (value instanceof byte[]) {
+        throw new SQLiteException("Unable to convert BLOB to double");
+      }
+      return parseDouble(value.toString());
+    }
+
+    @Override public byte[] getBlob(int column) {
+      Object value = get(column);
+      if (value == null) {
+        return null;
+      } else if (value instanceof byte[]) {
+        return ((byte[]) value).clone(); // The row is shared by every cursor over this copy.
+      }
+      throw new ClassCastException("Column " + column + " is not a blob");
+    }
+
+    @Override public boolean isNull(int column) {
+      return get(column) == null;
+    }
+  }
+
+  /**
+   * Like SQLite converting a real to text, format {@code value} with {@code %!.15g}: 15
+   * significant digits without trailing zeros, but always with a digit after the decimal point.
+   */
+  static String formatDouble(double value) {
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "Inf" : "-Inf";
+    }
+    if (value == 0) {
+      return "0.0";
+    }
+    BigDecimal rounded = new BigDecimal(value)
+        .round(new MathContext(15, RoundingMode.HALF_UP))
+        .stripTrailingZeros();
+    int exponent = rounded.precision() - rounded.scale() - 1;
+    if (exponent >= -4 && exponent < 15) {
+      String text = rounded.toPlainString();
+      return text.indexOf('.') == -1 ? text + ".0" : text;
+    }
+    String digits = rounded.unscaledValue().abs().toString();
+    StringBuilder text = new StringBuilder(24);
+    if (rounded.signum() < 0) {
+      text.append('-');
+    }
+    text.append(digits.charAt(0)).append('.');
+    text.append(digits.length() > 1 ? digits.substring(1) : "0");
+    text.append(exponent < 0 ? "e-" : "e+");
+    int magnitude = Math.abs(exponent);
+    if (magnitude < 10) {
+      text.append('0');
+    }
+    return text.append(magnitude).toString();
+  }
+
+  /**
+   * Like a SQLite cursor, read the longest integer prefix of {@code text} after any whitespace,
+   * clamped to the range of a long, or 0 if there is none.
+   */
+  static long parseLong(String text) {
+    int length = text.length();
+    int i = 0;
+    while (i < length && Character.isWhitespace(text.charAt(i))) {
+      i++;
+    }
+    boolean negative = false;
+    if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+      negative = text.charAt(i) == '-';
+      i++;
+    }
+    long value = 0;
+    for (; i < length; i++) {
+      int digit = text.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      if (value < (Long.MIN_VALUE + digit) / 10) {
+        return negative ? Long.MIN_VALUE : Long.MAX_VALUE;
+      }
+      value = value * 10 - digit; // Accumulate negatively to reach Long.MIN_VALUE.
+    }
+    if (negative) {
+      return value;
+    }
+    return value == Long.MIN_VALUE ? Long.MAX_VALUE : -value;
+  }
+
+  /**
+   * Like a SQLite cursor, read the longest decimal prefix of {@code text} after any whitespace,
+   * or 0 if there is none.
+   */
+  static double parseDouble(String text) {
+    int length = text.length();
+    int start = 0;
+    while (start < length && Character.isWhitespace(text.charAt(start))) {
+      start++;
+    }
+    int i = start;
+    if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+      i++;
+    }
+    int digits = 0;
+    while (i < length && isDigit(text.charAt(i))) {
+      i++;
+      digits++;
+    }
+    if (i < length && text.charAt(i) == '.') {
+      i++;
+      while (i < length && isDigit(text.charAt(i))) {
+        i++;
+        digits++;
+      }
+    }
+    if (digits == 0) {
+      return 0;
+    }
+    int end = i;
+    if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+      i++;
+      if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+        i++;
+      }
+      if (i < length && isDigit(text.charAt(i))) {
+        while (i < length && isDigit(text.charAt(i))) {
+          i++;
+        }
+        end = i;
+      }
+    }
+    return Double.parseDouble(text.substring(start, end));
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -131,4 +131,55 @@ public final class QueryObservable extends Observable<Query> {
   public final <T> Observable<List<T>> mapToList(@NonNull Function<Cursor, T> mapper) {
     return lift(Query.mapToList(mapper));
   }
+
+  /**
+   * Given a function mapping the current row of a {@link Cursor} to {@code T}, transform each
+   * emitted {@link Query} to a {@code List<T>} unless its result set is unchanged from the
+   * previous one.
+   * <p>
+   * Result sets are compared by a 64-bit hash of their values computed while the cursor is
+   * consumed, before any rows are mapped. A trigger which does not affect the result of this query
+   * (such as an update to an unrelated row) therefore neither creates objects nor emits a new list.
+   * <p>
+   * This method behaves like:
+   * <pre>{@code
+   * flatMap(q -> q.asRows(mapper).toList()).distinctUntilChanged()
+   * }</pre>
+   * except that it compares the selected values rather than the mapped objects, and that a changed
+   * result set whose hash collides with the previous one is skipped. Collisions are vanishingly
+   * unlikely but not impossible, so do not use this where missing an update is unacceptable.
+   * <p>
+   * This method is a convenience operator for:
+   * <pre>{@code
+   * lift(Query.mapToListDistinctUntilChanged(mapper))
+   * }</pre>
+   *
+   * @param mapper Maps the current {@link Cursor} row to {@code T}. May not return null.
+   */
+  @CheckResult @NonNull
+  public final <T> Observable<List<T>> mapToListDistinctUntilChanged(
+      @NonNull Function<Cursor, T> mapper) {
+    return lift(Query.mapToListDistinctUntilChanged(mapper));
+  }
+
+  /**
+   * Suspend running this query while {@code paused} most recently emitted {@code true}.
+   * <p>
+   * While paused, notifications only mark the query as stale. When {@code paused} emits
+   * {@code false} the query is emitted exactly once if it was notified in the meantime, and not at
+   * all otherwise. Until {@code paused} emits its first value the query is not paused. If
+   * {@code paused} completes the query stays resumed.
+   * <p>
+   * A query released on resume is emitted on the scheduler which queries of
+   * {@link BriteDatabase} and {@link BriteContentResolver} are emitted on, so it never runs on the
+   * thread which delivered {@code false}. Queries from other sources are emitted on that thread.
+   *
+   * @param paused Emits {@code true} when no one is interested in results, such as when a screen
+   * is in the back stack, and {@code false} when they are again.
+   */
+  @CheckResult @NonNull
+  public final QueryObservable pauseWhen(@NonNull Observable<Boolean> paused) {
+    if (paused == null) throw new NullPointerException("paused == null");
+    return new QueryObservable(new QueryPauseObservable(upstream, paused));
+  }
 }
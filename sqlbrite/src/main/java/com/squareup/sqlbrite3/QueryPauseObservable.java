@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import com.squareup.sqlbrite3.SqlBrite.Query;
+import io.reactivex.Observable;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.SerialDisposable;
+import io.reactivex.observers.SerializedObserver;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds back queries while {@code paused} most recently emitted true. The latest query received
+ * while paused is emitted once when {@code paused} emits false (or completes), on the scheduler
+ * the query is emitted on where it is known.
+ * <p>
+ * Queries and resumes both only update state and then drain it, so downstream is never called
+ * concurrently and an older query is never emitted after a newer one.
+ */
+final class QueryPauseObservable extends Observable<Query> {
+  private final Observable<Query> upstream;
+  private final Observable<Boolean> paused;
+
+  QueryPauseObservable(Observable<Query> upstream, Observable<Boolean> paused) {
+    this.upstream = upstream;
+    this.paused = paused;
+  }
+
+  @Override protected void subscribeActual(Observer<? super Query> observer) {
+    PauseObserver parent = new PauseObserver(new SerializedObserver<>(observer));
+    observer.onSubscribe(parent);
+    paused.subscribe(parent.signalObserver);
+    upstream.subscribe(parent);
+  }
+
+  static final class PauseObserver implements Observer<Query>, Disposable, Runnable {
+    private final Observer<? super Query> downstream;
+    private final CompositeDisposable disposables = new CompositeDisposable();
+    final Observer<Boolean> signalObserver = new Observer<Boolean>() {
+      @Override public void onSubscribe(Disposable d) {
+        disposables.add(d);
+      }
+
+      @Override public void onNext(Boolean paused) {
+        setPaused(paused);
+      }
+
+      @Override public void onError(Throwable e) {
+        PauseObserver.this.onError(e);
+      }
+
+      @Override public void onComplete() {
+        setPaused(false); // Nothing can resume us later so stay resumed.
+      }
+    };
+
+    /** The latest query which was not emitted yet. */
+    private final AtomicReference<Query> latest = new AtomicReference<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final SerialDisposable resume = new SerialDisposable();
+    private volatile boolean paused;
+
+    PauseObserver(Observer<? super Query> downstream) {
+      this.downstream = downstream;
+      disposables.add(resume);
+    }
+
+    @Override public void onSubscribe(Disposable d) {
+      disposables.add(d);
+    }
+
+    @Override public void onNext(Query query) {
+      // Only the latest query is relevant. Earlier ones are never run.
+      latest.set(query);
+      drain();
+    }
+
+    @Override public void onError(Throwable e) {
+      if (!disposables.isDisposed()) {
+        disposables.dispose();
+        downstream.onError(e);
+      }
+    }
+
+    @Override public void onComplete() {
+      if (!disposables.isDisposed()) {
+        disposables.dispose();
+        downstream.onComplete();
+      }
+    }
+
+    @Override public void dispose() {
+      disposables.dispose();
+    }
+
+    @Override public boolean isDisposed() {
+      return disposables.isDisposed();
+    }
+
+    void setPaused(boolean paused) {
+      this.paused = paused;
+      if (paused) {
+        return;
+      }
+      Query query = latest.get();
+      if (query == null) {
+        return;
+      }
+      // Running the query may be expensive. Do not do it on the thread which resumed us.
+      Scheduler scheduler = query.scheduler();
+      if (scheduler != null) {
+        resume.replace(scheduler.scheduleDirect(this));
+      } else {
+        drain();
+      }
+    }
+
+    @Override public void run() {
+      drain();
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return; // The thread which is draining will see the update.
+      }
+      int missed = 1;
+      do {
+        if (!paused && !disposables.isDisposed()) {
+          Query query = latest.getAndSet(null);
+          if (query != null) {
+            downstream.onNext(query);
+          }
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+}
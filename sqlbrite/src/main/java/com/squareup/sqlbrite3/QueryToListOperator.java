@@ -16,6 +16,7 @@
 package com.squareup.sqlbrite3;
 
 import android.database.Cursor;
+import android.support.annotation.Nullable;
 import io.reactivex.ObservableOperator;
 import io.reactivex.Observer;
 import io.reactivex.exceptions.Exceptions;
@@ -27,22 +28,33 @@ import java.util.List;
 
 final class QueryToListOperator<T> implements ObservableOperator<List<T>, SqlBrite.Query> {
   private final Function<Cursor, T> mapper;
+  private final boolean distinct;
 
-  QueryToListOperator(Function<Cursor, T> mapper) {
+  /**
+   * When {@code distinct} is true, result sets whose values hash the same as those of the previous
+   * emission are dropped before any rows are mapped.
+   */
+  QueryToListOperator(Function<Cursor, T> mapper, boolean distinct) {
     this.mapper = mapper;
+    this.distinct = distinct;
   }
 
   @Override public Observer<? super SqlBrite.Query> apply(Observer<? super List<T>> observer) {
-    return new MappingObserver<>(observer, mapper);
+    return new MappingObserver<>(observer, mapper, distinct ? new CursorFingerprint() : null);
   }
 
   static final class MappingObserver<T> extends DisposableObserver<SqlBrite.Query> {
     private final Observer<? super List<T>> downstream;
     private final Function<Cursor, T> mapper;
+    private final CursorFingerprint fingerprint;
+    private boolean hasFingerprint;
+    private long lastFingerprint;
 
-    MappingObserver(Observer<? super List<T>> downstream, Function<Cursor, T> mapper) {
+    MappingObserver(Observer<? super List<T>> downstream, Function<Cursor, T> mapper,
+        @Nullable CursorFingerprint fingerprint) {
       this.downstream = downstream;
       this.mapper = mapper;
+      this.fingerprint = fingerprint;
     }
 
     @Override protected void onStart() {
@@ -51,12 +63,22 @@ final class QueryToListOperator<T> implements ObservableOperator<List<T>, SqlBri
 
     @Override public void onNext(SqlBrite.Query query) {
       try {
-        Cursor cursor = query.run();
+        Cursor cursor = query.runCancellable();
         if (cursor == null || isDisposed()) {
           return;
         }
-        List<T> items = new ArrayList<>(cursor.getCount());
+        List<T> items;
         try {
+          if (fingerprint != null) {
+            long hash = fingerprint.hashRows(cursor);
+            if (hasFingerprint && hash == lastFingerprint) {
+              return;
+            }
+            hasFingerprint = true;
+            lastFingerprint = hash;
+            cursor.moveToPosition(-1);
+          }
+          items = new ArrayList<>(cursor.getCount());
           while (cursor.moveToNext()) {
             items.add(mapper.apply(cursor));
           }
@@ -68,6 +90,9 @@ final class QueryToListOperator<T> implements ObservableOperator<List<T>, SqlBri
         }
       } catch (Throwable e) {
         Exceptions.throwIfFatal(e);
+        if (query.isCanceled()) {
+          return; // Superseded by a newer trigger or disposed. Nobody will read this result.
+        }
         onError(e);
       }
     }
@@ -56,7 +56,7 @@ final class QueryToOneOperator<T> implements ObservableOperator<T, SqlBrite.Quer
     @Override public void onNext(SqlBrite.Query query) {
       try {
         T item = null;
-        Cursor cursor = query.run();
+        Cursor cursor = query.runCancellable();
         if (cursor != null) {
           try {
             if (cursor.moveToNext()) {
@@ -82,6 +82,9 @@ final class QueryToOneOperator<T> implements ObservableOperator<T, SqlBrite.Quer
         }
       } catch (Throwable e) {
         Exceptions.throwIfFatal(e);
+        if (query.isCanceled()) {
+          return; // Superseded by a newer trigger or disposed. Nobody will read this result.
+        }
         onError(e);
       }
     }
@@ -54,7 +54,7 @@ final class QueryToOptionalOperator<T> implements ObservableOperator<Optional<T>
     @Override public void onNext(SqlBrite.Query query) {
       try {
         T item = null;
-        Cursor cursor = query.run();
+        Cursor cursor = query.runCancellable();
         if (cursor != null) {
           try {
             if (cursor.moveToNext()) {
@@ -76,6 +76,9 @@ final class QueryToOptionalOperator<T> implements ObservableOperator<Optional<T>
         }
       } catch (Throwable e) {
         Exceptions.throwIfFatal(e);
+        if (query.isCanceled()) {
+          return; // Superseded by a newer trigger or disposed. Nobody will read this result.
+        }
         onError(e);
       }
     }
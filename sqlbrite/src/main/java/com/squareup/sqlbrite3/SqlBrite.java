@@ -32,8 +32,12 @@ import io.reactivex.ObservableOperator;
 import io.reactivex.ObservableTransformer;
 import io.reactivex.Scheduler;
 import io.reactivex.functions.Function;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A lightweight wrapper around {@link SupportSQLiteOpenHelper} which allows for continuously
@@ -55,6 +59,9 @@ public final class SqlBrite {
   public static final class Builder {
     private Logger logger = DEFAULT_LOGGER;
     private ObservableTransformer<Query, Query> queryTransformer = DEFAULT_TRANSFORMER;
+    private long triggerWindowNanos;
+    private Scheduler triggerClock;
+    private final Map<String, Long> tableThrottles = new LinkedHashMap<>();
 
     @CheckResult
     public Builder logger(@NonNull Logger logger) {
@@ -70,18 +77,63 @@ public final class SqlBrite {
       return this;
     }
 
+    /**
+     * Gather the table triggers of a {@link BriteDatabase} sent within {@code window} into a
+     * single notification. Each affected query then runs once per window instead of once per
+     * write, at the cost of delaying notifications by up to {@code window}.
+     *
+     * @param clock The {@link Scheduler} which ends each window. Use a scheduler driven by the
+     * display's frames to align notifications with them.
+     */
+    @CheckResult
+    public Builder triggerWindow(long window, @NonNull TimeUnit unit, @NonNull Scheduler clock) {
+      if (window < 0) throw new IllegalArgumentException("window < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (clock == null) throw new NullPointerException("clock == null");
+      this.triggerWindowNanos = unit.toNanos(window);
+      this.triggerClock = clock;
+      return this;
+    }
+
+    /**
+     * Limit notifications of queries over {@code table} to one per {@code interval}. The first
+     * change notifies immediately. Further changes within the interval are folded into a single
+     * notification sent when it ends, which starts a new interval. Tables without a throttle keep
+     * notifying immediately.
+     * <p>
+     * Intervals are timed on the {@link Scheduler} supplied to
+     * {@link #wrapDatabaseHelper(SupportSQLiteOpenHelper, Scheduler)}.
+     */
+    @CheckResult
+    public Builder throttleTable(@NonNull String table, long interval, @NonNull TimeUnit unit) {
+      if (table == null) throw new NullPointerException("table == null");
+      if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      tableThrottles.put(table, unit.toNanos(interval));
+      return this;
+    }
+
     @CheckResult
     public SqlBrite build() {
-      return new SqlBrite(logger, queryTransformer);
+      return new SqlBrite(logger, queryTransformer, triggerWindowNanos, triggerClock,
+          Collections.unmodifiableMap(new LinkedHashMap<>(tableThrottles)));
     }
   }
 
   final Logger logger;
   final ObservableTransformer<Query, Query> queryTransformer;
+  final long triggerWindowNanos;
+  @Nullable final Scheduler triggerClock;
+  final Map<String, Long> tableThrottles;
 
-  SqlBrite(@NonNull Logger logger, @NonNull ObservableTransformer<Query, Query> queryTransformer) {
+  SqlBrite(@NonNull Logger logger, @NonNull ObservableTransformer<Query, Query> queryTransformer,
+      long triggerWindowNanos, @Nullable Scheduler triggerClock,
+      @NonNull Map<String, Long> tableThrottles) {
     this.logger = logger;
     this.queryTransformer = queryTransformer;
+    this.triggerWindowNanos = triggerWindowNanos;
+    this.triggerClock = triggerClock;
+    this.tableThrottles = tableThrottles;
   }
 
   /**
@@ -98,7 +150,8 @@ public final class SqlBrite {
   @CheckResult @NonNull public BriteDatabase wrapDatabaseHelper(
       @NonNull SupportSQLiteOpenHelper helper,
       @NonNull Scheduler scheduler) {
-    return new BriteDatabase(helper, logger, scheduler, queryTransformer);
+    return new BriteDatabase(helper, logger, scheduler, queryTransformer, triggerWindowNanos,
+        triggerClock, tableThrottles);
   }
 
   /**
@@ -186,7 +239,28 @@ public final class SqlBrite {
     @CheckResult @NonNull
     public static <T> ObservableOperator<List<T>, Query> mapToList(
         @NonNull Function<Cursor, T> mapper) {
-      return new QueryToListOperator<>(mapper);
+      return new QueryToListOperator<>(mapper, false);
+    }
+
+    /**
+     * Creates an {@linkplain ObservableOperator operator} which transforms a query to a
+     * {@code List<T>} using {@code mapper}, skipping result sets which are unchanged from the
+     * previous one. Use with {@link Observable#lift}.
+     * <p>
+     * Each result set is first hashed while the cursor is consumed. When the hash matches that of
+     * the previously emitted result set, nothing is mapped or emitted. This is cheaper than
+     * {@code mapToList(mapper).distinctUntilChanged()} since no objects are created for a result
+     * set which has not changed. As with any hash, two different result sets may collide in which
+     * case an update will be missed. With a 64-bit hash this is vanishingly unlikely.
+     * <p>
+     * This operator ignores {@code null} cursors returned from {@link #run()}.
+     *
+     * @param mapper Maps the current {@link Cursor} row to {@code T}. May not return null.
+     */
+    @CheckResult @NonNull
+    public static <T> ObservableOperator<List<T>, Query> mapToListDistinctUntilChanged(
+        @NonNull Function<Cursor, T> mapper) {
+      return new QueryToListOperator<>(mapper, true);
     }
 
     /**
@@ -202,6 +276,25 @@ public final class SqlBrite {
     @Nullable
     public abstract Cursor run();
 
+    /**
+     * Like {@link #run()}, but the returned cursor may be canceled once its result is no longer
+     * needed. Only used by the built-in operators which consume and close the cursor themselves.
+     * Callers must check {@link #isCanceled()} when consuming the cursor fails.
+     */
+    @Nullable Cursor runCancellable() {
+      return run();
+    }
+
+    /** True when the cursor from the most recent {@link #runCancellable()} was canceled. */
+    boolean isCanceled() {
+      return false;
+    }
+
+    /** The scheduler this query is emitted on, or null if it is not known. */
+    @Nullable Scheduler scheduler() {
+      return null;
+    }
+
     /**
      * Execute the query on the underlying database and return an Observable of each row mapped to
      * {@code T} by {@code mapper}.
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The shape of a SQL statement: its tokens with every literal and parameter replaced by
+ * {@code ?} and every {@code IN} list of them collapsed to one, so statements which differ only
+ * in their values share a shape. The shape is itself valid SQL.
+ * <p>
+ * {@link #parse} extracts what an index could serve. It is a heuristic which does not understand
+ * every statement, and misses what it does not understand rather than failing.
+ */
+final class SqlShape {
+  static final int OTHER = 0;
+  static final int READ = 1;
+  static final int WRITE = 2;
+
+  private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+      "ALL", "AND", "AS", "ASC", "BETWEEN", "BY", "CASE", "CAST", "COLLATE", "CROSS", "DEFAULT",
+      "DELETE", "DESC", "DISTINCT", "ELSE", "END", "ESCAPE", "EXCEPT", "EXISTS", "FIRST", "FROM",
+      "FULL", "GLOB", "GROUP", "HAVING", "IN", "INDEXED", "INNER", "INSERT", "INTERSECT", "INTO",
+      "IS", "JOIN", "LAST", "LEFT", "LIKE", "LIMIT", "MATCH", "NATURAL", "NOT", "NULL", "NULLS",
+      "OFFSET", "ON", "OR", "ORDER", "OUTER", "OVER", "RECURSIVE", "REGEXP", "REPLACE",
+      "RETURNING", "RIGHT", "SELECT", "SET", "THEN", "UNION", "UPDATE", "USING", "VALUES", "WHEN",
+      "WHERE", "WINDOW", "WITH"));
+
+  private static final int NONE = 0;
+  private static final int FROM = 1;
+  private static final int PREDICATE = 2;
+  private static final int ORDER = 3;
+
+  final String sql;
+  final List<String> tokens;
+  final int kind;
+  /** The table an {@code INSERT}, {@code UPDATE} or {@code DELETE} writes, if known. */
+  @Nullable final String target;
+
+  private SqlShape(String sql, List<String> tokens, int kind, @Nullable String target) {
+    this.sql = sql;
+    this.tokens = tokens;
+    this.kind = kind;
+    this.target = target;
+  }
+
+  static SqlShape of(String sql) {
+    List<String> tokens = collapseInLists(tokenize(sql));
+    int kind = OTHER;
+    String target = null;
+    if (!tokens.isEmpty()) {
+      String first = tokens.get(0).toUpperCase(Locale.US);
+      if (first.equals("SELECT") || first.equals("WITH")) {
+        kind = READ;
+      } else if (first.equals("INSERT") || first.equals("REPLACE") || first.equals("UPDATE")
+          || first.equals("DELETE")) {
+        kind = WRITE;
+        Parsed parsed = parse(tokens);
+        target = parsed.target;
+        if (target == null && !parsed.tables.isEmpty()) {
+          target = parsed.tables.get(0); // DELETE FROM.
+        }
+      }
+    }
+    return new SqlShape(join(tokens), tokens, kind, target);
+  }
+
+  static List<String> tokenize(String sql) {
+    List<String> tokens = new ArrayList<>();
+    int length = sql.length();
+    int i = 0;
+    while (i < length) {
+      char c = sql.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+        int end = sql.indexOf('\n', i);
+        i = end == -1 ? length : end + 1;
+      } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+        int end = sql.indexOf("*/", i + 2);
+        i = end == -1 ? length : end + 2;
+      } else if (c == '\'' || ((c == 'x' || c == 'X') && i + 1 < length
+          && sql.charAt(i + 1) == '\'')) {
+        int end = c == '\'' ? i : i + 1;
+        do {
+          end = sql.indexOf('\'', end + 1);
+          if (end == -1) {
+            end = length;
+            break;
+          }
+          end++; // A doubled quote escapes a quote.
+        } while (end < length && sql.charAt(end) == '\'');
+        tokens.add("?");
+        i = end;
+      } else if (Character.isDigit(c)
+          || (c == '.' && i + 1 < length && Character.isDigit(sql.charAt(i + 1)))) {
+        int end = i + 1;
+        while (end < length) {
+          char n = sql.charAt(end);
+          char previous = sql.charAt(end - 1);
+          if (Character.isLetterOrDigit(n) || n == '.'
+              || ((n == '+' || n == '-') && (previous == 'e' || previous == 'E'))) {
+            end++;
+          } else {
+            break;
+          }
+        }
+        tokens.add("?");
+        i = end;
+      } else if (c == '?' || c == ':' || c == '@' || c == '$') {
+        int end = i + 1;
+        while (end < length
+            && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_')) {
+          end++;
+        }
+        tokens.add("?");
+        i = end;
+      } else if (c == '"' || c == '`' || c == '[') {
+        int end = sql.indexOf(c == '[' ? ']' : c, i + 1);
+        end = end == -1 ? length : end + 1;
+        tokens.add(sql.substring(i, end));
+        i = end;
+      } else if (Character.isLetter(c) || c == '_') {
+        int end = i + 1;
+        while (end < length && (Character.isLetterOrDigit(sql.charAt(end))
+            || sql.charAt(end) == '_' || sql.charAt(end) == '$')) {
+          end++;
+        }
+        tokens.add(sql.substring(i, end));
+        i = end;
+      } else {
+        int end = i + 1;
+        if (end < length) {
+          String pair = sql.substring(i, end + 1);
+          if (pair.equals("<=") || pair.equals(">=") || pair.equals("<>") || pair.equals("!=")
+              || pair.equals("==") || pair.equals("||") || pair.equals("<<")
+              || pair.equals(">>")) {
+            end++;
+          }
+        }
+        tokens.add(sql.substring(i, end));
+        i = end;
+      }
+    }
+    return tokens;
+  }
+
+  /** Collapse {@code IN (?, ?, ...)} to {@code IN (?)}. */
+  private static List<String> collapseInLists(List<String> tokens) {
+    List<String> collapsed = new ArrayList<>(tokens.size());
+    int size = tokens.size();
+    for (int i = 0; i < size; i++) {
+      String token = tokens.get(i);
+      collapsed.add(token);
+      if (token.equalsIgnoreCase("IN") && i + 2 < size && tokens.get(i + 1).equals("(")
+          && tokens.get(i + 2).equals("?")) {
+        int end = i + 3;
+        while (end + 1 < size && tokens.get(end).equals(",") && tokens.get(end + 1).equals("?")) {
+          end += 2;
+        }
+        if (end < size && tokens.get(end).equals(")")) {
+          collapsed.add("(");
+          collapsed.add("?");
+          collapsed.add(")");
+          i = end;
+        }
+      }
+    }
+    return collapsed;
+  }
+
+  private static String join(List<String> tokens) {
+    StringBuilder sql = new StringBuilder();
+    String previous = null;
+    for (String token : tokens) {
+      if (previous != null && !token.equals(",") && !token.equals(")") && !token.equals(".")
+          && !previous.equals("(") && !previous.equals(".")) {
+        sql.append(' ');
+      }
+      sql.append(token);
+      previous = token;
+    }
+    return sql.toString();
+  }
+
+  static boolean isIdentifier(String token) {
+    char c = token.charAt(0);
+    if (c == '"' || c == '`' || c == '[') {
+      return true;
+    }
+    return (Character.isLetter(c) || c == '_')
+        && !KEYWORDS.contains(token.toUpperCase(Locale.US));
+  }
+
+  static String unquote(String identifier) {
+    char c = identifier.charAt(0);
+    if ((c == '"' || c == '`' || c == '[') && identifier.length() >= 2) {
+      return identifier.substring(1, identifier.length() - 1);
+    }
+    return identifier;
+  }
+
+  static Parsed parse(List<String> tokens) {
+    Parsed parsed = new Parsed();
+    Deque<Integer> states = new ArrayDeque<>();
+    int state = NONE;
+    boolean expectTable = false;
+    boolean orderValid = true;
+    int size = tokens.size();
+    for (int i = 0; i < size; i++) {
+      String token = tokens.get(i);
+      String upper = token.toUpperCase(Locale.US);
+      if (token.equals("(")) {
+        states.push(state);
+        expectTable = false;
+        continue;
+      }
+      if (token.equals(")")) {
+        state = states.isEmpty() ? NONE : states.pop();
+        expectTable = false;
+        continue;
+      }
+      switch (upper) {
+        case "SELECT":
+        case "GROUP":
+        case "HAVING":
+        case "LIMIT":
+        case "WINDOW":
+        case "UNION":
+        case "EXCEPT":
+        case "INTERSECT":
+        case "SET":
+        case "VALUES":
+        case "RETURNING":
+        case "USING":
+          state = NONE;
+          expectTable = false;
+          continue;
+        case "FROM":
+        case "JOIN":
+          state = FROM;
+          expectTable = true;
+          continue;
+        case "WHERE":
+        case "ON":
+          state = PREDICATE;
+          continue;
+        case "ORDER":
+          if (i + 1 < size && tokens.get(i + 1).equalsIgnoreCase("BY")) {
+            state = ORDER;
+            i++;
+          }
+          continue;
+        case "UPDATE":
+        case "INTO": {
+          int next = i + 1;
+          if (upper.equals("UPDATE") && next + 1 < size
+              && tokens.get(next).equalsIgnoreCase("OR")) {
+            next += 2; // Conflict algorithm.
+          }
+          if (next < size && isIdentifier(tokens.get(next))) {
+            i = tableAt(tokens, next, parsed);
+            parsed.target = parsed.tables.get(parsed.tables.size() - 1);
+          }
+          state = NONE;
+          continue;
+        }
+        default:
+          break;
+      }
+
+      if (state == FROM) {
+        if (token.equals(",")) {
+          expectTable = true;
+        } else if (expectTable && isIdentifier(token)) {
+          i = tableAt(tokens, i, parsed);
+          expectTable = false;
+        }
+      } else if (state == PREDICATE) {
+        if (isIdentifier(token)) {
+          i = predicateAt(tokens, i, parsed);
+        }
+      } else if (state == ORDER) {
+        if (isIdentifier(token)) {
+          int end = i;
+          Column column;
+          if (i + 2 < size && tokens.get(i + 1).equals(".")) {
+            column = new Column(unquote(token), unquote(tokens.get(i + 2)));
+            end = i + 2;
+          } else {
+            column = new Column(null, unquote(token));
+          }
+          String after = end + 1 < size ? tokens.get(end + 1).toUpperCase(Locale.US) : ",";
+          if (after.equals("(")) {
+            orderValid = false; // A function or expression.
+          } else {
+            parsed.orderBy.add(column);
+          }
+          i = end;
+        } else if (!token.equals(",") && !upper.equals("ASC") && !upper.equals("DESC")
+            && !upper.equals("NULLS") && !upper.equals("FIRST") && !upper.equals("LAST")) {
+          orderValid = false;
+        }
+      }
+    }
+    if (!orderValid) {
+      parsed.orderBy.clear();
+    }
+    return parsed;
+  }
+
+  /** Record the table reference at {@code i} and its alias and return the index of its end. */
+  private static int tableAt(List<String> tokens, int i, Parsed parsed) {
+    int size = tokens.size();
+    String table = unquote(tokens.get(i));
+    if (i + 2 < size && tokens.get(i + 1).equals(".")) {
+      table = unquote(tokens.get(i + 2)); // Qualified by a schema.
+      i += 2;
+    }
+    parsed.tables.add(table);
+    parsed.aliases.put(table.toLowerCase(Locale.US), table);
+    if (i + 2 < size && tokens.get(i + 1).equalsIgnoreCase("AS")) {
+      parsed.aliases.put(unquote(tokens.get(i + 2)).toLowerCase(Locale.US), table);
+      i += 2;
+    } else if (i + 1 < size && isIdentifier(tokens.get(i + 1))) {
+      parsed.aliases.put(unquote(tokens.get(i + 1)).toLowerCase(Locale.US), table);
+      i += 1;
+    }
+    return i;
+  }
+
+  /**
+   * Record the column compared at {@code i}, and the column it is compared to if it is compared
+   * to one, and return the index of the last token consumed.
+   */
+  private static int predicateAt(List<String> tokens, int i, Parsed parsed) {
+    int size = tokens.size();
+    int end = columnEnd(tokens, i);
+    if (end == -1 || end + 1 >= size) {
+      return i;
+    }
+    Column column = column(tokens, i, end);
+    String op = tokens.get(end + 1).toUpperCase(Locale.US);
+    boolean equality = op.equals("=") || op.equals("==") || op.equals("IN")
+        || (op.equals("IS") && end + 2 < size && !tokens.get(end + 2).equalsIgnoreCase("NOT"));
+    if (equality) {
+      parsed.equality.add(column);
+      int right = end + 2;
+      int rightEnd = right < size ? columnEnd(tokens, right) : -1;
+      if (!op.equals("IN") && rightEnd != -1) {
+        parsed.equality.add(column(tokens, right, rightEnd)); // A join condition.
+        return rightEnd;
+      }
+      return end + 1;
+    }
+    if (op.equals("<") || op.equals(">") || op.equals("<=") || op.equals(">=")
+        || op.equals("BETWEEN")) {
+      parsed.range.add(column);
+      return end + 1;
+    }
+    return end;
+  }
+
+  /** The index of the last token of the column reference at {@code i}, or -1 if there is none. */
+  private static int columnEnd(List<String> tokens, int i) {
+    int size = tokens.size();
+    if (!isIdentifier(tokens.get(i))) {
+      return -1;
+    }
+    int end = i;
+    if (i + 2 < size && tokens.get(i + 1).equals(".") && isIdentifier(tokens.get(i + 2))) {
+      end = i + 2;
+    }
+    if (end + 1 < size && tokens.get(end + 1).equals("(")) {
+      return -1; // A function call.
+    }
+    return end;
+  }
+
+  private static Column column(List<String> tokens, int start, int end) {
+    return start == end
+        ? new Column(null, unquote(tokens.get(start)))
+        : new Column(unquote(tokens.get(start)), unquote(tokens.get(end)));
+  }
+
+  static final class Parsed {
+    final List<String> tables = new ArrayList<>();
+    /** Table names by their lowercase alias, including each table's own name. */
+    final Map<String, String> aliases = new LinkedHashMap<>();
+    final List<Column> equality = new ArrayList<>();
+    final List<Column> range = new ArrayList<>();
+    final List<Column> orderBy = new ArrayList<>();
+    @Nullable String target;
+
+    /** The table {@code name} refers to in this statement, or null if it is not one. */
+    @Nullable String table(String name) {
+      return aliases.get(name.toLowerCase(Locale.US));
+    }
+  }
+
+  static final class Column {
+    @Nullable final String qualifier;
+    final String name;
+
+    Column(@Nullable String qualifier, String name) {
+      this.qualifier = qualifier;
+      this.name = name;
+    }
+
+    @Override public String toString() {
+      return qualifier != null ? qualifier + '.' + name : name;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Reports the time its query took once the first window is filled, or when it is closed unread.
+ * Queries run lazily, so the time spent in {@code query} alone only covers preparing them.
+ */
+abstract class TimedCursor extends CursorWrapper {
+  private final long prepareNanos;
+  private boolean reported;
+
+  TimedCursor(Cursor cursor, long prepareNanos) {
+    super(cursor);
+    this.prepareNanos = prepareNanos;
+  }
+
+  /** Called once with the time spent preparing the query and filling its first window. */
+  abstract void onRun(long nanos);
+
+  private void ran(long startNanos) {
+    reported = true;
+    onRun(prepareNanos + System.nanoTime() - startNanos);
+  }
+
+  @Override public int getCount() {
+    if (reported) {
+      return super.getCount();
+    }
+    long start = System.nanoTime();
+    int count = super.getCount();
+    ran(start);
+    return count;
+  }
+
+  @Override public boolean move(int offset) {
+    if (reported) {
+      return super.move(offset);
+    }
+    long start = System.nanoTime();
+    boolean moved = super.move(offset);
+    ran(start);
+    return moved;
+  }
+
+  @Override public boolean moveToPosition(int position) {
+    if (reported) {
+      return super.moveToPosition(position);
+    }
+    long start = System.nanoTime();
+    boolean moved = super.moveToPosition(position);
+    ran(start);
+    return moved;
+  }
+
+  @Override public boolean moveToFirst() {
+    if (reported) {
+      return super.moveToFirst();
+    }
+    long start = System.nanoTime();
+    boolean moved = super.moveToFirst();
+    ran(start);
+    return moved;
+  }
+
+  @Override public boolean moveToLast() {
+    if (reported) {
+      return super.moveToLast();
+    }
+    long start = System.nanoTime();
+    boolean moved = super.moveToLast();
+    ran(start);
+    return moved;
+  }
+
+  @Override public boolean moveToNext() {
+    if (reported) {
+      return super.moveToNext();
+    }
+    long start = System.nanoTime();
+    boolean moved = super.moveToNext();
+    ran(start);
+    return moved;
+  }
+
+  @Override public void close() {
+    if (!reported) {
+      ran(System.nanoTime());
+    }
+    super.close();
+  }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.arch.persistence.db.SupportSQLiteProgram;
+import android.arch.persistence.db.SupportSQLiteQuery;
+import android.arch.persistence.db.SupportSQLiteStatement;
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a trace of the statements and transactions run through a {@link BriteDatabase} for
+ * {@link WorkloadReplayer} to replay. Start using {@link BriteDatabase#startRecording} and close
+ * to stop.
+ * <p>
+ * The trace records each statement's SQL once. Each run then records the SQL's ID, its arguments,
+ * the calling thread, its start and its duration. A query's duration spans preparing it and
+ * filling its cursor's first window, which is timed when the cursor is first read. Events are
+ * written in the order they ran, so those after a query wait until its cursor is read or closed.
+ * An unread cursor which holds back too many events, or is still open when recording stops, is
+ * recorded with the time it took to prepare. When recording is redacted, text and blob arguments
+ * are replaced by their length. A replay then binds placeholder values of that length.
+ * Statements run with {@code executeInsert} and {@code executeUpdateDelete} are only recorded if
+ * they were compiled with {@link BriteDatabase#compileStatement}, since otherwise their SQL and
+ * arguments are not known.
+ * <p>
+ * A trace starts with the ASCII magic {@code SQLT}, a version byte of 1 and the start as
+ * milliseconds since the epoch as a varint. Then follows a record per event, each a tag byte and
+ * its fields. Numbers are varints. Times are nanoseconds since the start.
+ * <ul>
+ * <li>1: a SQL string: its ID, then its UTF-8 byte length and bytes.
+ * <li>2 or 3: a query or another statement: the SQL's ID, the thread ID, start, duration and
+ * argument count, then each argument.
+ * <li>4: a transaction began: the thread ID, the time and 1 if it is exclusive or 0.
+ * <li>5: a transaction ended: the thread ID, the time and 1 if it committed or 0.
+ * </ul>
+ * An argument is a type byte and its value: 0 for {@code NULL}, 1 for an integer as a zigzag
+ * varint, 2 for a float as 8 big-endian IEEE 754 bytes, 3 for text or 4 for a blob as a byte
+ * length and bytes, and 5 for redacted text or 6 for a redacted blob as a length.
+ */
+public final class WorkloadRecorder implements Closeable {
+  static final byte[] MAGIC = { 'S', 'Q', 'L', 'T' };
+  static final int VERSION = 1;
+
+  static final int SQL = 1;
+  static final int QUERY = 2;
+  static final int EXECUTE = 3;
+  static final int BEGIN = 4;
+  static final int END = 5;
+
+  static final int ARG_NULL = 0;
+  static final int ARG_INTEGER = 1;
+  static final int ARG_FLOAT = 2;
+  static final int ARG_TEXT = 3;
+  static final int ARG_BLOB = 4;
+  static final int ARG_REDACTED_TEXT = 5;
+  static final int ARG_REDACTED_BLOB = 6;
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Events held back behind a query whose duration is not known yet, before being dropped. */
+  static final int MAX_PENDING = 1024;
+
+  private final BriteDatabase db;
+  private final DataOutputStream out;
+  private final boolean redact;
+  private final long startNanos;
+  private final Map<String, Integer> sqlIds = new HashMap<>(); // Guarded by this.
+  /** Events in the order they started, written once each and all before it are complete. */
+  private final ArrayDeque<Event> pending = new ArrayDeque<>(); // Guarded by this.
+  private IOException failure; // Guarded by this.
+  private boolean closed; // Guarded by this.
+
+  WorkloadRecorder(BriteDatabase db, OutputStream out, boolean redact) throws IOException {
+    this.db = db;
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.redact = redact;
+    this.startNanos = System.nanoTime();
+    this.out.write(MAGIC);
+    this.out.writeByte(VERSION);
+    writeVarint(System.currentTimeMillis());
+  }
+
+  /**
+   * Wrap {@code cursor} to record {@code sql} once its first window is filled, or it is closed
+   * unread. Its place in the trace is taken now, so events which start later wait for it.
+   */
+  Cursor recordQuery(String sql, Object[] args, long startNanos, Cursor cursor) {
+    long prepareNanos = System.nanoTime() - startNanos;
+    final Event query = new Event(QUERY, sql, args, startNanos, prepareNanos, false);
+    if (!add(query)) {
+      return cursor;
+    }
+    return new TimedCursor(cursor, prepareNanos) {
+      @Override void onRun(long nanos) {
+        complete(query, nanos);
+      }
+    };
+  }
+
+  Cursor recordQuery(SupportSQLiteQuery query, long startNanos, Cursor cursor) {
+    ArgCapture capture = new ArgCapture();
+    query.bindTo(capture);
+    return recordQuery(query.getSql(), capture.args(), startNanos, cursor);
+  }
+
+  /** Record a query which read its result without a cursor and is complete. */
+  void recordQuery(String sql, Object[] args, long startNanos) {
+    Event query = new Event(QUERY, sql, args, startNanos, System.nanoTime() - startNanos, false);
+    query.complete = true;
+    add(query);
+  }
+
+  void recordQuery(SupportSQLiteQuery query, long startNanos) {
+    ArgCapture capture = new ArgCapture();
+    query.bindTo(capture);
+    recordQuery(query.getSql(), capture.args(), startNanos);
+  }
+
+  void recordExecute(String sql, Object[] args, long startNanos) {
+    Event execute =
+        new Event(EXECUTE, sql, args, startNanos, System.nanoTime() - startNanos, false);
+    execute.complete = true;
+    add(execute);
+  }
+
+  void recordBegin(boolean exclusive) {
+    Event begin = new Event(BEGIN, null, null, System.nanoTime(), 0, exclusive);
+    begin.complete = true;
+    add(begin);
+  }
+
+  void recordEnd(boolean commit) {
+    Event end = new Event(END, null, null, System.nanoTime(), 0, commit);
+    end.complete = true;
+    add(end);
+  }
+
+  /** Queue {@code event} and write what is complete. Returns false if recording stopped. */
+  private synchronized boolean add(Event event) {
+    if (closed) {
+      return false;
+    }
+    pending.addLast(event);
+    if (pending.size() > MAX_PENDING) {
+      // A cursor which is never read nor closed would hold back every later event. Record its
+      // query with the time it took to prepare.
+      pending.peekFirst().complete = true;
+    }
+    drain();
+    return true;
+  }
+
+  private synchronized void complete(Event query, long nanos) {
+    if (closed || query.complete) {
+      return;
+    }
+    query.nanos = nanos;
+    query.complete = true;
+    drain();
+  }
+
+  private void drain() {
+    try {
+      Event event;
+      while ((event = pending.peekFirst()) != null && event.complete) {
+        pending.removeFirst();
+        write(event);
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void write(Event event) throws IOException {
+    long time = Math.max(0, event.startNanos - startNanos);
+    if (event.sql == null) {
+      out.writeByte(event.tag);
+      writeVarint(event.thread);
+      writeVarint(time);
+      out.writeByte(event.flag ? 1 : 0);
+      return;
+    }
+    Integer id = sqlIds.get(event.sql);
+    if (id == null) {
+      id = sqlIds.size();
+      sqlIds.put(event.sql, id);
+      byte[] bytes = event.sql.getBytes(UTF_8);
+      out.writeByte(SQL);
+      writeVarint(id);
+      writeVarint(bytes.length);
+      out.write(bytes);
+    }
+    out.writeByte(event.tag);
+    writeVarint(id);
+    writeVarint(event.thread);
+    writeVarint(time);
+    writeVarint(event.nanos);
+    writeVarint(event.args.length);
+    for (Object arg : event.args) {
+      writeArg(arg);
+    }
+  }
+
+  private void writeArg(@Nullable Object arg) throws IOException {
+    if (arg == null) {
+      out.writeByte(ARG_NULL);
+    } else if (arg instanceof Double || arg instanceof Float) {
+      out.writeByte(ARG_FLOAT);
+      out.writeDouble(((Number) arg).doubleValue());
+    } else if (arg instanceof Number) {
+      out.writeByte(ARG_INTEGER);
+      long value = ((Number) arg).longValue();
+      writeVarint((value << 1) ^ (value >> 63));
+    } else if (arg instanceof Boolean) {
+      out.writeByte(ARG_INTEGER);
+      writeVarint((Boolean) arg ? 2 : 0); // Zigzag encoded.
+    } else if (arg instanceof byte[]) {
+      byte[] blob = (byte[]) arg;
+      out.writeByte(redact ? ARG_REDACTED_BLOB : ARG_BLOB);
+      writeVarint(blob.length);
+      if (!redact) {
+        out.write(blob);
+      }
+    } else {
+      String text = arg.toString();
+      if (redact) {
+        out.writeByte(ARG_REDACTED_TEXT);
+        writeVarint(text.length());
+      } else {
+        byte[] bytes = text.getBytes(UTF_8);
+        out.writeByte(ARG_TEXT);
+        writeVarint(bytes.length);
+        out.write(bytes);
+      }
+    }
+  }
+
+  private void writeVarint(long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private void fail(IOException e) {
+    // Stop recording rather than failing the app's statements. Close reports the failure.
+    failure = e;
+    closed = true;
+    pending.clear();
+    db.detachRecorder(this);
+  }
+
+  /**
+   * Stop recording and flush the trace. The underlying stream is not closed.
+   *
+   * @throws IOException if writing the trace failed at any point.
+   */
+  @Override public synchronized void close() throws IOException {
+    if (!closed) {
+      // Queries whose cursors are still unread are recorded with the time they took to prepare.
+      for (Event event : pending) {
+        event.complete = true;
+      }
+      drain();
+      if (!closed) {
+        closed = true;
+        db.detachRecorder(this);
+        out.flush();
+      }
+    }
+    if (failure != null) {
+      IOException failure = this.failure;
+      this.failure = null;
+      throw failure;
+    }
+  }
+
+  /** A run of a statement or a transaction boundary, waiting for its turn to be written. */
+  static final class Event {
+    final int tag;
+    /** The statement, or null for a transaction boundary. */
+    @Nullable final String sql;
+    @Nullable final Object[] args;
+    final long thread = Thread.currentThread().getId();
+    final long startNanos;
+    /** Whether a transaction began exclusively or committed. */
+    final boolean flag;
+    long nanos; // Guarded by the recorder.
+    boolean complete; // Guarded by the recorder.
+
+    Event(int tag, @Nullable String sql, @Nullable Object[] args, long startNanos, long nanos,
+        boolean flag) {
+      this.tag = tag;
+      this.sql = sql;
+      this.args = args;
+      this.startNanos = startNanos;
+      this.nanos = nanos;
+      this.flag = flag;
+    }
+  }
+
+  /** A compiled statement which remembers its SQL and arguments for the recorder. */
+  static final class RecordableStatement implements SupportSQLiteStatement {
+    final String sql;
+    private final SupportSQLiteStatement delegate;
+    private final ArgCapture capture = new ArgCapture();
+
+    RecordableStatement(String sql, SupportSQLiteStatement delegate) {
+      this.sql = sql;
+      this.delegate = delegate;
+    }
+
+    Object[] args() {
+      return capture.args();
+    }
+
+    @Override public void bindNull(int index) {
+      delegate.bindNull(index);
+      capture.bindNull(index);
+    }
+
+    @Override public void bindLong(int index, long value) {
+      delegate.bindLong(index, value);
+      capture.bindLong(index, value);
+    }
+
+    @Override public void bindDouble(int index, double value) {
+      delegate.bindDouble(index, value);
+      capture.bindDouble(index, value);
+    }
+
+    @Override public void bindString(int index, String value) {
+      delegate.bindString(index, value);
+      capture.bindString(index, value);
+    }
+
+    @Override public void bindBlob(int index, byte[] value) {
+      delegate.bindBlob(index, value);
+      capture.bindBlob(index, value);
+    }
+
+    @Override public void clearBindings() {
+      delegate.clearBindings();
+      capture.clearBindings();
+    }
+
+    @Override public void execute() {
+      delegate.execute();
+    }
+
+    @Override public int executeUpdateDelete() {
+      return delegate.executeUpdateDelete();
+    }
+
+    @Override public long executeInsert() {
+      return delegate.executeInsert();
+    }
+
+    @Override public long simpleQueryForLong() {
+      return delegate.simpleQueryForLong();
+    }
+
+    @Override public String simpleQueryForString() {
+      return delegate.simpleQueryForString();
+    }
+
+    @Override public void close() throws IOException {
+      delegate.close();
+    }
+
+    @Override public String toString() {
+      return delegate.toString();
+    }
+  }
+
+  /** Collects the arguments a {@link SupportSQLiteQuery} binds. */
+  static final class ArgCapture implements SupportSQLiteProgram {
+    private final List<Object> args = new ArrayList<>();
+
+    private void set(int index, @Nullable Object value) {
+      while (args.size() < index) {
+        args.add(null);
+      }
+      args.set(index - 1, value);
+    }
+
+    @Override public void bindNull(int index) {
+      set(index, null);
+    }
+
+    @Override public void bindLong(int index, long value) {
+      set(index, value);
+    }
+
+    @Override public void bindDouble(int index, double value) {
+      set(index, value);
+    }
+
+    @Override public void bindString(int index, String value) {
+      set(index, value);
+    }
+
+    @Override public void bindBlob(int index, byte[] value) {
+      set(index, value);
+    }
+
+    @Override public void clearBindings() {
+      args.clear();
+    }
+
+    @Override public void close() {
+    }
+
+    Object[] args() {
+      return args.toArray();
+    }
+  }
+}
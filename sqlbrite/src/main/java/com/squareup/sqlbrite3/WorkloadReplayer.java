@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite3;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.sqlbrite3.WorkloadRecorder.ARG_BLOB;
+import static com.squareup.sqlbrite3.WorkloadRecorder.ARG_FLOAT;
+import static com.squareup.sqlbrite3.WorkloadRecorder.ARG_INTEGER;
+import static com.squareup.sqlbrite3.WorkloadRecorder.ARG_NULL;
+import static com.squareup.sqlbrite3.WorkloadRecorder.ARG_REDACTED_BLOB;
+import static com.squareup.sqlbrite3.WorkloadRecorder.ARG_REDACTED_TEXT;
+import static com.squareup.sqlbrite3.WorkloadRecorder.ARG_TEXT;
+import static com.squareup.sqlbrite3.WorkloadRecorder.BEGIN;
+import static com.squareup.sqlbrite3.WorkloadRecorder.END;
+import static com.squareup.sqlbrite3.WorkloadRecorder.EXECUTE;
+import static com.squareup.sqlbrite3.WorkloadRecorder.MAGIC;
+import static com.squareup.sqlbrite3.WorkloadRecorder.QUERY;
+import static com.squareup.sqlbrite3.WorkloadRecorder.SQL;
+import static com.squareup.sqlbrite3.WorkloadRecorder.UTF_8;
+import static com.squareup.sqlbrite3.WorkloadRecorder.VERSION;
+
+/**
+ * Replays a trace written by {@link WorkloadRecorder} against a {@link Target}, which should run
+ * statements on a copy of the recorded database as it was when recording started. The replayer
+ * uses nothing from the Android platform, so a trace taken on a device can be replayed on a
+ * development machine with {@link #jdbc} and any SQLite JDBC driver.
+ * <p>
+ * Events are replayed one at a time on the calling thread in the order they were recorded, so a
+ * replay is deterministic. Statements which other threads ran while a transaction was open are
+ * run inside it. Statements which fail, for example because the copy differs from the recorded
+ * database, are counted and skipped.
+ */
+public final class WorkloadReplayer {
+  /** Runs the statements of a replay. */
+  public interface Target {
+    /** Run the query {@code sql} and read its result. */
+    void query(@NonNull String sql, @NonNull Object[] args) throws SQLException;
+
+    /** Run the statement {@code sql} which returns no result. */
+    void execute(@NonNull String sql, @NonNull Object[] args) throws SQLException;
+
+    /** Begin a transaction, which may be nested inside another. */
+    void beginTransaction() throws SQLException;
+
+    /**
+     * End the innermost transaction. The outermost transaction should only commit if it and every
+     * transaction nested in it committed, as with Android's SQLite transactions.
+     */
+    void endTransaction(boolean commit) throws SQLException;
+  }
+
+  /** The distribution of the durations of a statement's runs. */
+  public static final class Latencies {
+    public final long count;
+    public final long totalNanos;
+    public final long minNanos;
+    public final long p50Nanos;
+    public final long p90Nanos;
+    public final long p99Nanos;
+    public final long maxNanos;
+
+    Latencies(long[] nanos, int count) {
+      Arrays.sort(nanos, 0, count);
+      this.count = count;
+      long totalNanos = 0;
+      for (int i = 0; i < count; i++) {
+        totalNanos += nanos[i];
+      }
+      this.totalNanos = totalNanos;
+      this.minNanos = count > 0 ? nanos[0] : 0;
+      this.p50Nanos = percentile(nanos, count, 50);
+      this.p90Nanos = percentile(nanos, count, 90);
+      this.p99Nanos = percentile(nanos, count, 99);
+      this.maxNanos = count > 0 ? nanos[count - 1] : 0;
+    }
+
+    private static long percentile(long[] sorted, int count, int percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(percentile / 100.0 * count);
+      return sorted[Math.max(0, rank - 1)];
+    }
+
+    @Override public String toString() {
+      return "Latencies{count=" + count
+          + ", total=" + totalNanos
+          + ", min=" + minNanos
+          + ", p50=" + p50Nanos
+          + ", p90=" + p90Nanos
+          + ", p99=" + p99Nanos
+          + ", max=" + maxNanos
+          + '}';
+    }
+  }
+
+  /** The replayed and recorded latencies of one SQL string. */
+  public static final class StatementReport {
+    @NonNull public final String sql;
+    @NonNull public final Latencies replayed;
+    @NonNull public final Latencies recorded;
+    /** The number of runs which failed during the replay. */
+    public final long failures;
+
+    StatementReport(String sql, Latencies replayed, Latencies recorded, long failures) {
+      this.sql = sql;
+      this.replayed = replayed;
+      this.recorded = recorded;
+      this.failures = failures;
+    }
+
+    @Override public String toString() {
+      return "StatementReport{sql=" + sql
+          + ", replayed=" + replayed
+          + ", recorded=" + recorded
+          + ", failures=" + failures
+          + '}';
+    }
+  }
+
+  public static final class Report {
+    /** Every statement, most total replayed time first. */
+    @NonNull public final List<StatementReport> statements;
+    @NonNull public final Latencies replayed;
+    @NonNull public final Latencies recorded;
+    public final long failures;
+    public final long durationNanos;
+
+    Report(List<StatementReport> statements, Latencies replayed, Latencies recorded,
+        long failures, long durationNanos) {
+      this.statements = statements;
+      this.replayed = replayed;
+      this.recorded = recorded;
+      this.failures = failures;
+      this.durationNanos = durationNanos;
+    }
+
+    @Override public String toString() {
+      return "Report{replayed=" + replayed
+          + ", recorded=" + recorded
+          + ", failures=" + failures
+          + ", durationNanos=" + durationNanos
+          + ", statements=" + statements
+          + '}';
+    }
+  }
+
+  /**
+   * Replay {@code trace} against {@code target} and report how long each statement took compared
+   * to when it was recorded. {@code trace} is read to its end but not closed. Statements which
+   * throw {@link SQLException} are counted as failures. A failure to begin or end a transaction
+   * stops the replay.
+   *
+   * @param speed How much faster than recorded to replay. Each event waits until its recorded
+   * start divided by {@code speed} has passed. Use {@link Double#POSITIVE_INFINITY} to replay
+   * without waiting.
+   */
+  @NonNull @WorkerThread
+  public static Report replay(@NonNull InputStream trace, @NonNull Target target, double speed)
+      throws IOException, SQLException {
+    if (trace == null) throw new NullPointerException("trace == null");
+    if (target == null) throw new NullPointerException("target == null");
+    if (!(speed > 0)) throw new IllegalArgumentException("speed <= 0");
+    return new Replay(new DataInputStream(new BufferedInputStream(trace)), target, speed).run();
+  }
+
+  /**
+   * Create a {@link Target} which runs statements on {@code connection}. Queries read every row
+   * of their result. Transactions turn off auto-commit until the outermost one ends.
+   */
+  @NonNull
+  public static Target jdbc(@NonNull Connection connection) {
+    if (connection == null) throw new NullPointerException("connection == null");
+    return new JdbcTarget(connection);
+  }
+
+  static final class JdbcTarget implements Target {
+    private final Connection connection;
+    private int transactionDepth;
+    private boolean rollback;
+
+    JdbcTarget(Connection connection) {
+      this.connection = connection;
+    }
+
+    @Override public void query(String sql, Object[] args) throws SQLException {
+      PreparedStatement statement = prepare(sql, args);
+      try {
+        ResultSet results = statement.executeQuery();
+        try {
+          while (results.next()) {
+            // Step through every row, as a recorded query stepped through its first window.
+          }
+        } finally {
+          results.close();
+        }
+      } finally {
+        statement.close();
+      }
+    }
+
+    @Override public void execute(String sql, Object[] args) throws SQLException {
+      PreparedStatement statement = prepare(sql, args);
+      try {
+        statement.execute();
+      } finally {
+        statement.close();
+      }
+    }
+
+    private PreparedStatement prepare(String sql, Object[] args) throws SQLException {
+      PreparedStatement statement = connection.prepareStatement(sql);
+      for (int i = 0; i < args.length; i++) {
+        bind(statement, i + 1, args[i]);
+      }
+      return statement;
+    }
+
+    private static void bind(PreparedStatement statement, int index, @Nullable Object arg)
+        throws SQLException {
+      if (arg == null) {
+        statement.setNull(index, Types.NULL);
+      } else if (arg instanceof Long) {
+        statement.setLong(index, (Long) arg);
+      } else if (arg instanceof Double) {
+        statement.setDouble(index, (Double) arg);
+      } else if (arg instanceof byte[]) {
+        statement.setBytes(index, (byte[]) arg);
+      } else {
+        statement.setString(index, (String) arg);
+      }
+    }
+
+    @Override public void beginTransaction() throws SQLException {
+      if (transactionDepth == 0) {
+        connection.setAutoCommit(false);
+        rollback = false;
+      }
+      transactionDepth++;
+    }
+
+    @Override public void endTransaction(boolean commit) throws SQLException {
+      if (transactionDepth == 0) {
+        throw new IllegalStateException("Not in transaction.");
+      }
+      rollback |= !commit;
+      if (--transactionDepth == 0) {
+        try {
+          if (rollback) {
+            connection.rollback();
+          } else {
+            connection.commit();
+          }
+        } finally {
+          connection.setAutoCommit(true);
+        }
+      }
+    }
+  }
+
+  static final class Replay {
+    private final DataInputStream in;
+    private final Target target;
+    private final double speed;
+    private final Map<Integer, String> sql = new HashMap<>();
+    private final Map<Integer, Timings> timings = new LinkedHashMap<>();
+    private final Timings all = new Timings();
+    private int transactionDepth;
+    private long replayStartNanos;
+
+    Replay(DataInputStream in, Target target, double speed) {
+      this.in = in;
+      this.target = target;
+      this.speed = speed;
+    }
+
+    Report run() throws IOException, SQLException {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not a workload trace.");
+      }
+      int version = in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported trace version: " + version);
+      }
+      readVarint(); // Recording start time.
+
+      replayStartNanos = System.nanoTime();
+      try {
+        int tag;
+        while ((tag = in.read()) != -1) {
+          switch (tag) {
+            case SQL: {
+              int id = (int) readVarint();
+              byte[] bytes = new byte[(int) readVarint()];
+              in.readFully(bytes);
+              sql.put(id, new String(bytes, UTF_8));
+              break;
+            }
+            case QUERY:
+            case EXECUTE:
+              replayStatement(tag);
+              break;
+            case BEGIN:
+              readVarint(); // Thread.
+              awaitStart(readVarint());
+              in.readUnsignedByte(); // Exclusive.
+              target.beginTransaction();
+              transactionDepth++;
+              break;
+            case END: {
+              readVarint(); // Thread.
+              awaitStart(readVarint());
+              boolean commit = in.readUnsignedByte() == 1;
+              if (transactionDepth > 0) {
+                transactionDepth--;
+                target.endTransaction(commit);
+              }
+              break;
+            }
+            default:
+              throw new IOException("Unknown trace record: " + tag);
+          }
+        }
+      } finally {
+        while (transactionDepth > 0) {
+          transactionDepth--;
+          target.endTransaction(false); // Recording stopped inside a transaction. Do not commit.
+        }
+      }
+      long durationNanos = System.nanoTime() - replayStartNanos;
+
+      List<StatementReport> statements = new ArrayList<>(timings.size());
+      for (Map.Entry<Integer, Timings> entry : timings.entrySet()) {
+        Timings timings = entry.getValue();
+        statements.add(new StatementReport(sql.get(entry.getKey()), timings.replayed(),
+            timings.recorded(), timings.failures));
+      }
+      Collections.sort(statements, new Comparator<StatementReport>() {
+        @Override public int compare(StatementReport a, StatementReport b) {
+          long aNanos = a.replayed.totalNanos;
+          long bNanos = b.replayed.totalNanos;
+          return aNanos < bNanos ? 1 : aNanos > bNanos ? -1 : 0;
+        }
+      });
+      return new Report(Collections.unmodifiableList(statements), all.replayed(), all.recorded(),
+          all.failures, durationNanos);
+    }
+
+    private void replayStatement(int tag) throws IOException {
+      int id = (int) readVarint();
+      readVarint(); // Thread.
+      long startNanos = readVarint();
+      long recordedNanos = readVarint();
+      Object[] args = new Object[(int) readVarint()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = readArg();
+      }
+      String statement = sql.get(id);
+      if (statement == null) {
+        throw new IOException("Unknown SQL ID: " + id);
+      }
+
+      awaitStart(startNanos);
+      long start = System.nanoTime();
+      boolean failed = false;
+      try {
+        if (tag == QUERY) {
+          target.query(statement, args);
+        } else {
+          target.execute(statement, args);
+        }
+      } catch (SQLException e) {
+        failed = true;
+      }
+      long replayedNanos = System.nanoTime() - start;
+
+      Timings timings = this.timings.get(id);
+      if (timings == null) {
+        timings = new Timings();
+        this.timings.put(id, timings);
+      }
+      timings.add(replayedNanos, recordedNanos, failed);
+      all.add(replayedNanos, recordedNanos, failed);
+    }
+
+    private Object readArg() throws IOException {
+      int type = in.readUnsignedByte();
+      switch (type) {
+        case ARG_NULL:
+          return null;
+        case ARG_INTEGER: {
+          long zigzag = readVarint();
+          return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        case ARG_FLOAT:
+          return in.readDouble();
+        case ARG_TEXT: {
+          byte[] bytes = new byte[(int) readVarint()];
+          in.readFully(bytes);
+          return new String(bytes, UTF_8);
+        }
+        case ARG_BLOB: {
+          byte[] bytes = new byte[(int) readVarint()];
+          in.readFully(bytes);
+          return bytes;
+        }
+        case ARG_REDACTED_TEXT: {
+          char[] text = new char[(int) readVarint()];
+          Arrays.fill(text, 'x');
+          return new String(text);
+        }
+        case ARG_REDACTED_BLOB:
+          return new byte[(int) readVarint()];
+        default:
+          throw new IOException("Unknown argument type: " + type);
+      }
+    }
+
+    private void awaitStart(long recordedStartNanos) {
+      if (Double.isInfinite(speed)) {
+        return;
+      }
+      long due = replayStartNanos + (long) (recordedStartNanos / speed);
+      long remaining = due - System.nanoTime();
+      if (remaining > 0) {
+        try {
+          Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    private long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = in.read();
+        if (b == -1) {
+          throw new EOFException("Truncated trace.");
+        }
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint.");
+    }
+  }
+
+  static final class Timings {
+    private long[] replayed = new long[16];
+    private long[] recorded = new long[16];
+    private int count;
+    long failures;
+
+    void add(long replayedNanos, long recordedNanos, boolean failed) {
+      if (count == replayed.length) {
+        replayed = Arrays.copyOf(replayed, count * 2);
+        recorded = Arrays.copyOf(recorded, count * 2);
+      }
+      replayed[count] = replayedNanos;
+      recorded[count] = recordedNanos;
+      count++;
+      if (failed) {
+        failures++;
+      }
+    }
+
+    Latencies replayed() {
+      return new Latencies(replayed, count);
+    }
+
+    Latencies recorded() {
+      return new Latencies(recorded, count);
+    }
+  }
+
+  private WorkloadReplayer() {
+    throw new AssertionError("No instances.");
+  }
+}